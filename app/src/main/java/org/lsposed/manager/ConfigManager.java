@@ -187,6 +187,15 @@ public class ConfigManager {
         }
     }
 
+    public static ParcelFileDescriptor getLogIndex(boolean verbose) {
+        try {
+            return LSPManagerServiceHolder.getService().getLogIndex(verbose);
+        } catch (RemoteException e) {
+            Log.e(App.TAG, Log.getStackTraceString(e));
+            return null;
+        }
+    }
+
     public static boolean clearLogs(boolean verbose) {
         try {
             return LSPManagerServiceHolder.getService().clearLogs(verbose);
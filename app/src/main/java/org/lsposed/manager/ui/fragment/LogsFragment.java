@@ -23,6 +23,7 @@ import android.annotation.SuppressLint;
 import android.content.ActivityNotFoundException;
 import android.os.Bundle;
 import android.util.Log;
+import android.util.LruCache;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuInflater;
@@ -45,6 +46,7 @@ import com.google.android.material.tabs.TabLayout;
 import com.google.android.material.tabs.TabLayoutMediator;
 import com.google.android.material.textview.MaterialTextView;
 
+import org.lsposed.lspd.util.LogReader;
 import org.lsposed.manager.App;
 import org.lsposed.manager.ConfigManager;
 import org.lsposed.manager.R;
@@ -183,7 +185,10 @@ public class LogsFragment extends BaseFragment implements MenuProvider {
         protected LinearLayoutManager layoutManager;
 
         class LogAdaptor extends EmptyStateRecyclerView.EmptyStateAdapter<LogAdaptor.ViewHolder> {
+            // plain text logs of older versions are read completely
             private List<CharSequence> log = Collections.emptyList();
+            private LogReader reader = null;
+            private final LruCache<Integer, List<LogReader.Entry>> pages = new LruCache<>(16);
             private boolean isLoaded = false;
 
             @NonNull
@@ -194,19 +199,32 @@ public class LogsFragment extends BaseFragment implements MenuProvider {
 
             @Override
             public void onBindViewHolder(@NonNull ViewHolder holder, int position) {
-                holder.item.setText(log.get(position));
+                holder.item.setText(getLine(position));
             }
 
             @Override
             public int getItemCount() {
-                return log.size();
+                return reader != null ? reader.size() : log.size();
+            }
+
+            private CharSequence getLine(int position) {
+                if (reader == null) return log.get(position);
+                int page = position / LogReader.PAGE_SIZE;
+                var entries = pages.get(page);
+                if (entries == null) {
+                    entries = reader.readPage(page);
+                    pages.put(page, entries);
+                }
+                return entries.get(position % LogReader.PAGE_SIZE).toString();
             }
 
             @SuppressLint("NotifyDataSetChanged")
-            void refresh(List<CharSequence> log) {
+            void refresh(LogReader reader, List<CharSequence> log) {
                 runOnUiThread(() -> {
                     isLoaded = true;
+                    this.reader = reader;
                     this.log = log;
+                    pages.evictAll();
                     notifyDataSetChanged();
                 });
             }
@@ -214,14 +232,24 @@ public class LogsFragment extends BaseFragment implements MenuProvider {
             void fullRefresh() {
                 runAsync(() -> {
                     isLoaded = false;
-                    List<CharSequence> tmp;
+                    LogReader logReader = null;
+                    List<CharSequence> tmp = Collections.emptyList();
                     try (var parcelFileDescriptor = ConfigManager.getLog(verbose);
-                         var br = new BufferedReader(new InputStreamReader(new FileInputStream(parcelFileDescriptor != null ? parcelFileDescriptor.getFileDescriptor() : null)))) {
-                        tmp = br.lines().parallel().collect(Collectors.toList());
+                         var index = ConfigManager.getLogIndex(verbose)) {
+                        var fd = parcelFileDescriptor != null ? parcelFileDescriptor.getFileDescriptor() : null;
+                        if (fd != null && LogReader.isBinaryLog(fd)) {
+                            // pages are decoded while scrolling, the mapping outlives the descriptors
+                            logReader = new LogReader(fd, index != null ? index.getFileDescriptor() : null);
+                        } else {
+                            try (var br = new BufferedReader(new InputStreamReader(new FileInputStream(fd)))) {
+                                tmp = br.lines().parallel().collect(Collectors.toList());
+                            }
+                        }
                     } catch (Throwable e) {
+                        logReader = null;
                         tmp = Arrays.asList(Log.getStackTraceString(e).split("\n"));
                     }
-                    refresh(tmp);
+                    refresh(logReader, tmp);
                 });
             }
 
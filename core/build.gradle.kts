@@ -46,6 +46,11 @@ android {
             proguardFiles("proguard-rules.pro")
         }
     }
+
+    testOptions {
+        // host benchmarks, android.util.Log and friends are no-ops there
+        unitTests.isReturnDefaultValues = true
+    }
 }
 
 copy {
@@ -64,4 +69,5 @@ dependencies {
     implementation(projects.services.managerService)
     compileOnly(libs.androidx.annotation)
     compileOnly(projects.hiddenapi.stubs)
+    testImplementation(libs.junit)
 }
@@ -18,6 +18,8 @@
 -keepclassmembers class org.lsposed.lspd.impl.LSPosedBridge$NativeHooker {
     <init>(java.lang.reflect.Executable);
     callback(...);
+    *** snapshot;
+    *** backup;
 }
 -keepclassmembers class org.lsposed.lspd.impl.LSPosedBridge$HookerCallback {
     final *** beforeInvocation;
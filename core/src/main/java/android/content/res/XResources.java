@@ -93,6 +93,9 @@ public class XResources extends XResourcesSuperClass {
 
 	private static final SparseArray<HashMap<String, CopyOnWriteSortedSet<XC_LayoutInflated>>> sLayoutCallbacks = new SparseArray<>();
 	private static final WeakHashMap<XmlResourceParser, XMLInstanceDetails> sXmlInstanceDetails = new WeakHashMap<>();
+	// native caches of rewriteXmlReferencesNative, per module resources and resource dir
+	private static final WeakHashMap<Resources, HashMap<String, Integer>> sXmlTranslationTables = new WeakHashMap<>();
+	private static int sNextXmlTranslationTable = 0;
 
 	private static final String EXTRA_XML_INSTANCE_DETAILS = "xmlInstanceDetails";
 	private static final ThreadLocal<LinkedList<MethodHookParam>> sIncludedLayouts = ThreadLocal.withInitial(() -> new LinkedList<>());
@@ -145,6 +148,12 @@ public class XResources extends XResourcesSuperClass {
 				sReplacements.valueAt(i).remove(mResDir);
 			}
 			Arrays.fill(mReplacementsCache, (byte) 0);
+			// cached translations skip translateResId, which registers the replacements again
+			synchronized (sXmlTranslationTables) {
+				for (HashMap<String, Integer> tables : sXmlTranslationTables.values()) {
+					tables.remove(mResDir);
+				}
+			}
 			return true;
 		}
 	}
@@ -651,7 +660,7 @@ public class XResources extends XResourcesSuperClass {
 
 			if (!loadedFromCache) {
 				long parseState = getLongField(result, "mParseState");
-				rewriteXmlReferencesNative(parseState, this, repRes);
+				rewriteXmlReferencesNative(parseState, this, repRes, getXmlTranslationTable(repRes));
 			}
 
 			return result;
@@ -940,7 +949,7 @@ public class XResources extends XResourcesSuperClass {
 
 			if (!loadedFromCache) {
 				long parseState = getLongField(result, "mParseState");
-				rewriteXmlReferencesNative(parseState, this, repRes);
+				rewriteXmlReferencesNative(parseState, this, repRes, getXmlTranslationTable(repRes));
 			}
 		} else {
 			result = super.getLayout(id);
@@ -1126,7 +1135,7 @@ public class XResources extends XResourcesSuperClass {
 
 			if (!loadedFromCache) {
 				long parseState = getLongField(result, "mParseState");
-				rewriteXmlReferencesNative(parseState, this, repRes);
+				rewriteXmlReferencesNative(parseState, this, repRes, getXmlTranslationTable(repRes));
 			}
 
 			return result;
@@ -1145,13 +1154,37 @@ public class XResources extends XResourcesSuperClass {
 		return false;
 	}
 
+	/**
+	 * Returns the id under which translations of references from the module resources into these
+	 * resources are cached natively. The results of {@link #translateResId} and
+	 * {@link #translateAttrId} only depend on the module resources and the original package, and
+	 * replacements are registered per resource dir, so the cache is shared by all instances
+	 * loaded from the same dir. {@link #isFirstLoad} starts new tables when it drops the
+	 * replacements of the dir.
+	 */
+	private int getXmlTranslationTable(Resources repRes) {
+		synchronized (sXmlTranslationTables) {
+			HashMap<String, Integer> tables = sXmlTranslationTables.get(repRes);
+			if (tables == null) {
+				tables = new HashMap<>();
+				sXmlTranslationTables.put(repRes, tables);
+			}
+			Integer table = tables.get(mResDir);
+			if (table == null) {
+				table = ++sNextXmlTranslationTable;
+				tables.put(mResDir, table);
+			}
+			return table;
+		}
+	}
+
 	/**
 	 * Used to replace reference IDs in XMLs.
 	 *
 	 * When resource requests are forwarded to modules, the may include references to resources with the same
 	 * name as in the original resources, but the IDs generated by aapt will be different. rewriteXmlReferencesNative
 	 * walks through all references and calls this function to find out the original ID, which it then writes to
-	 * the compiled XML file in the memory.
+	 * the compiled XML file in the memory. The result is cached, see {@link #getXmlTranslationTable}.
 	 */
 	private static int translateResId(int id, XResources origRes, Resources repRes) {
 		try {
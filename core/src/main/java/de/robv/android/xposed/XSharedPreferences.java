@@ -33,25 +33,20 @@ import com.android.internal.util.XmlUtils;
 
 import org.lsposed.lspd.core.BuildConfig;
 import org.lsposed.lspd.util.MetaDataReader;
+import org.lsposed.lspd.util.PreferencesWatcher;
 import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
-import java.nio.file.AccessDeniedException;
-import java.nio.file.ClosedWatchServiceException;
-import java.nio.file.Path;
-import java.nio.file.StandardWatchEventKinds;
-import java.nio.file.WatchEvent;
-import java.nio.file.WatchKey;
-import java.nio.file.WatchService;
-import java.security.MessageDigest;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import de.robv.android.xposed.services.FileResult;
 
@@ -62,73 +57,35 @@ import de.robv.android.xposed.services.FileResult;
  */
 public final class XSharedPreferences implements SharedPreferences {
     private static final String TAG = "XSharedPreferences";
-    private static final HashMap<WatchKey, PrefsData> sWatcherKeyInstances = new HashMap<>();
     private static final Object sContent = new Object();
-    private static Thread sWatcherDaemon = null;
-    private static WatchService sWatcher;
+    // Parsed files shared by all instances, so only the first one to see a change parses it
+    private static final Map<String, ParsedFile> sParsedFiles = new ConcurrentHashMap<>();
 
     private final HashMap<OnSharedPreferenceChangeListener, Object> mListeners = new HashMap<>();
+    private final PreferencesWatcher.Callback mWatchCallback = this::onFileChanged;
     private final File mFile;
     private final String mFilename;
     private Map<String, Object> mMap;
     private boolean mLoaded = false;
     private long mLastModified;
     private long mFileSize;
-    private WatchKey mWatchKey;
+    private boolean mWatching = false;
+    private boolean mDirty = false;
 
-    private static void initWatcherDaemon() {
-        sWatcherDaemon = new Thread() {
-            @Override
-            public void run() {
-                if (BuildConfig.DEBUG) Log.d(TAG, "Watcher daemon thread started");
-                while (true) {
-                    WatchKey key;
-                    try {
-                        key = sWatcher.take();
-                    } catch (ClosedWatchServiceException ignored) {
-                        if (BuildConfig.DEBUG) Log.d(TAG, "Watcher daemon thread finished");
-                        sWatcher = null;
-                        return;
-                    } catch (InterruptedException ignored) {
-                        return;
-                    }
-                    for (WatchEvent<?> event : key.pollEvents()) {
-                        WatchEvent.Kind<?> kind = event.kind();
-                        if (kind == StandardWatchEventKinds.OVERFLOW) {
-                            continue;
-                        }
-                        Path dir = (Path) key.watchable();
-                        Path path = dir.resolve((Path) event.context());
-                        String pathStr = path.toString();
-                        if (BuildConfig.DEBUG)
-                            Log.v(TAG, "File " + path.toString() + " event: " + kind.name());
-                        // We react to both real and backup files due to rare race conditions
-                        if (pathStr.endsWith(".bak")) {
-                            if (kind != StandardWatchEventKinds.ENTRY_DELETE) {
-                                continue;
-                            }
-                        } else if (SELinuxHelper.getAppDataFileService().checkFileExists(pathStr + ".bak")) {
-                            continue;
-                        }
-                        PrefsData data = sWatcherKeyInstances.get(key);
-                        if (data != null && data.hasChanged()) {
-                            for (OnSharedPreferenceChangeListener l : data.mPrefs.mListeners.keySet()) {
-                                try {
-                                    l.onSharedPreferenceChanged(data.mPrefs, null);
-                                } catch (Throwable t) {
-                                    if (BuildConfig.DEBUG)
-                                        Log.e(TAG, "Fail in preference change listener", t);
-                                }
-                            }
-                        }
-                    }
-                    key.reset();
-                }
+    private void onFileChanged() {
+        List<OnSharedPreferenceChangeListener> listeners;
+        synchronized (this) {
+            mDirty = true;
+            listeners = new ArrayList<>(mListeners.keySet());
+        }
+        for (OnSharedPreferenceChangeListener l : listeners) {
+            try {
+                l.onSharedPreferenceChanged(this, null);
+            } catch (Throwable t) {
+                if (BuildConfig.DEBUG)
+                    Log.e(TAG, "Fail in preference change listener", t);
             }
-        };
-        sWatcherDaemon.setName(TAG + "-Daemon");
-        sWatcherDaemon.setDaemon(true);
-        sWatcherDaemon.start();
+        }
     }
 
     /**
@@ -193,50 +150,18 @@ public final class XSharedPreferences implements SharedPreferences {
     }
 
     private void tryRegisterWatcher() {
-        if (mWatchKey != null && mWatchKey.isValid()) {
+        if (mWatching) {
             return;
         }
-
-        synchronized (sWatcherKeyInstances) {
-            Path path = mFile.toPath();
-            try {
-                if (sWatcher == null) {
-                    sWatcher = new File(serviceClient.getPrefsPath("")).toPath().getFileSystem().newWatchService();
-                    if (BuildConfig.DEBUG) Log.d(TAG, "Created WatchService instance");
-                }
-                mWatchKey = path.getParent().register(sWatcher, StandardWatchEventKinds.ENTRY_CREATE,
-                        StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
-                sWatcherKeyInstances.put(mWatchKey, new PrefsData(this));
-                if (sWatcherDaemon == null || !sWatcherDaemon.isAlive()) {
-                    initWatcherDaemon();
-                }
-                if (BuildConfig.DEBUG)
-                    Log.d(TAG, "tryRegisterWatcher: registered file watcher for " + path);
-            } catch (AccessDeniedException accDeniedEx) {
-                if (BuildConfig.DEBUG) Log.e(TAG, "tryRegisterWatcher: access denied to " + path);
-            } catch (Exception e) {
-                Log.e(TAG, "tryRegisterWatcher: failed to register file watcher", e);
-            }
-        }
+        mWatching = PreferencesWatcher.watch(mFile, mWatchCallback);
+        if (BuildConfig.DEBUG && mWatching)
+            Log.d(TAG, "tryRegisterWatcher: registered file watcher for " + mFilename);
     }
 
     private void tryUnregisterWatcher() {
-        synchronized (sWatcherKeyInstances) {
-            if (mWatchKey != null) {
-                sWatcherKeyInstances.remove(mWatchKey);
-                mWatchKey.cancel();
-                mWatchKey = null;
-            }
-            boolean atLeastOneValid = false;
-            for (WatchKey key : sWatcherKeyInstances.keySet()) {
-                atLeastOneValid |= key.isValid();
-            }
-            if (!atLeastOneValid) {
-                try {
-                    sWatcher.close();
-                } catch (Exception ignore) {
-                }
-            }
+        if (mWatching) {
+            PreferencesWatcher.unwatch(mFile, mWatchCallback);
+            mWatching = false;
         }
     }
 
@@ -244,30 +169,6 @@ public final class XSharedPreferences implements SharedPreferences {
         startLoadFromDisk();
     }
 
-    private static long tryGetFileSize(String filename) {
-        try {
-            return SELinuxHelper.getAppDataFileService().getFileSize(filename);
-        } catch (IOException ignored) {
-            return 0;
-        }
-    }
-
-    private static byte[] tryGetFileHash(String filename) {
-        try {
-            MessageDigest md = MessageDigest.getInstance("MD5");
-            try (InputStream is = SELinuxHelper.getAppDataFileService().getFileInputStream(filename)) {
-                byte[] buf = new byte[4096];
-                int read;
-                while ((read = is.read(buf)) != -1) {
-                    md.update(buf, 0, read);
-                }
-            }
-            return md.digest();
-        } catch (Exception ignored) {
-            return new byte[0];
-        }
-    }
-
     /**
      * Tries to make the preferences file world-readable.
      *
@@ -295,8 +196,10 @@ public final class XSharedPreferences implements SharedPreferences {
             mFile.getParentFile().setReadable(true, false);
         }
 
-        if (!mListeners.isEmpty()) {
-            tryRegisterWatcher();
+        synchronized (this) {
+            if (!mListeners.isEmpty()) {
+                tryRegisterWatcher();
+            }
         }
 
         return true;
@@ -333,14 +236,24 @@ public final class XSharedPreferences implements SharedPreferences {
 
         Map map = null;
         FileResult result = null;
+        ParsedFile parsed = sParsedFiles.get(mFilename);
         try {
-            result = SELinuxHelper.getAppDataFileService().getFileInputStream(mFilename, mFileSize, mLastModified);
+            if (parsed != null) {
+                result = SELinuxHelper.getAppDataFileService().getFileInputStream(mFilename, parsed.size, parsed.mtime);
+            } else {
+                result = SELinuxHelper.getAppDataFileService().getFileInputStream(mFilename, mFileSize, mLastModified);
+            }
             if (result.stream != null) {
+                long start = System.nanoTime();
                 map = XmlUtils.readMapXml(result.stream);
+                // the parsed values are shared by all instances, none of them may change a set
+                map.replaceAll((k, v) -> v instanceof Set ? Collections.unmodifiableSet((Set) v) : v);
+                PreferencesWatcher.recordReload(System.nanoTime() - start);
                 result.stream.close();
+                sParsedFiles.put(mFilename, new ParsedFile(map, result.size, result.mtime));
             } else {
                 // The file is unchanged, keep the current values
-                map = mMap;
+                map = parsed != null ? parsed.map : mMap;
             }
         } catch (XmlPullParserException e) {
             Log.w(TAG, "getSharedPreferences failed for: " + mFilename, e);
@@ -376,6 +289,10 @@ public final class XSharedPreferences implements SharedPreferences {
      * <p><strong>Warning:</strong> With enforcing SELinux, this call might be quite expensive.
      */
     public synchronized void reload() {
+        if (mWatching) {
+            // Changes are tracked by the watcher and picked up on the next read
+            return;
+        }
         if (hasFileChanged()) {
             init();
         }
@@ -387,6 +304,9 @@ public final class XSharedPreferences implements SharedPreferences {
      * <p><strong>Warning:</strong> With enforcing SELinux, this call might be quite expensive.
      */
     public synchronized boolean hasFileChanged() {
+        if (mWatching) {
+            return mDirty;
+        }
         try {
             FileResult result = SELinuxHelper.getAppDataFileService().statFile(mFilename);
             return mLastModified != result.mtime || mFileSize != result.size;
@@ -406,6 +326,11 @@ public final class XSharedPreferences implements SharedPreferences {
             } catch (InterruptedException unused) {
             }
         }
+        if (mDirty) {
+            mDirty = false;
+            mLoaded = false;
+            loadFromDiskLocked();
+        }
     }
 
     /**
@@ -547,37 +472,16 @@ public final class XSharedPreferences implements SharedPreferences {
         }
     }
 
-    private static class PrefsData {
-        public final XSharedPreferences mPrefs;
-        private long mSize;
-        private byte[] mHash;
+    private static final class ParsedFile {
+        final Map<String, Object> map;
+        final long size;
+        final long mtime;
 
-        public PrefsData(XSharedPreferences prefs) {
-            mPrefs = prefs;
-            mSize = tryGetFileSize(prefs.mFilename);
-            mHash = tryGetFileHash(prefs.mFilename);
-        }
-
-        public boolean hasChanged() {
-            long size = tryGetFileSize(mPrefs.mFilename);
-            if (size < 1) {
-                if (BuildConfig.DEBUG) Log.d(TAG, "Ignoring empty prefs file");
-                return false;
-            }
-            if (size != mSize) {
-                mSize = size;
-                mHash = tryGetFileHash(mPrefs.mFilename);
-                if (BuildConfig.DEBUG) Log.d(TAG, "Prefs file size changed");
-                return true;
-            }
-            byte[] hash = tryGetFileHash(mPrefs.mFilename);
-            if (!Arrays.equals(hash, mHash)) {
-                mHash = hash;
-                if (BuildConfig.DEBUG) Log.d(TAG, "Prefs file hash changed");
-                return true;
-            }
-            if (BuildConfig.DEBUG) Log.d(TAG, "Prefs file not changed");
-            return false;
+        @SuppressWarnings("unchecked")
+        ParsedFile(Map<?, ?> map, long size, long mtime) {
+            this.map = (Map<String, Object>) map;
+            this.size = size;
+            this.mtime = mtime;
         }
     }
 }
@@ -25,6 +25,7 @@ import android.content.res.Resources;
 import android.content.res.TypedArray;
 import android.util.Log;
 
+import org.lsposed.lspd.impl.HookStats;
 import org.lsposed.lspd.impl.LSPosedBridge;
 import org.lsposed.lspd.impl.LSPosedHookCallback;
 import org.lsposed.lspd.nativebridge.HookBridge;
@@ -387,20 +388,23 @@ public final class XposedBridge {
         private final XC_MethodHook.MethodHookParam<T> param;
         private final LSPosedHookCallback<T> callback;
         private final Object[] snapshot;
+        private final HookStats.MethodStats stats;
 
         private int beforeIdx;
 
-        public LegacyApiSupport(LSPosedHookCallback<T> callback, Object[] legacySnapshot) {
+        public LegacyApiSupport(LSPosedHookCallback<T> callback, Object[] legacySnapshot, HookStats.MethodStats stats) {
             this.param = new XC_MethodHook.MethodHookParam<>();
             this.callback = callback;
             this.snapshot = legacySnapshot;
+            this.stats = stats;
         }
 
         public void handleBefore() {
             syncronizeApi(param, callback, true);
             for (beforeIdx = 0; beforeIdx < snapshot.length; beforeIdx++) {
+                var cb = (XC_MethodHook) snapshot[beforeIdx];
+                long start = stats != null ? System.nanoTime() : 0;
                 try {
-                    var cb = (XC_MethodHook) snapshot[beforeIdx];
                     cb.beforeHookedMethod(param);
                 } catch (Throwable t) {
                     XposedBridge.log(t);
@@ -409,6 +413,10 @@ public final class XposedBridge {
                     param.setResult(null);
                     param.returnEarly = false;
                     continue;
+                } finally {
+                    if (stats != null) {
+                        stats.hooker(cb).recordBefore(System.nanoTime() - start);
+                    }
                 }
 
                 if (param.returnEarly) {
@@ -425,8 +433,9 @@ public final class XposedBridge {
             for (int afterIdx = beforeIdx - 1; afterIdx >= 0; afterIdx--) {
                 Object lastResult = param.getResult();
                 Throwable lastThrowable = param.getThrowable();
+                var cb = (XC_MethodHook) snapshot[afterIdx];
+                long start = stats != null ? System.nanoTime() : 0;
                 try {
-                    var cb = (XC_MethodHook) snapshot[afterIdx];
                     cb.afterHookedMethod(param);
                 } catch (Throwable t) {
                     XposedBridge.log(t);
@@ -438,6 +447,9 @@ public final class XposedBridge {
                         param.setThrowable(lastThrowable);
                     }
                 }
+                if (stats != null) {
+                    stats.hooker(cb).recordAfter(System.nanoTime() - start);
+                }
             }
             syncronizeApi(param, callback, false);
         }
@@ -33,6 +33,10 @@ import java.io.ByteArrayOutputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
@@ -48,9 +52,10 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
-import java.util.WeakHashMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
 
 /**
  * Helpers that simplify hooking and calling methods/constructors, getting and settings fields, ...
@@ -59,10 +64,14 @@ public final class XposedHelpers {
     private XposedHelpers() {
     }
 
-    private static final ConcurrentHashMap<MemberCacheKey.Field, Optional<Field>> fieldCache = new ConcurrentHashMap<>();
-    private static final ConcurrentHashMap<MemberCacheKey.Method, Optional<Method>> methodCache = new ConcurrentHashMap<>();
-    private static final ConcurrentHashMap<MemberCacheKey.Constructor, Optional<Constructor<?>>> constructorCache = new ConcurrentHashMap<>();
-    private static final WeakHashMap<Object, HashMap<String, Object>> additionalFields = new WeakHashMap<>();
+    private static final MemberCache<MemberCacheKey.Field, Field> fieldCache = new MemberCache<>();
+    private static final MemberCache<MemberCacheKey.Method, Method> methodCache = new MemberCache<>();
+    private static final MemberCache<MemberCacheKey.Constructor, Constructor<?>> constructorCache = new MemberCache<>();
+    // weakly keyed by object identity, see setAdditionalInstanceField
+    private static final ConcurrentHashMap<WeakIdentityKey<Object>, ConcurrentHashMap<String, Object>> additionalFields = new ConcurrentHashMap<>();
+    private static final ReferenceQueue<Object> additionalFieldsQueue = new ReferenceQueue<>();
+    // stored for null values, which ConcurrentHashMap cannot hold
+    private static final Object NULL_FIELD = new Object();
     private static final HashMap<String, ThreadLocal<AtomicInteger>> sMethodDepth = new HashMap<>();
 
     /**
@@ -89,6 +98,9 @@ public final class XposedHelpers {
             return hash;
         }
 
+        // the class whose loader owns the cache entry
+        abstract Class<?> getOwner();
+
         static final class Constructor extends MemberCacheKey {
             private final Class<?> clazz;
             private final Class<?>[] parameters;
@@ -101,6 +113,11 @@ public final class XposedHelpers {
                 this.isExact = isExact;
             }
 
+            @Override
+            Class<?> getOwner() {
+                return clazz;
+            }
+
             @Override
             public boolean equals(Object o) {
                 if (this == o) return true;
@@ -131,6 +148,11 @@ public final class XposedHelpers {
                 this.name = name;
             }
 
+            @Override
+            Class<?> getOwner() {
+                return clazz;
+            }
+
             @Override
             public boolean equals(Object o) {
                 if (this == o) return true;
@@ -160,6 +182,11 @@ public final class XposedHelpers {
                 this.isExact = isExact;
             }
 
+            @Override
+            Class<?> getOwner() {
+                return clazz;
+            }
+
             @Override
             public boolean equals(Object o) {
                 if (this == o) return true;
@@ -181,6 +208,142 @@ public final class XposedHelpers {
         }
     }
 
+    /**
+     * A weakly referenced key compared by identity, for maps that must not keep their keys alive.
+     * Cleared keys are only equal to themselves so that they can still be removed.
+     */
+    private static final class WeakIdentityKey<T> extends WeakReference<T> {
+        private final int hash;
+
+        WeakIdentityKey(T referent, ReferenceQueue<? super T> queue) {
+            super(referent, queue);
+            hash = System.identityHashCode(referent);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            var referent = get();
+            if (o instanceof IdentityProbe) return referent != null && referent == ((IdentityProbe) o).referent;
+            if (!(o instanceof WeakIdentityKey)) return false;
+            return referent != null && referent == ((WeakIdentityKey<?>) o).get();
+        }
+    }
+
+    /**
+     * A per-thread stand-in for a {@link WeakIdentityKey} to look up maps without allocating a
+     * key. It must be cleared after the lookup so that threads do not keep the referent alive.
+     */
+    private static final class IdentityProbe {
+        private static final ThreadLocal<IdentityProbe> probes = ThreadLocal.withInitial(IdentityProbe::new);
+
+        private Object referent;
+        private int hash;
+
+        static IdentityProbe of(Object referent) {
+            var probe = probes.get();
+            probe.referent = referent;
+            probe.hash = System.identityHashCode(referent);
+            return probe;
+        }
+
+        void clear() {
+            referent = null;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof WeakIdentityKey && referent != null && referent == ((WeakIdentityKey<?>) o).get();
+        }
+    }
+
+    /**
+     * Member lookup results, split into one segment per class loader of the owning class.
+     * <p>
+     * Cached members reference their classes and thus their class loader, so a segment must not
+     * be strongly reachable from the cache: loaders are held weakly and segments softly. Once an
+     * app's class loader becomes unreachable its segment is cleared by the GC and the entry is
+     * expunged on the next miss. Each segment is also bounded so that long-lived processes like
+     * system_server do not grow without limit.
+     */
+    private static final class MemberCache<K extends MemberCacheKey, V> {
+        private static final int MAX_SEGMENT_SIZE = 4096;
+
+        private final ConcurrentHashMap<WeakIdentityKey<ClassLoader>, SoftReference<ConcurrentHashMap<K, Optional<V>>>> segments = new ConcurrentHashMap<>();
+        // boot classes are never unloaded
+        private final ConcurrentHashMap<K, Optional<V>> bootSegment = new ConcurrentHashMap<>();
+        private final ReferenceQueue<ClassLoader> queue = new ReferenceQueue<>();
+
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+        private final LongAdder evictions = new LongAdder();
+
+        Optional<V> computeIfAbsent(K key, Function<K, Optional<V>> mappingFunction) {
+            var segment = segmentFor(key.getOwner().getClassLoader());
+            var value = segment.get(key);
+            if (value != null) {
+                hits.increment();
+                return value;
+            }
+            misses.increment();
+            if (segment.size() >= MAX_SEGMENT_SIZE) {
+                var it = segment.keySet().iterator();
+                if (it.hasNext()) {
+                    it.next();
+                    it.remove();
+                    evictions.increment();
+                }
+            }
+            return segment.computeIfAbsent(key, mappingFunction);
+        }
+
+        private ConcurrentHashMap<K, Optional<V>> segmentFor(ClassLoader loader) {
+            if (loader == null || loader == XposedBridge.BOOTCLASSLOADER) return bootSegment;
+            var probe = IdentityProbe.of(loader);
+            var ref = segments.get(probe);
+            probe.clear();
+            var segment = ref != null ? ref.get() : null;
+            if (segment == null) {
+                expungeStaleSegments();
+                segment = new ConcurrentHashMap<>();
+                var newRef = new SoftReference<>(segment);
+                var key = new WeakIdentityKey<>(loader, queue);
+                // another thread may have installed a segment in the meantime
+                ref = segments.merge(key, newRef, (old, n) -> old.get() != null ? old : n);
+                var installed = ref.get();
+                if (installed != null) segment = installed;
+            }
+            return segment;
+        }
+
+        private void expungeStaleSegments() {
+            Reference<? extends ClassLoader> ref;
+            while ((ref = queue.poll()) != null) {
+                segments.remove(ref);
+            }
+            segments.values().removeIf(r -> r.get() == null);
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return "MemberCache{segments=" + segments.size() +
+                    ", hits=" + hits.sum() +
+                    ", misses=" + misses.sum() +
+                    ", evictions=" + evictions.sum() + '}';
+        }
+    }
+
     /**
      * Look up a class with the specified class loader.
      *
@@ -1615,18 +1778,14 @@ public final class XposedHelpers {
         if (key == null)
             throw new NullPointerException("key must not be null");
 
-        HashMap<String, Object> objectFields;
-        synchronized (additionalFields) {
-            objectFields = additionalFields.get(obj);
-            if (objectFields == null) {
-                objectFields = new HashMap<>();
-                additionalFields.put(obj, objectFields);
-            }
+        expungeStaleAdditionalFields();
+        var objectFields = getAdditionalFields(obj);
+        if (objectFields == null) {
+            objectFields = additionalFields.computeIfAbsent(new WeakIdentityKey<>(obj, additionalFieldsQueue),
+                    k -> new ConcurrentHashMap<>(4));
         }
 
-        synchronized (objectFields) {
-            return objectFields.put(key, value);
-        }
+        return unmaskNull(objectFields.put(key, value == null ? NULL_FIELD : value));
     }
 
     /**
@@ -1642,16 +1801,11 @@ public final class XposedHelpers {
         if (key == null)
             throw new NullPointerException("key must not be null");
 
-        HashMap<String, Object> objectFields;
-        synchronized (additionalFields) {
-            objectFields = additionalFields.get(obj);
-            if (objectFields == null)
-                return null;
-        }
+        var objectFields = getAdditionalFields(obj);
+        if (objectFields == null)
+            return null;
 
-        synchronized (objectFields) {
-            return objectFields.get(key);
-        }
+        return unmaskNull(objectFields.get(key));
     }
 
     /**
@@ -1667,15 +1821,28 @@ public final class XposedHelpers {
         if (key == null)
             throw new NullPointerException("key must not be null");
 
-        HashMap<String, Object> objectFields;
-        synchronized (additionalFields) {
-            objectFields = additionalFields.get(obj);
-            if (objectFields == null)
-                return null;
-        }
+        var objectFields = getAdditionalFields(obj);
+        if (objectFields == null)
+            return null;
+
+        return unmaskNull(objectFields.remove(key));
+    }
+
+    private static ConcurrentHashMap<String, Object> getAdditionalFields(Object obj) {
+        var probe = IdentityProbe.of(obj);
+        var objectFields = additionalFields.get(probe);
+        probe.clear();
+        return objectFields;
+    }
+
+    private static Object unmaskNull(Object value) {
+        return value == NULL_FIELD ? null : value;
+    }
 
-        synchronized (objectFields) {
-            return objectFields.remove(key);
+    private static void expungeStaleAdditionalFields() {
+        Reference<?> ref;
+        while ((ref = additionalFieldsQueue.poll()) != null) {
+            additionalFields.remove(ref);
         }
     }
 
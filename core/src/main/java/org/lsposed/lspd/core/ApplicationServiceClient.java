@@ -93,6 +93,32 @@ public class ApplicationServiceClient implements ILSPApplicationService, IBinder
         return null;
     }
 
+    @Override
+    public boolean isHookStatsEnabled() {
+        try {
+            return service.isHookStatsEnabled();
+        } catch (RemoteException | NullPointerException ignored) {
+        }
+        return false;
+    }
+
+    @Override
+    public boolean isMethodHandleDispatchEnabled() {
+        try {
+            return service.isMethodHandleDispatchEnabled();
+        } catch (RemoteException | NullPointerException ignored) {
+        }
+        return true;
+    }
+
+    @Override
+    public void reportHookStats(Bundle stats) {
+        try {
+            service.reportHookStats(stats);
+        } catch (RemoteException | NullPointerException ignored) {
+        }
+    }
+
     @Override
     public IBinder asBinder() {
         return service.asBinder();
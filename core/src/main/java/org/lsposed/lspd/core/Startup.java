@@ -34,6 +34,8 @@ import org.lsposed.lspd.hooker.HandleSystemServerProcessHooker;
 import org.lsposed.lspd.hooker.LoadedApkCtorHooker;
 import org.lsposed.lspd.hooker.LoadedApkCreateCLHooker;
 import org.lsposed.lspd.hooker.OpenDexFileHooker;
+import org.lsposed.lspd.impl.HookStats;
+import org.lsposed.lspd.impl.LSPosedBridge;
 import org.lsposed.lspd.impl.LSPosedContext;
 import org.lsposed.lspd.impl.LSPosedHelper;
 import org.lsposed.lspd.service.ILSPApplicationService;
@@ -76,6 +78,12 @@ public class Startup {
     public static void initXposed(boolean isSystem, String processName, String appDir, ILSPApplicationService service) {
         // init logger
         ApplicationServiceClient.Init(service, processName);
+        if (ApplicationServiceClient.serviceClient != null && ApplicationServiceClient.serviceClient.isHookStatsEnabled()) {
+            HookStats.startReporting();
+        }
+        if (ApplicationServiceClient.serviceClient != null) {
+            LSPosedBridge.useMethodHandles = ApplicationServiceClient.serviceClient.isMethodHandleDispatchEnabled();
+        }
         XposedBridge.initXResources();
         XposedInit.startsSystemServer = isSystem;
         LSPosedContext.isSystemServer = isSystem;
@@ -0,0 +1,216 @@
+/*
+ * This file is part of LSPosed.
+ *
+ * LSPosed is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LSPosed is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LSPosed.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * Copyright (C) 2022 LSPosed Contributors
+ */
+
+package org.lsposed.lspd.impl;
+
+import android.os.Bundle;
+
+import androidx.annotation.NonNull;
+
+import org.lsposed.lspd.core.ApplicationServiceClient;
+import org.lsposed.lspd.util.PreferencesWatcher;
+import org.lsposed.lspd.util.Utils;
+
+import java.lang.reflect.Member;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Optional per-hook instrumentation. When {@link #enabled} is false the dispatcher only pays
+ * for reading the flag; when it is true every hooked call records its total and original
+ * method time, and every hooker its before/after time, into striped counters.
+ */
+public final class HookStats {
+    /**
+     * Whether hooked calls are instrumented. Set once at startup from the daemon config.
+     */
+    public static volatile boolean enabled = false;
+
+    // log2 buckets of nanoseconds, the last one collects everything from 2^38 ns (~4.6 minutes)
+    public static final int HISTOGRAM_BUCKETS = 40;
+
+    // keep binder transactions small, the manager only shows the top entries anyway
+    private static final int MAX_REPORTED_METHODS = 256;
+
+    private static final long REPORT_INTERVAL_MS = 30 * 1000;
+
+    private static final Map<Member, MethodStats> methods = new ConcurrentHashMap<>();
+
+    private HookStats() {
+    }
+
+    public static final class HookerStats {
+        final String name;
+        final LongAdder calls = new LongAdder();
+        final LongAdder beforeNanos = new LongAdder();
+        final LongAdder afterNanos = new LongAdder();
+
+        HookerStats(String name) {
+            this.name = name;
+        }
+
+        public void recordBefore(long nanos) {
+            calls.increment();
+            beforeNanos.add(nanos);
+        }
+
+        public void recordAfter(long nanos) {
+            afterNanos.add(nanos);
+        }
+    }
+
+    public static final class MethodStats {
+        final Member method;
+        final LongAdder calls = new LongAdder();
+        final LongAdder totalNanos = new LongAdder();
+        final LongAdder originalNanos = new LongAdder();
+        final AtomicLongArray histogram = new AtomicLongArray(HISTOGRAM_BUCKETS);
+        private final Map<Object, HookerStats> hookers = new ConcurrentHashMap<>();
+
+        MethodStats(Member method) {
+            this.method = method;
+        }
+
+        /**
+         * @param hooker either a {@link LSPosedBridge.HookerCallback} or a legacy {@code XC_MethodHook}
+         */
+        public HookerStats hooker(@NonNull Object hooker) {
+            var stats = hookers.get(hooker);
+            if (stats == null) {
+                stats = hookers.computeIfAbsent(hooker, k -> new HookerStats(nameOf(k)));
+            }
+            return stats;
+        }
+
+        public void recordOriginal(long nanos) {
+            originalNanos.add(nanos);
+        }
+
+        void record(long nanos) {
+            calls.increment();
+            totalNanos.add(nanos);
+            int bucket = nanos <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(nanos);
+            histogram.incrementAndGet(Math.min(bucket, HISTOGRAM_BUCKETS - 1));
+        }
+    }
+
+    @NonNull
+    static MethodStats of(@NonNull Member method) {
+        return methods.computeIfAbsent(method, MethodStats::new);
+    }
+
+    private static String nameOf(Object hooker) {
+        if (hooker instanceof LSPosedBridge.HookerCallback) {
+            var callback = (LSPosedBridge.HookerCallback) hooker;
+            var clazz = callback.beforeInvocation.getDeclaringClass();
+            if (clazz == LSPosedBridge.class) {
+                clazz = callback.afterInvocation.getDeclaringClass();
+            }
+            return clazz.getName();
+        }
+        return hooker.getClass().getName();
+    }
+
+    /**
+     * Aggregates all counters into a bundle of parallel arrays, sorted by total time:
+     * {@code methods}, {@code calls}, {@code total_ns}, {@code original_ns} and {@code histograms}
+     * (flattened, {@link #HISTOGRAM_BUCKETS} per method), plus {@code hooker_methods} (index into
+     * {@code methods}), {@code hooker_names}, {@code hooker_calls}, {@code hooker_before_ns} and
+     * {@code hooker_after_ns} for the individual hookers, and the preference counters from
+     * {@link PreferencesWatcher#putStats}.
+     */
+    @NonNull
+    public static Bundle snapshot() {
+        var all = new ArrayList<>(methods.values());
+        var totals = new HashMap<MethodStats, Long>(all.size());
+        for (var stats : all) {
+            totals.put(stats, stats.totalNanos.sum());
+        }
+        all.sort((a, b) -> Long.compare(totals.get(b), totals.get(a)));
+        int size = Math.min(all.size(), MAX_REPORTED_METHODS);
+
+        var names = new String[size];
+        var calls = new long[size];
+        var total = new long[size];
+        var original = new long[size];
+        var histograms = new long[size * HISTOGRAM_BUCKETS];
+        var hookerMethods = new ArrayList<Integer>();
+        var hookerNames = new ArrayList<String>();
+        var hookerCalls = new ArrayList<Long>();
+        var hookerBefore = new ArrayList<Long>();
+        var hookerAfter = new ArrayList<Long>();
+        for (int i = 0; i < size; i++) {
+            var stats = all.get(i);
+            names[i] = stats.method.toString();
+            calls[i] = stats.calls.sum();
+            total[i] = totals.get(stats);
+            original[i] = stats.originalNanos.sum();
+            for (int j = 0; j < HISTOGRAM_BUCKETS; j++) {
+                histograms[i * HISTOGRAM_BUCKETS + j] = stats.histogram.get(j);
+            }
+            for (var hooker : stats.hookers.values()) {
+                hookerMethods.add(i);
+                hookerNames.add(hooker.name);
+                hookerCalls.add(hooker.calls.sum());
+                hookerBefore.add(hooker.beforeNanos.sum());
+                hookerAfter.add(hooker.afterNanos.sum());
+            }
+        }
+
+        var bundle = new Bundle();
+        bundle.putStringArray("methods", names);
+        bundle.putLongArray("calls", calls);
+        bundle.putLongArray("total_ns", total);
+        bundle.putLongArray("original_ns", original);
+        bundle.putLongArray("histograms", histograms);
+        bundle.putIntArray("hooker_methods", hookerMethods.stream().mapToInt(Integer::intValue).toArray());
+        bundle.putStringArray("hooker_names", hookerNames.toArray(new String[0]));
+        bundle.putLongArray("hooker_calls", hookerCalls.stream().mapToLong(Long::longValue).toArray());
+        bundle.putLongArray("hooker_before_ns", hookerBefore.stream().mapToLong(Long::longValue).toArray());
+        bundle.putLongArray("hooker_after_ns", hookerAfter.stream().mapToLong(Long::longValue).toArray());
+        PreferencesWatcher.putStats(bundle);
+        return bundle;
+    }
+
+    public static void startReporting() {
+        enabled = true;
+        var reporter = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(REPORT_INTERVAL_MS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                var client = ApplicationServiceClient.serviceClient;
+                if (client == null) return;
+                try {
+                    client.reportHookStats(snapshot());
+                } catch (Throwable t) {
+                    Utils.logW("report hook stats", t);
+                }
+            }
+        }, "LSPosed-HookStats");
+        reporter.setDaemon(true);
+        reporter.start();
+    }
+}
@@ -6,10 +6,14 @@ import androidx.annotation.NonNull;
 
 import org.lsposed.lspd.nativebridge.HookBridge;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Executable;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
+import java.util.concurrent.atomic.AtomicReference;
 
 import de.robv.android.xposed.XposedBridge;
 import io.github.libxposed.api.XposedInterface;
@@ -36,6 +40,13 @@ public class LSPosedBridge {
         getCause = tmp;
     }
 
+    /**
+     * Whether modern hookers are dispatched through pre-bound {@link MethodHandle}s instead of
+     * {@link Method#invoke}. Set from the daemon config when the process starts, only affects
+     * hooks created afterwards.
+     */
+    public static volatile boolean useMethodHandles = true;
+
     public static class HookerCallback {
         @NonNull
         final Method beforeInvocation;
@@ -45,11 +56,53 @@ public class LSPosedBridge {
         final int beforeParams;
         final int afterParams;
 
+        // (BeforeHookCallback)Object and (AfterHookCallback, Object)void, or null for reflection
+        final MethodHandle beforeHandle;
+        final MethodHandle afterHandle;
+
         public HookerCallback(@NonNull Method beforeInvocation, @NonNull Method afterInvocation) {
+            this(beforeInvocation, afterInvocation, useMethodHandles);
+        }
+
+        HookerCallback(@NonNull Method beforeInvocation, @NonNull Method afterInvocation, boolean bindHandles) {
             this.beforeInvocation = beforeInvocation;
             this.afterInvocation = afterInvocation;
             this.beforeParams = beforeInvocation.getParameterCount();
             this.afterParams = afterInvocation.getParameterCount();
+
+            MethodHandle before = null, after = null;
+            if (bindHandles) {
+                try {
+                    before = bindBefore(beforeInvocation);
+                    after = bindAfter(afterInvocation);
+                } catch (Throwable t) {
+                    log("Cannot bind method handles for " + beforeInvocation.getDeclaringClass() + ", falling back to reflection");
+                    before = after = null;
+                }
+            }
+            this.beforeHandle = before;
+            this.afterHandle = after;
+        }
+
+        private static MethodHandle bindBefore(Method method) throws IllegalAccessException {
+            method.setAccessible(true);
+            var handle = MethodHandles.lookup().unreflect(method);
+            if (method.getParameterCount() == 0) {
+                handle = MethodHandles.dropArguments(handle, 0, XposedInterface.BeforeHookCallback.class);
+            }
+            return handle.asType(MethodType.methodType(Object.class, XposedInterface.BeforeHookCallback.class));
+        }
+
+        private static MethodHandle bindAfter(Method method) throws IllegalAccessException {
+            method.setAccessible(true);
+            var handle = MethodHandles.lookup().unreflect(method);
+            var count = method.getParameterCount();
+            if (count == 0) {
+                handle = MethodHandles.dropArguments(handle, 0, XposedInterface.AfterHookCallback.class, Object.class);
+            } else if (count == 1) {
+                handle = MethodHandles.dropArguments(handle, 1, Object.class);
+            }
+            return handle.asType(MethodType.methodType(void.class, XposedInterface.AfterHookCallback.class, Object.class));
         }
     }
 
@@ -62,9 +115,53 @@ public class LSPosedBridge {
         Log.e(TAG, logStr);
     }
 
+    private static final Object[][] EMPTY_SNAPSHOT = {new Object[0], new Object[0]};
+
+    // per-call state of NativeHooker that is never handed to modules
+    private static final class Frame {
+        private Object[] contexts;
+
+        Object[] obtainContexts(int length) {
+            var buffer = contexts;
+            if (buffer == null || buffer.length < length) {
+                contexts = buffer = new Object[length];
+            }
+            return buffer;
+        }
+
+        void recycle() {
+            // do not keep the contexts of modules alive after the call
+            if (contexts != null) {
+                //noinspection ManualArrayFill
+                for (int i = 0; i < contexts.length; ++i) {
+                    contexts[i] = null;
+                }
+            }
+        }
+    }
+
     public static class NativeHooker<T extends Executable> {
         private final Object params;
 
+        private final char[] shorty;
+
+        // A single recycled frame per hooked method. Most hooked methods are never re-entered
+        // concurrently, so this removes the per-call allocation of the context array. Nested or
+        // concurrent calls simply find the slot empty and fall back to a fresh frame. Anything a
+        // module can get hold of, the callback and the arguments, is still created per call.
+        private final AtomicReference<Frame> spare = new AtomicReference<>();
+
+        // Immutable {modern, legacy} callbacks, republished by the native side on every
+        // hook/unhook so that dispatching never takes a lock or builds arrays
+        private volatile Object[][] snapshot = EMPTY_SNAPSHOT;
+
+        // Set by the native side once hooked. Calls already dispatched through this hooker keep
+        // using it, even if the method was unhooked and hooked again with a new hooker meanwhile.
+        private volatile Executable backup;
+
+        // lazily created when HookStats is enabled
+        private HookStats.MethodStats stats;
+
         private NativeHooker(Executable method) {
             var isStatic = Modifier.isStatic(method.getModifiers());
             Object returnType;
@@ -78,19 +175,60 @@ public class LSPosedBridge {
                     returnType,
                     isStatic,
             };
+            // methods taking only primitives can call the backup through JNI without Method.invoke
+            boolean primitiveOnly = true;
+            for (var type : method.getParameterTypes()) {
+                primitiveOnly &= type.isPrimitive();
+            }
+            shorty = primitiveOnly ? LSPosedContext.getExecutableShorty(method) : null;
+        }
+
+        private Object invokeOriginal(T method, boolean isStatic, Object thisObject, Object[] args) throws Throwable {
+            var backup = this.backup;
+            var original = backup != null ? backup : method;
+            if (shorty != null) {
+                return HookBridge.invokeOriginalMethodWithShorty(original, shorty, isStatic, method.getDeclaringClass(), thisObject, args);
+            }
+            return HookBridge.invokeOriginalMethod(original, thisObject, args);
         }
 
         // This method is quite critical. We should try not to use system methods to avoid
         // endless recursive
         public Object callback(Object[] args) throws Throwable {
-            LSPosedHookCallback<T> callback = new LSPosedHookCallback<>();
-
             var array = ((Object[]) params);
 
             var method = (T) array[0];
             var returnType = (Class<?>) array[1];
             var isStatic = (Boolean) array[2];
 
+            Frame frame = spare.getAndSet(null);
+            if (frame == null) {
+                frame = new Frame();
+            }
+
+            try {
+                if (!HookStats.enabled) {
+                    return dispatch(frame, method, returnType, isStatic, args, null);
+                }
+                var stats = this.stats;
+                if (stats == null) {
+                    this.stats = stats = HookStats.of(method);
+                }
+                long start = System.nanoTime();
+                try {
+                    return dispatch(frame, method, returnType, isStatic, args, stats);
+                } finally {
+                    stats.record(System.nanoTime() - start);
+                }
+            } finally {
+                frame.recycle();
+                spare.lazySet(frame);
+            }
+        }
+
+        // stats is null unless instrumentation is enabled
+        private Object dispatch(Frame frame, T method, Class<?> returnType, boolean isStatic, Object[] args, HookStats.MethodStats stats) throws Throwable {
+            var callback = new LSPosedHookCallback<T>();
             callback.method = method;
 
             if (isStatic) {
@@ -105,27 +243,30 @@ public class LSPosedBridge {
                 }
             }
 
-            Object[][] callbacksSnapshot = HookBridge.callbackSnapshot(HookerCallback.class, method);
+            Object[][] callbacksSnapshot = snapshot;
             Object[] modernSnapshot = callbacksSnapshot[0];
             Object[] legacySnapshot = callbacksSnapshot[1];
 
             if (modernSnapshot.length == 0 && legacySnapshot.length == 0) {
                 try {
-                    return HookBridge.invokeOriginalMethod(method, callback.thisObject, callback.args);
+                    return invokeOriginal(method, isStatic, callback.thisObject, callback.args);
                 } catch (InvocationTargetException ite) {
                     throw (Throwable) HookBridge.invokeOriginalMethod(getCause, ite);
                 }
             }
 
-            Object[] ctxArray = new Object[modernSnapshot.length];
+            Object[] ctxArray = frame.obtainContexts(modernSnapshot.length);
             XposedBridge.LegacyApiSupport<T> legacy = null;
 
             // call "before method" callbacks
             int beforeIdx;
             for (beforeIdx = 0; beforeIdx < modernSnapshot.length; beforeIdx++) {
+                var hooker = (HookerCallback) modernSnapshot[beforeIdx];
+                long start = stats != null ? System.nanoTime() : 0;
                 try {
-                    var hooker = (HookerCallback) modernSnapshot[beforeIdx];
-                    if (hooker.beforeParams == 0) {
+                    if (hooker.beforeHandle != null) {
+                        ctxArray[beforeIdx] = (Object) hooker.beforeHandle.invokeExact((XposedInterface.BeforeHookCallback) callback);
+                    } else if (hooker.beforeParams == 0) {
                         ctxArray[beforeIdx] = hooker.beforeInvocation.invoke(null);
                     } else {
                         ctxArray[beforeIdx] = hooker.beforeInvocation.invoke(null, callback);
@@ -137,6 +278,10 @@ public class LSPosedBridge {
                     callback.setResult(null);
                     callback.isSkipped = false;
                     continue;
+                } finally {
+                    if (stats != null) {
+                        stats.hooker(hooker).recordBefore(System.nanoTime() - start);
+                    }
                 }
 
                 if (callback.isSkipped) {
@@ -148,19 +293,23 @@ public class LSPosedBridge {
 
             if (!callback.isSkipped && legacySnapshot.length != 0) {
                 // TODO: Separate classloader
-                legacy = new XposedBridge.LegacyApiSupport<>(callback, legacySnapshot);
+                legacy = new XposedBridge.LegacyApiSupport<>(callback, legacySnapshot, stats);
                 legacy.handleBefore();
             }
 
             // call original method if not requested otherwise
             if (!callback.isSkipped) {
+                long start = stats != null ? System.nanoTime() : 0;
                 try {
-                    var result = HookBridge.invokeOriginalMethod(method, callback.thisObject, callback.args);
+                    var result = invokeOriginal(method, isStatic, callback.thisObject, callback.args);
                     callback.setResult(result);
                 } catch (InvocationTargetException e) {
                     var throwable = (Throwable) HookBridge.invokeOriginalMethod(getCause, e);
                     callback.setThrowable(throwable);
                 }
+                if (stats != null) {
+                    stats.recordOriginal(System.nanoTime() - start);
+                }
             }
 
             // call "after method" callbacks
@@ -168,8 +317,11 @@ public class LSPosedBridge {
                 Object lastResult = callback.getResult();
                 Throwable lastThrowable = callback.getThrowable();
                 var hooker = (HookerCallback) modernSnapshot[afterIdx];
+                long start = stats != null ? System.nanoTime() : 0;
                 try {
-                    if (hooker.afterParams == 0) {
+                    if (hooker.afterHandle != null) {
+                        hooker.afterHandle.invokeExact((XposedInterface.AfterHookCallback) callback, ctxArray[afterIdx]);
+                    } else if (hooker.afterParams == 0) {
                         hooker.afterInvocation.invoke(null);
                     } else if (hooker.afterParams == 1) {
                         hooker.afterInvocation.invoke(null, callback);
@@ -186,6 +338,9 @@ public class LSPosedBridge {
                         callback.setThrowable(lastThrowable);
                     }
                 }
+                if (stats != null) {
+                    stats.hooker(hooker).recordAfter(System.nanoTime() - start);
+                }
             }
 
             if (legacy != null) {
@@ -14,6 +14,7 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 import org.lsposed.lspd.core.BuildConfig;
+import org.lsposed.lspd.impl.utils.DexIndex;
 import org.lsposed.lspd.impl.utils.LSPosedDexParser;
 import org.lsposed.lspd.models.Module;
 import org.lsposed.lspd.nativebridge.HookBridge;
@@ -22,6 +23,8 @@ import org.lsposed.lspd.service.ILSPInjectedModuleService;
 import org.lsposed.lspd.util.LspModuleClassLoader;
 
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.lang.reflect.Constructor;
@@ -31,6 +34,7 @@ import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.lang.reflect.Proxy;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
@@ -237,7 +241,7 @@ public class LSPosedContext implements XposedInterface {
         }
     }
 
-    private static char[] getExecutableShorty(Executable executable) {
+    static char[] getExecutableShorty(Executable executable) {
         var parameterTypes = executable.getParameterTypes();
         var shorty = new char[parameterTypes.length + 1];
         shorty[0] = getTypeShorty(executable instanceof Method ? ((Method) executable).getReturnType() : void.class);
@@ -291,6 +295,102 @@ public class LSPosedContext implements XposedInterface {
         return new LSPosedDexParser(dexData, includeAnnotations);
     }
 
+    /**
+     * Parses {@code length} bytes of a file from {@code offset} in place, e.g. a {@code classes.dex}
+     * stored uncompressed in an apk, without copying the dex into memory.
+     */
+    @NonNull
+    public DexParser parseDex(@NonNull FileDescriptor fd, long offset, long length, boolean includeAnnotations) throws IOException {
+        return LSPosedDexParser.map(fd, offset, length, includeAnnotations);
+    }
+
+    /**
+     * Opens the index of which methods refer to strings, methods and fields of a dex. The daemon
+     * keeps it per module and dex content, so only the first process parsing a new version of
+     * the dex builds it.
+     */
+    @NonNull
+    public DexIndex openDexIndex(@NonNull ByteBuffer dexData) throws IOException {
+        return openDexIndex(new LSPosedDexParser(dexData, false));
+    }
+
+    /**
+     * Like {@link #openDexIndex(ByteBuffer)} for a dex mapped from a file, see
+     * {@link #parseDex(FileDescriptor, long, long, boolean)}.
+     */
+    @NonNull
+    public DexIndex openDexIndex(@NonNull FileDescriptor fd, long offset, long length) throws IOException {
+        return openDexIndex(LSPosedDexParser.map(fd, offset, length, false));
+    }
+
+    private DexIndex openDexIndex(LSPosedDexParser parser) throws IOException {
+        try {
+            var key = DexIndex.keyOf(parser);
+            ParcelFileDescriptor fd = null;
+            try {
+                fd = service.openDexIndex(key);
+            } catch (RemoteException e) {
+                log("Failed to open dex index", e);
+            }
+            if (fd != null) {
+                try {
+                    return DexIndex.load(parser, readDexIndex(fd));
+                } catch (IOException e) {
+                    // stale or broken, rebuilt and replaced below
+                    log("Invalid dex index", e);
+                }
+            }
+            var index = DexIndex.build(parser);
+            storeDexIndex(key, index.getData());
+            return index;
+        } catch (Throwable t) {
+            parser.close();
+            throw t;
+        }
+    }
+
+    private static ByteBuffer readDexIndex(ParcelFileDescriptor fd) throws IOException {
+        try (fd; var channel = new FileInputStream(fd.getFileDescriptor()).getChannel()) {
+            var size = channel.size();
+            if (size > Integer.MAX_VALUE) throw new IOException("Invalid size " + size);
+            try {
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            } catch (IOException e) {
+                // mapping may be denied by sepolicy, reading is enough
+                var buffer = ByteBuffer.allocate((int) size);
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, buffer.position()) <= 0) break;
+                }
+                buffer.position(0);
+                return buffer;
+            }
+        }
+    }
+
+    // the daemon reads the index from a pipe, which does not fit into a binder transaction
+    private void storeDexIndex(String key, ByteBuffer data) {
+        try {
+            var pipe = ParcelFileDescriptor.createPipe();
+            try (var read = pipe[0]) {
+                service.storeDexIndex(key, read);
+            } catch (RemoteException e) {
+                pipe[1].close();
+                throw e;
+            }
+            var writer = new Thread(() -> {
+                try (var out = new ParcelFileDescriptor.AutoCloseOutputStream(pipe[1]); var channel = out.getChannel()) {
+                    while (data.hasRemaining()) channel.write(data);
+                } catch (IOException e) {
+                    log("Failed to store dex index", e);
+                }
+            }, "LSPosed-DexIndex");
+            writer.setDaemon(true);
+            writer.start();
+        } catch (IOException | RemoteException e) {
+            log("Failed to store dex index", e);
+        }
+    }
+
     @NonNull
     @Override
     public ApplicationInfo getApplicationInfo() {
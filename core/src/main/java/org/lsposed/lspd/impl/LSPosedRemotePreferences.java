@@ -2,110 +2,247 @@ package org.lsposed.lspd.impl;
 
 import android.content.SharedPreferences;
 import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
-import android.util.ArraySet;
 
 import androidx.annotation.Nullable;
 
 import org.lsposed.lspd.service.ILSPInjectedModuleService;
 import org.lsposed.lspd.service.IRemotePreferenceCallback;
+import org.lsposed.lspd.util.PreferencesCodec;
 
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
 
 @SuppressWarnings("unchecked")
 public class LSPosedRemotePreferences implements SharedPreferences {
 
-    private final Map<String, Object> mMap = new ConcurrentHashMap<>();
+    // Values are kept unboxed where SharedPreferences has a primitive getter
+    private static final class Entry {
+        static final int OBJECT = 0;
+        static final int BOOLEAN = 1;
+        static final int INT = 2;
+        static final int LONG = 3;
+        static final int FLOAT = 4;
 
-    final HashSet<OnSharedPreferenceChangeListener> mListeners = new HashSet<>();
+        final int type;
+        final long bits;
+        final Object object;
+
+        private Entry(int type, long bits, Object object) {
+            this.type = type;
+            this.bits = bits;
+            this.object = object;
+        }
+
+        static Entry of(Object value) {
+            if (value instanceof Boolean) return new Entry(BOOLEAN, (Boolean) value ? 1 : 0, null);
+            if (value instanceof Integer) return new Entry(INT, (Integer) value, null);
+            if (value instanceof Long) return new Entry(LONG, (Long) value, null);
+            if (value instanceof Float) return new Entry(FLOAT, Float.floatToRawIntBits((Float) value), null);
+            return new Entry(OBJECT, 0, value);
+        }
+
+        Object value() {
+            switch (type) {
+                case BOOLEAN:
+                    return bits != 0;
+                case INT:
+                    return (int) bits;
+                case LONG:
+                    return bits;
+                case FLOAT:
+                    return Float.intBitsToFloat((int) bits);
+                default:
+                    return object;
+            }
+        }
+
+        long get(String key, int expected) {
+            if (type != expected) {
+                throw new ClassCastException(key + " is " + value().getClass().getName());
+            }
+            return bits;
+        }
+    }
+
+    // Never modified once published, readers only load the volatile field
+    private static final class Snapshot {
+        final Map<String, Entry> entries;
+        // built on the first getAll
+        volatile Map<String, ?> all;
+
+        Snapshot(Map<String, Entry> entries) {
+            this.entries = entries;
+        }
+
+        Map<String, ?> getAll() {
+            var map = all;
+            if (map == null) {
+                var sorted = new TreeMap<String, Object>();
+                for (var entry : entries.entrySet()) {
+                    sorted.put(entry.getKey(), entry.getValue().value());
+                }
+                all = map = Collections.unmodifiableSortedMap(sorted);
+            }
+            return map;
+        }
+    }
+
+    private volatile Snapshot mSnapshot = new Snapshot(Collections.emptyMap());
+
+    final Set<OnSharedPreferenceChangeListener> mListeners = new CopyOnWriteArraySet<>();
+
+    // version of the last applied change, guarded by callback
+    private long mVersion = 0;
 
     IRemotePreferenceCallback callback = new IRemotePreferenceCallback.Stub() {
         @Override
-        synchronized public void onUpdate(Bundle bundle) {
-            Set<String> changes = new ArraySet<>();
-            if (bundle.containsKey("delete")) {
-                var deletes = (Set<String>) bundle.getSerializable("delete");
+        public void onUpdate(Bundle bundle) {
+            applyUpdate(bundle.getLong("version", Long.MAX_VALUE),
+                    bundle.containsKey("delete") ? (Set<String>) bundle.getSerializable("delete") : null,
+                    bundle.containsKey("put") ? (Map<String, Object>) bundle.getSerializable("put") : null);
+        }
+    };
+
+    // for the benchmarks, starts empty without a service
+    LSPosedRemotePreferences() {
+    }
+
+    public LSPosedRemotePreferences(ILSPInjectedModuleService service, String group) throws RemoteException {
+        // updates arriving before the snapshot is loaded wait for it
+        synchronized (callback) {
+            Bundle output = service.requestRemotePreferences(group, callback);
+            mVersion = output.getLong("version", 0);
+            Map<String, Object> map = null;
+            var fd = (ParcelFileDescriptor) output.getParcelable("fd");
+            if (fd != null) {
+                map = readPreferencesFile(fd);
+            } else if (output.containsKey("map")) {
+                map = (Map<String, Object>) output.getSerializable("map");
+            }
+            if (map != null) {
+                var entries = new HashMap<String, Entry>(map.size() * 4 / 3 + 1);
+                for (var entry : map.entrySet()) {
+                    entries.put(entry.getKey(), Entry.of(entry.getValue()));
+                }
+                mSnapshot = new Snapshot(entries);
+            }
+        }
+    }
+
+    void applyUpdate(long version, @Nullable Set<String> deletes, @Nullable Map<String, Object> puts) {
+        Set<String> changes = new HashSet<>();
+        synchronized (callback) {
+            // deltas already contained in the initial snapshot
+            if (version <= mVersion) return;
+            mVersion = version;
+            var entries = new HashMap<>(mSnapshot.entries);
+            if (deletes != null) {
                 changes.addAll(deletes);
                 for (var key : deletes) {
-                    mMap.remove(key);
+                    entries.remove(key);
                 }
             }
-            if (bundle.containsKey("put")) {
-                var puts = (Map<String, Object>) bundle.getSerializable("put");
-                mMap.putAll(puts);
+            if (puts != null) {
+                for (var entry : puts.entrySet()) {
+                    entries.put(entry.getKey(), Entry.of(entry.getValue()));
+                }
                 changes.addAll(puts.keySet());
             }
-            synchronized (mListeners) {
-                for (var key : changes) {
-                    mListeners.forEach(listener -> listener.onSharedPreferenceChanged(LSPosedRemotePreferences.this, key));
-                }
+            mSnapshot = new Snapshot(entries);
+        }
+        // listeners may block or read back, neither must stall the next update
+        for (var key : changes) {
+            for (var listener : mListeners) {
+                listener.onSharedPreferenceChanged(this, key);
             }
         }
-    };
+    }
 
-    public LSPosedRemotePreferences(ILSPInjectedModuleService service, String group) throws RemoteException {
-        Bundle output = service.requestRemotePreferences(group, callback);
-        if (output.containsKey("map")) {
-            mMap.putAll((Map<String, Object>) output.getSerializable("map"));
+    private static Map<String, Object> readPreferencesFile(ParcelFileDescriptor fd) throws RemoteException {
+        try (fd; var channel = new FileInputStream(fd.getFileDescriptor()).getChannel()) {
+            var size = channel.size();
+            ByteBuffer buffer;
+            try {
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            } catch (IOException e) {
+                // mapping may be denied by sepolicy, reading is enough
+                buffer = ByteBuffer.allocate((int) size);
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, buffer.position()) <= 0) break;
+                }
+                buffer.flip();
+            }
+            return PreferencesCodec.decodeMap(buffer);
+        } catch (IOException e) {
+            throw new RemoteException(e.getMessage());
         }
     }
 
     @Override
     public Map<String, ?> getAll() {
-        return new TreeMap<>(mMap);
+        return mSnapshot.getAll();
     }
 
     @Nullable
     @Override
     public String getString(String key, @Nullable String defValue) {
-        var v = (String) mMap.getOrDefault(key, defValue);
+        var entry = mSnapshot.entries.get(key);
+        if (entry == null) return defValue;
+        var v = (String) entry.object;
         if (v != null) return v;
+        entry.get(key, Entry.OBJECT);
         return defValue;
     }
 
     @Nullable
     @Override
     public Set<String> getStringSet(String key, @Nullable Set<String> defValues) {
-        var v = (Set<String>) mMap.getOrDefault(key, defValues);
+        var entry = mSnapshot.entries.get(key);
+        if (entry == null) return defValues;
+        var v = (Set<String>) entry.object;
         if (v != null) return v;
+        entry.get(key, Entry.OBJECT);
         return defValues;
     }
 
     @Override
     public int getInt(String key, int defValue) {
-        var v = (Integer) mMap.getOrDefault(key, defValue);
-        if (v != null) return v;
-        return defValue;
+        var entry = mSnapshot.entries.get(key);
+        return entry == null ? defValue : (int) entry.get(key, Entry.INT);
     }
 
     @Override
     public long getLong(String key, long defValue) {
-        var v = (Long) mMap.getOrDefault(key, defValue);
-        if (v != null) return v;
-        return defValue;
+        var entry = mSnapshot.entries.get(key);
+        return entry == null ? defValue : entry.get(key, Entry.LONG);
     }
 
     @Override
     public float getFloat(String key, float defValue) {
-        var v = (Float) mMap.getOrDefault(key, defValue);
-        if (v != null) return v;
-        return defValue;
+        var entry = mSnapshot.entries.get(key);
+        return entry == null ? defValue : Float.intBitsToFloat((int) entry.get(key, Entry.FLOAT));
     }
 
     @Override
     public boolean getBoolean(String key, boolean defValue) {
-        var v = (Boolean) mMap.getOrDefault(key, defValue);
-        if (v != null) return v;
-        return defValue;
+        var entry = mSnapshot.entries.get(key);
+        return entry == null ? defValue : entry.get(key, Entry.BOOLEAN) != 0;
     }
 
     @Override
     public boolean contains(String key) {
-        return mMap.containsKey(key);
+        return mSnapshot.entries.containsKey(key);
     }
 
     @Override
@@ -115,15 +252,11 @@ public class LSPosedRemotePreferences implements SharedPreferences {
 
     @Override
     public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
-        synchronized (mListeners) {
-            mListeners.add(listener);
-        }
+        mListeners.add(listener);
     }
 
     @Override
     public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
-        synchronized (mListeners) {
-            mListeners.remove(listener);
-        }
+        mListeners.remove(listener);
     }
 }
@@ -0,0 +1,216 @@
+/*
+ * This file is part of LSPosed.
+ *
+ * LSPosed is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LSPosed is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LSPosed.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * Copyright (C) 2022 LSPosed Contributors
+ */
+
+package org.lsposed.lspd.impl.utils;
+
+import androidx.annotation.NonNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+import io.github.libxposed.api.utils.DexParser;
+
+/**
+ * Inverted index of the code of a dex: the methods referring to a string, calling a method,
+ * reading a field or writing a field.
+ * <p>
+ * It is built once by the native parser and persisted by the daemon, keyed by {@link #keyOf}, so
+ * later processes only map the file. The file is little endian ints: {@link #MAGIC},
+ * {@link #VERSION}, the string, method and field counts of the dex, then the tables for strings,
+ * callees, read fields and written fields. A table is {@code count + 1} offsets into its postings
+ * followed by the postings, which are method ids sorted by key and method.
+ */
+public final class DexIndex implements Closeable {
+    public static final int MAGIC = 0x4944534c; // LSDI
+    public static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 5;
+    // SHA-1 of everything after it, see the dex header_item
+    private static final int SIGNATURE_OFFSET = 12;
+    private static final int SIGNATURE_SIZE = 20;
+
+    @NonNull
+    private final LSPosedDexParser parser;
+    @NonNull
+    private final ByteBuffer buffer;
+    @NonNull
+    private final IntBuffer data;
+    private final int referrers;
+    private final int callers;
+    private final int readers;
+    private final int writers;
+
+    DexIndex(@NonNull LSPosedDexParser parser, @NonNull ByteBuffer buffer) throws IOException {
+        this.parser = parser;
+        this.buffer = buffer;
+        data = buffer.order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+        try {
+            if (data.get(0) != MAGIC || data.get(1) != VERSION) {
+                throw new IOException("Unknown dex index format");
+            }
+            if (data.get(2) != parser.strings.length || data.get(3) != parser.methodIds.length || data.get(4) != parser.fieldIds.length) {
+                throw new IOException("Dex index does not match the dex");
+            }
+            referrers = HEADER_SIZE;
+            callers = checkTable(referrers, parser.strings.length);
+            readers = checkTable(callers, parser.methodIds.length);
+            writers = checkTable(readers, parser.fieldIds.length);
+            if (checkTable(writers, parser.fieldIds.length) != data.limit()) {
+                throw new IOException("Trailing data in dex index");
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Truncated dex index", e);
+        }
+    }
+
+    /**
+     * Builds the index of an opened dex, the returned index owns the parser.
+     */
+    @NonNull
+    public static DexIndex build(@NonNull LSPosedDexParser parser) throws IOException {
+        return new DexIndex(parser, ByteBuffer.wrap(parser.buildIndex()));
+    }
+
+    /**
+     * Reads an index persisted from {@link #getData}, the returned index owns the parser.
+     */
+    @NonNull
+    public static DexIndex load(@NonNull LSPosedDexParser parser, @NonNull ByteBuffer buffer) throws IOException {
+        return new DexIndex(parser, buffer);
+    }
+
+    /**
+     * Identifies the content of a dex by the signature in its header.
+     */
+    @NonNull
+    public static String keyOf(@NonNull ByteBuffer dex) throws IOException {
+        if (dex.capacity() < SIGNATURE_OFFSET + SIGNATURE_SIZE) {
+            throw new IOException("Invalid dex file");
+        }
+        var key = new StringBuilder(SIGNATURE_SIZE * 2);
+        for (int i = SIGNATURE_OFFSET; i < SIGNATURE_OFFSET + SIGNATURE_SIZE; i++) {
+            var b = dex.get(i);
+            key.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return key.toString();
+    }
+
+    @NonNull
+    public static String keyOf(@NonNull LSPosedDexParser parser) throws IOException {
+        return keyOf(parser.data);
+    }
+
+    // returns the end of the table after checking its offsets and postings
+    private int checkTable(int table, int count) throws IOException {
+        int postings = table + count + 1;
+        int last = 0;
+        for (int i = 0; i <= count; i++) {
+            int offset = data.get(table + i);
+            if (offset < last) throw new IOException("Corrupted dex index");
+            last = offset;
+        }
+        if (postings + last > data.limit()) throw new IOException("Truncated dex index");
+        for (int i = 0; i < last; i++) {
+            int id = data.get(postings + i);
+            if (id < 0 || id >= parser.methodIds.length) throw new IOException("Corrupted dex index");
+        }
+        return postings + last;
+    }
+
+    @NonNull
+    private DexParser.MethodId[] postings(int table, int count, int key) {
+        if (key < 0 || key >= count) return new DexParser.MethodId[0];
+        int postings = table + count + 1;
+        int begin = data.get(table + key);
+        var methods = new DexParser.MethodId[data.get(table + key + 1) - begin];
+        for (int i = 0; i < methods.length; i++) {
+            methods[i] = parser.method(data.get(postings + begin + i));
+        }
+        return methods;
+    }
+
+    // string ids are sorted by their UTF-16 code units, as String.compareTo does
+    private int findString(@NonNull String string) {
+        int low = 0, high = parser.strings.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = parser.string(mid).getString().compareTo(string);
+            if (cmp < 0) low = mid + 1;
+            else if (cmp > 0) high = mid - 1;
+            else return mid;
+        }
+        return -1;
+    }
+
+    /**
+     * The methods loading the string with {@code const-string}.
+     */
+    @NonNull
+    public DexParser.MethodId[] findMethodsReferringString(@NonNull String string) {
+        return postings(referrers, parser.strings.length, findString(string));
+    }
+
+    /**
+     * The methods invoking the method.
+     */
+    @NonNull
+    public DexParser.MethodId[] findCallers(@NonNull DexParser.MethodId method) {
+        return postings(callers, parser.methodIds.length, method.getId());
+    }
+
+    /**
+     * The methods reading the field with {@code iget} or {@code sget}.
+     */
+    @NonNull
+    public DexParser.MethodId[] findFieldReaders(@NonNull DexParser.FieldId field) {
+        return postings(readers, parser.fieldIds.length, field.getId());
+    }
+
+    /**
+     * The methods writing the field with {@code iput} or {@code sput}.
+     */
+    @NonNull
+    public DexParser.MethodId[] findFieldWriters(@NonNull DexParser.FieldId field) {
+        return postings(writers, parser.fieldIds.length, field.getId());
+    }
+
+    /**
+     * The parser of the indexed dex, to resolve the returned ids or look up keys.
+     */
+    @NonNull
+    public DexParser getParser() {
+        return parser;
+    }
+
+    /**
+     * The serialized index, e.g. to persist a freshly built one.
+     */
+    @NonNull
+    public ByteBuffer getData() {
+        return buffer.asReadOnlyBuffer();
+    }
+
+    @Override
+    public void close() {
+        parser.close();
+    }
+}
@@ -1,20 +1,68 @@
 package org.lsposed.lspd.impl.utils;
 
+import android.os.ParcelFileDescriptor;
+
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 import org.lsposed.lspd.nativebridge.DexParserBridge;
 
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
 
 import io.github.libxposed.api.utils.DexParser;
 
+/**
+ * Dex parser that only creates Java objects for the parts of the dex a module actually uses.
+ * <p>
+ * Ids are small objects over the raw indices, created on first access; strings, proto parameters,
+ * annotations and arrays are decoded from the native parser the first time they are asked for
+ * and kept afterwards.
+ * <p>
+ * Reads of the native parser share a lock that {@link #close()} takes exclusively, so visits may
+ * run concurrently and closing waits for them to finish. Reads racing with {@link #close()} wait
+ * for it, reads from the callbacks of a visit reenter the lock of the visit instead.
+ * <p>
+ * Ids obtained before {@link #close()} stay fully usable afterwards, closing decodes whatever they
+ * can still reach. Everything else that needs the native parser, i.e. visits, the id tables of
+ * the parser itself, annotations, arrays and the index, throws {@link IllegalStateException}
+ * once closed.
+ */
 public class LSPosedDexParser implements DexParser {
+    private static final Method classVisitMethod = ClassVisitor.class.getDeclaredMethods()[0];
+    private static final Method fieldVisitMethod = FieldVisitor.class.getDeclaredMethods()[0];
+    private static final Method methodVisitMethod = MethodVisitor.class.getDeclaredMethods()[0];
+    private static final Method methodBodyVisitMethod = MethodBodyVisitor.class.getDeclaredMethods()[0];
+    private static final Method stopMethod = EarlyStopVisitor.class.getDeclaredMethods()[0];
+
+    // shards per thread when visiting in parallel, so uneven classes still balance out
+    private static final int SHARDS_PER_THREAD = 4;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
     long cookie;
+    final int classCount;
 
     @NonNull
     final ByteBuffer data;
+    // raw ids as laid out in the dex
+    @NonNull
+    final int[] typeData;
+    @NonNull
+    final int[] protoData;
+    @NonNull
+    final int[] fieldData;
+    @NonNull
+    final int[] methodData;
+
     @NonNull
     final StringId[] strings;
     @NonNull
@@ -25,93 +73,207 @@ public class LSPosedDexParser implements DexParser {
     final FieldId[] fieldIds;
     @NonNull
     final MethodId[] methodIds;
-    @NonNull
-    final Annotation[] annotations;
-    @NonNull
-    final Array[] arrays;
-
+    @Nullable
+    Annotation[] annotations;
+    @Nullable
+    Array[] arrays;
+
+    /**
+     * Parses a dex in memory. Heap buffers are copied into a direct buffer first, use
+     * {@link #map} to parse a dex in a file without any copy.
+     */
     public LSPosedDexParser(@NonNull ByteBuffer buffer, boolean includeAnnotations) throws IOException {
-        if (!buffer.isDirect() || !buffer.asReadOnlyBuffer().hasArray()) {
-            data = ByteBuffer.allocateDirect(buffer.capacity());
-            data.put(buffer);
+        if (!buffer.isDirect()) {
+            data = ByteBuffer.allocateDirect(buffer.remaining());
+            data.put(buffer.duplicate());
         } else {
             data = buffer;
         }
         try {
-            long[] args = new long[2];
+            long[] args = new long[4];
             args[1] = includeAnnotations ? 1 : 0;
-            var out = (Object[]) DexParserBridge.openDex(buffer, args);
+            var out = (Object[]) DexParserBridge.openDex(data, args);
             cookie = args[0];
-            // out[0]: String[]
-            // out[1]: int[]
-            // out[2]: int[][]
-            // out[3]: int[]
-            // out[4]: int[]
-            // out[5]: int[]
-            // out[6]: Object[]
-            // out[7]: Object[]
-            var strings = (Object[]) out[0];
-            this.strings = new StringId[strings.length];
-            for (int i = 0; i < strings.length; ++i) {
-                this.strings[i] = new LSPosedStringId(i, strings[i]);
-            }
+            // args[2]: number of strings
+            // args[3]: number of class definitions
+            // out[0]: int[], descriptor of each type
+            // out[1]: int[], shorty and return type of each proto
+            // out[2]: int[], declaring class, type and name of each field
+            // out[3]: int[], declaring class, proto and name of each method
+            strings = new StringId[(int) args[2]];
+            classCount = (int) args[3];
+            typeData = (int[]) out[0];
+            typeIds = new TypeId[typeData.length];
+            protoData = (int[]) out[1];
+            protoIds = new ProtoId[protoData.length / 2];
+            fieldData = (int[]) out[2];
+            fieldIds = new FieldId[fieldData.length / 3];
+            methodData = (int[]) out[3];
+            methodIds = new MethodId[methodData.length / 3];
+        } catch (Throwable e) {
+            close();
+            throw new IOException("Invalid dex file", e);
+        }
+    }
 
-            var typeIds = (int[]) out[1];
-            this.typeIds = new TypeId[typeIds.length];
-            for (int i = 0; i < typeIds.length; ++i) {
-                this.typeIds[i] = new LSPosedTypeId(i, typeIds[i]);
+    /**
+     * Parses the dex at {@code offset} of a file, e.g. an uncompressed {@code classes.dex} inside
+     * an apk, by mapping it read-only so that it is read from the page cache. The descriptor is
+     * not kept and can be closed once this returns.
+     */
+    @NonNull
+    public static LSPosedDexParser map(@NonNull FileDescriptor fd, long offset, long length, boolean includeAnnotations) throws IOException {
+        if (offset < 0 || length <= 0 || length > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid range " + offset + "+" + length);
+        }
+        ByteBuffer mapped;
+        // the mapping outlives the duplicated descriptor, the caller's one stays open
+        try (var dup = ParcelFileDescriptor.dup(fd);
+             var channel = new FileInputStream(dup.getFileDescriptor()).getChannel()) {
+            if (offset + length > channel.size()) {
+                throw new IOException("Range " + offset + "+" + length + " exceeds file size " + channel.size());
             }
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+        }
+        return new LSPosedDexParser(mapped, includeAnnotations);
+    }
 
-            var protoIds = (int[][]) out[2];
-            this.protoIds = new ProtoId[protoIds.length];
-            for (int i = 0; i < protoIds.length; ++i) {
-                this.protoIds[i] = new LSPosedProtoId(i, protoIds[i]);
+    @Override
+    public void close() {
+        lock.writeLock().lock();
+        try {
+            if (cookie != 0) {
+                resolvePending();
+                DexParserBridge.closeDex(cookie);
+                cookie = 0;
             }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
 
-            var fieldIds = (int[]) out[3];
-            this.fieldIds = new FieldId[fieldIds.length / 3];
-            for (int i = 0; i < this.fieldIds.length; ++i) {
-                this.fieldIds[i] = new LSPosedFieldId(i, fieldIds[3 * i], fieldIds[3 * i + 1], fieldIds[3 * i + 2]);
-            }
+    // Decodes everything reachable from the ids created so far. Called with the write lock held,
+    // which still allows to take the read lock from this thread. Each pass may create ids only
+    // handled by a later one: methods, fields and protos reach types and strings, types strings.
+    private void resolvePending() {
+        for (int i = 0; i < methodIds.length; ++i) {
+            if (methodIds[i] == null) continue;
+            type(methodData[3 * i]);
+            proto(methodData[3 * i + 1]);
+            string(methodData[3 * i + 2]);
+        }
+        for (int i = 0; i < fieldIds.length; ++i) {
+            if (fieldIds[i] == null) continue;
+            type(fieldData[3 * i]);
+            type(fieldData[3 * i + 1]);
+            string(fieldData[3 * i + 2]);
+        }
+        for (var proto : protoIds) {
+            if (proto == null) continue;
+            proto.getShorty();
+            proto.getReturnType();
+            proto.getParameters();
+        }
+        for (var type : typeIds) {
+            if (type != null) type.getDescriptor();
+        }
+        for (var string : strings) {
+            if (string != null) string.getString();
+        }
+    }
 
-            var methodIds = (int[]) out[4];
-            this.methodIds = new MethodId[methodIds.length / 3];
-            for (int i = 0; i < this.methodIds.length / 3; ++i) {
-                this.methodIds[i] = new LSPosedMethodId(i, methodIds[3 * i], methodIds[3 * i + 1], methodIds[3 * i + 2]);
-            }
+    // A thread holding the read lock, i.e. a visit calling back, reenters it even with close()
+    // waiting for the write lock
+    private long acquire() {
+        lock.readLock().lock();
+        if (cookie == 0) {
+            lock.readLock().unlock();
+            throw new IllegalStateException("Closed");
+        }
+        return cookie;
+    }
 
-            if (out[5] != null && out[6] != null) {
-                var a = (int[]) out[5];
-                var b = (Object[]) out[6];
-                this.annotations = new Annotation[a.length / 2];
-                for (int i = 0; i < this.annotations.length; ++i) {
-                    this.annotations[i] = new LSPosedAnnotation(a[2 * i], a[2 * i + 1], (int[]) b[2 * i], (Object[]) b[2 * i + 1]);
-                }
-            } else {
-                this.annotations = new Annotation[0];
-            }
-            if (out[7] != null) {
-                var b = (Object[]) out[7];
-                this.arrays = new Array[b.length / 2];
-                for (int i = 0; i < this.arrays.length; ++i) {
-                    this.arrays[i] = new LSPosedArray((int[]) b[2 * i], (Object[]) b[2 * i + 1]);
+    private void release() {
+        lock.readLock().unlock();
+    }
+
+    // close() decodes the string if it was waiting for the lock while closing
+    String readString(LSPosedStringId string) {
+        lock.readLock().lock();
+        try {
+            if (string.string != null) return string.string;
+            if (cookie == 0) throw new IllegalStateException("Closed");
+            return DexParserBridge.getString(cookie, string.id);
+        } finally {
+            release();
+        }
+    }
+
+    // Not synchronized on the proto, since close() loads the parameters of every proto while
+    // holding the write lock
+    void loadProtoParameters(LSPosedProtoId proto) {
+        lock.readLock().lock();
+        try {
+            if (proto.parametersLoaded) return;
+            if (cookie == 0) throw new IllegalStateException("Closed");
+            var types = DexParserBridge.getProtoParameters(cookie, proto.id);
+            TypeId[] parameters = null;
+            if (types != null) {
+                parameters = new TypeId[types.length];
+                for (int i = 0; i < types.length; ++i) {
+                    parameters[i] = type(types[i]);
                 }
-            } else {
-                this.arrays = new Array[0];
             }
-        } catch (Throwable e) {
-            throw new IOException("Invalid dex file", e);
+            proto.parameters = parameters;
+            proto.parametersLoaded = true;
+        } finally {
+            release();
         }
     }
 
-    @Override
-    synchronized public void close() {
-        if (cookie != 0) {
-            DexParserBridge.closeDex(cookie);
-            cookie = 0;
+    byte[] buildIndex() {
+        var cookie = acquire();
+        try {
+            return DexParserBridge.buildIndex(cookie);
+        } finally {
+            release();
         }
     }
 
+    // racing threads may create the same id twice, which is harmless since ids compare by index
+    StringId string(int id) {
+        var string = strings[id];
+        if (string == null) strings[id] = string = new LSPosedStringId(id);
+        return string;
+    }
+
+    TypeId type(int id) {
+        var type = typeIds[id];
+        if (type == null) typeIds[id] = type = new LSPosedTypeId(id, typeData[id]);
+        return type;
+    }
+
+    ProtoId proto(int id) {
+        var proto = protoIds[id];
+        if (proto == null)
+            protoIds[id] = proto = new LSPosedProtoId(id, protoData[2 * id], protoData[2 * id + 1]);
+        return proto;
+    }
+
+    FieldId field(int id) {
+        var field = fieldIds[id];
+        if (field == null)
+            fieldIds[id] = field = new LSPosedFieldId(id, fieldData[3 * id + 1], fieldData[3 * id], fieldData[3 * id + 2]);
+        return field;
+    }
+
+    MethodId method(int id) {
+        var method = methodIds[id];
+        if (method == null)
+            methodIds[id] = method = new LSPosedMethodId(id, methodData[3 * id], methodData[3 * id + 1], methodData[3 * id + 2]);
+        return method;
+    }
+
     static class LSPosedId<Self extends Id<Self>> implements Id<Self> {
         final int id;
 
@@ -130,144 +292,130 @@ public class LSPosedDexParser implements DexParser {
         }
     }
 
-    static class LSPosedStringId extends LSPosedId<StringId> implements StringId {
-        @NonNull
-        final String string;
+    class LSPosedStringId extends LSPosedId<StringId> implements StringId {
+        @Nullable
+        String string;
 
-        LSPosedStringId(int id, @NonNull Object string) {
+        LSPosedStringId(int id) {
             super(id);
-            this.string = (String) string;
         }
 
         @NonNull
         @Override
         public String getString() {
+            var string = this.string;
+            if (string == null) this.string = string = readString(this);
             return string;
         }
     }
 
     class LSPosedTypeId extends LSPosedId<TypeId> implements TypeId {
-        @NonNull
-        final StringId descriptor;
+        final int descriptor;
 
         LSPosedTypeId(int id, int descriptor) {
             super(id);
-            this.descriptor = strings[descriptor];
+            this.descriptor = descriptor;
         }
 
         @NonNull
         @Override
         public StringId getDescriptor() {
-            return descriptor;
+            return string(descriptor);
         }
     }
 
     class LSPosedProtoId extends LSPosedId<ProtoId> implements ProtoId {
-        @NonNull
-        final StringId shorty;
-        @NonNull
-        final TypeId returnType;
+        final int shorty;
+        final int returnType;
         @Nullable
-        final TypeId[] parameters;
+        TypeId[] parameters;
+        volatile boolean parametersLoaded = false;
 
-        LSPosedProtoId(int id, @NonNull int[] protoId) {
+        LSPosedProtoId(int id, int shorty, int returnType) {
             super(id);
-            this.shorty = strings[protoId[0]];
-            this.returnType = typeIds[protoId[1]];
-            if (protoId.length > 2) {
-                this.parameters = new TypeId[protoId.length - 2];
-                for (int i = 2; i < parameters.length; ++i) {
-                    this.parameters[i] = typeIds[protoId[i]];
-                }
-            } else {
-                this.parameters = null;
-            }
+            this.shorty = shorty;
+            this.returnType = returnType;
         }
 
         @NonNull
         @Override
         public StringId getShorty() {
-            return shorty;
+            return string(shorty);
         }
 
         @NonNull
         @Override
         public TypeId getReturnType() {
-            return returnType;
+            return type(returnType);
         }
 
         @Nullable
         @Override
         public TypeId[] getParameters() {
+            if (!parametersLoaded) loadProtoParameters(this);
             return parameters;
         }
     }
 
     class LSPosedFieldId extends LSPosedId<FieldId> implements FieldId {
-        @NonNull
-        final TypeId type;
-        @NonNull
-        final TypeId declaringClass;
-        @NonNull
-        final StringId name;
+        final int type;
+        final int declaringClass;
+        final int name;
 
         LSPosedFieldId(int id, int type, int declaringClass, int name) {
             super(id);
-            this.type = typeIds[type];
-            this.declaringClass = typeIds[declaringClass];
-            this.name = strings[name];
+            this.type = type;
+            this.declaringClass = declaringClass;
+            this.name = name;
         }
 
         @NonNull
         @Override
         public TypeId getType() {
-            return type;
+            return type(type);
         }
 
         @NonNull
         @Override
         public TypeId getDeclaringClass() {
-            return declaringClass;
+            return type(declaringClass);
         }
 
         @NonNull
         @Override
         public StringId getName() {
-            return name;
+            return string(name);
         }
     }
 
     class LSPosedMethodId extends LSPosedId<MethodId> implements MethodId {
-        @NonNull
-        final TypeId declaringClass;
-        @NonNull
-        final ProtoId prototype;
-        @NonNull
-        final StringId name;
+        final int declaringClass;
+        final int prototype;
+        final int name;
 
         LSPosedMethodId(int id, int declaringClass, int prototype, int name) {
             super(id);
-            this.declaringClass = typeIds[declaringClass];
-            this.prototype = protoIds[prototype];
-            this.name = strings[name];
+            this.declaringClass = declaringClass;
+            this.prototype = prototype;
+            this.name = name;
         }
 
         @NonNull
         @Override
         public TypeId getDeclaringClass() {
-            return declaringClass;
+            return type(declaringClass);
         }
 
         @NonNull
         @Override
         public ProtoId getPrototype() {
-            return prototype;
+            return proto(prototype);
         }
 
         @NonNull
         @Override
         public StringId getName() {
-            return name;
+            return string(name);
         }
     }
 
@@ -298,7 +446,7 @@ public class LSPosedDexParser implements DexParser {
 
         LSPosedAnnotation(int visibility, int type, @NonNull int[] elements, @NonNull Object[] elementValues) {
             this.visibility = visibility;
-            this.type = typeIds[type];
+            this.type = type(type);
             this.elements = new Element[elementValues.length];
             for (int i = 0; i < elementValues.length; ++i) {
                 this.elements[i] = new LSPosedElement(elements[i * 2], elements[i * 2 + 1], (ByteBuffer) elementValues[i]);
@@ -356,7 +504,7 @@ public class LSPosedDexParser implements DexParser {
 
         LSPosedElement(int name, int valueType, @Nullable ByteBuffer value) {
             super(valueType, value);
-            this.name = strings[name];
+            this.name = string(name);
         }
 
         @NonNull
@@ -369,56 +517,115 @@ public class LSPosedDexParser implements DexParser {
     @NonNull
     @Override
     public StringId[] getStringId() {
+        for (int i = 0; i < strings.length; ++i) string(i);
         return strings;
     }
 
     @NonNull
     @Override
     public TypeId[] getTypeId() {
+        for (int i = 0; i < typeIds.length; ++i) type(i);
         return typeIds;
     }
 
     @NonNull
     @Override
     public FieldId[] getFieldId() {
+        for (int i = 0; i < fieldIds.length; ++i) field(i);
         return fieldIds;
     }
 
     @NonNull
     @Override
     public MethodId[] getMethodId() {
+        for (int i = 0; i < methodIds.length; ++i) method(i);
         return methodIds;
     }
 
     @NonNull
     @Override
     public ProtoId[] getProtoId() {
+        for (int i = 0; i < protoIds.length; ++i) proto(i);
         return protoIds;
     }
 
     @NonNull
     @Override
-    public Annotation[] getAnnotations() {
+    synchronized public Annotation[] getAnnotations() {
+        if (annotations == null) {
+            // out[0]: int[], visibility and type of each annotation
+            // out[1]: Object[], element names and types (int[]) and values (Object[]) of each annotation
+            Object[] out;
+            var cookie = acquire();
+            try {
+                out = (Object[]) DexParserBridge.getAnnotations(cookie);
+            } finally {
+                release();
+            }
+            var a = (int[]) out[0];
+            var b = (Object[]) out[1];
+            var annotations = new Annotation[a.length / 2];
+            for (int i = 0; i < annotations.length; ++i) {
+                annotations[i] = new LSPosedAnnotation(a[2 * i], a[2 * i + 1], (int[]) b[2 * i], (Object[]) b[2 * i + 1]);
+            }
+            this.annotations = annotations;
+        }
         return annotations;
     }
 
     @NonNull
     @Override
-    public Array[] getArrays() {
+    synchronized public Array[] getArrays() {
+        if (arrays == null) {
+            Object[] b;
+            var cookie = acquire();
+            try {
+                b = (Object[]) DexParserBridge.getArrays(cookie);
+            } finally {
+                release();
+            }
+            var arrays = new Array[b.length / 2];
+            for (int i = 0; i < arrays.length; ++i) {
+                arrays[i] = new LSPosedArray((int[]) b[2 * i], (Object[]) b[2 * i + 1]);
+            }
+            this.arrays = arrays;
+        }
         return arrays;
     }
 
     @Override
-    synchronized public void visitDefinedClasses(@NonNull ClassVisitor visitor) {
-        if (cookie == 0) {
-            throw new IllegalStateException("Closed");
-        }
-        var classVisitMethod = ClassVisitor.class.getDeclaredMethods()[0];
-        var fieldVisitMethod = FieldVisitor.class.getDeclaredMethods()[0];
-        var methodVisitMethod = MethodVisitor.class.getDeclaredMethods()[0];
-        var methodBodyVisitMethod = MethodBodyVisitor.class.getDeclaredMethods()[0];
-        var stopMethod = EarlyStopVisitor.class.getDeclaredMethods()[0];
+    public void visitDefinedClasses(@NonNull ClassVisitor visitor) {
+        visitClasses(visitor, 0, classCount);
+    }
+
+    /**
+     * Visits the defined classes on the common fork-join pool. The class definitions are split
+     * into consecutive shards, each visited by its own visitor from {@code factory}: a visitor is
+     * only called from one thread at a time, but visitors of different shards run concurrently
+     * and must not share unsynchronized state. Stopping early only ends the shard of that visitor.
+     */
+    public void visitDefinedClasses(@NonNull Supplier<? extends ClassVisitor> factory) {
+        var pool = ForkJoinPool.commonPool();
+        int shards = Math.min(classCount, pool.getParallelism() * SHARDS_PER_THREAD);
+        if (shards <= 1) {
+            visitDefinedClasses(factory.get());
+            return;
+        }
+        var tasks = new ArrayList<ForkJoinTask<?>>(shards);
+        for (int i = 0; i < shards; ++i) {
+            int begin = (int) ((long) classCount * i / shards);
+            int end = (int) ((long) classCount * (i + 1) / shards);
+            tasks.add(ForkJoinTask.adapt(() -> visitClasses(factory.get(), begin, end)));
+        }
+        ForkJoinTask.invokeAll(tasks);
+    }
 
-        DexParserBridge.visitClass(cookie, visitor, FieldVisitor.class, MethodVisitor.class, classVisitMethod, fieldVisitMethod, methodVisitMethod, methodBodyVisitMethod, stopMethod);
+    private void visitClasses(@NonNull ClassVisitor visitor, int begin, int end) {
+        var cookie = acquire();
+        try {
+            DexParserBridge.visitClass(cookie, visitor, FieldVisitor.class, MethodVisitor.class, classVisitMethod, fieldVisitMethod, methodVisitMethod, methodBodyVisitMethod, stopMethod, begin, end);
+        } finally {
+            release();
+        }
     }
 }
@@ -15,5 +15,19 @@ public class DexParserBridge {
     public static native void closeDex(long cookie);
 
     @FastNative
-    public static native void visitClass(long cookie, Object visitor, Class<DexParser.FieldVisitor> fieldVisitorClass, Class<DexParser.MethodVisitor> methodVisitorClass, Method classVisitMethod, Method fieldVisitMethod, Method methodVisitMethod, Method methodBodyVisitMethod, Method stopMethod);
+    public static native String getString(long cookie, int id);
+
+    @FastNative
+    public static native int[] getProtoParameters(long cookie, int id);
+
+    @FastNative
+    public static native Object getAnnotations(long cookie);
+
+    @FastNative
+    public static native Object getArrays(long cookie);
+
+    public static native byte[] buildIndex(long cookie);
+
+    @FastNative
+    public static native void visitClass(long cookie, Object visitor, Class<DexParser.FieldVisitor> fieldVisitorClass, Class<DexParser.MethodVisitor> methodVisitorClass, Method classVisitMethod, Method fieldVisitMethod, Method methodVisitMethod, Method methodBodyVisitMethod, Method stopMethod, int classBegin, int classEnd);
 }
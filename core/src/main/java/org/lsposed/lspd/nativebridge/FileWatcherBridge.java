@@ -0,0 +1,39 @@
+/*
+ * This file is part of LSPosed.
+ *
+ * LSPosed is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LSPosed is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LSPosed.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * Copyright (C) 2023 LSPosed Contributors
+ */
+
+package org.lsposed.lspd.nativebridge;
+
+public class FileWatcherBridge {
+    public static native boolean init();
+
+    /**
+     * @return the watch descriptor, or a negative errno
+     */
+    public static native int addWatch(String dir);
+
+    public static native void removeWatch(int wd);
+
+    /**
+     * Blocks until files in the watched directories change, then waits until no further event
+     * arrives for {@code settleMillis}, or at most a few times that since the first change, and
+     * returns every changed file once. A path ending with
+     * {@code /} means events were lost and anything in that directory may have changed.
+     */
+    public static native String[] readEvents(int settleMillis);
+}
@@ -16,6 +16,10 @@ public class HookBridge {
 
     public static native Object invokeOriginalMethod(Executable method, Object thisObject, Object... args) throws IllegalAccessException, IllegalArgumentException, InvocationTargetException;
 
+    // Only Method.invoke is avoided: the arguments are still unboxed from and the result boxed
+    // into objects, as the dispatcher passes them around as Object
+    public static native Object invokeOriginalMethodWithShorty(Executable method, char[] shorty, boolean isStatic, Class<?> clazz, Object thisObject, Object... args) throws IllegalAccessException, IllegalArgumentException, InvocationTargetException;
+
     public static native <T> Object invokeSpecialMethod(Executable method, char[] shorty, Class<T> clazz, Object thisObject, Object... args) throws IllegalAccessException, IllegalArgumentException, InvocationTargetException;
 
     @FastNative
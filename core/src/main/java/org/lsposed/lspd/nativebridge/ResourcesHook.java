@@ -34,5 +34,5 @@ public class ResourcesHook {
     public static native ClassLoader buildDummyClassLoader(ClassLoader parent, String resourceSuperClass, String typedArraySuperClass);
 
     @FastNative
-    public static native void rewriteXmlReferencesNative(long parserPtr, XResources origRes, Resources repRes);
+    public static native void rewriteXmlReferencesNative(long parserPtr, XResources origRes, Resources repRes, int table);
 }
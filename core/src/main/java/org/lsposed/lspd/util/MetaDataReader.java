@@ -24,8 +24,10 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.jar.JarFile;
 
 import pxb.android.axml.AxmlReader;
@@ -33,10 +35,38 @@ import pxb.android.axml.AxmlVisitor;
 import pxb.android.axml.NodeVisitor;
 
 public class MetaDataReader {
+    // apk path -> metadata of the last parse, reused as long as the apk is not replaced
+    private static final Map<String, CachedMetaData> cache = new ConcurrentHashMap<>();
+
     private final HashMap<String, Object> metaData = new HashMap<>();
 
+    private static class CachedMetaData {
+        final long size;
+        final long mtime;
+        final Map<String, Object> metaData;
+
+        CachedMetaData(long size, long mtime, Map<String, Object> metaData) {
+            this.size = size;
+            this.mtime = mtime;
+            this.metaData = metaData;
+        }
+    }
+
+    /**
+     * Returns the application meta-data of the apk's manifest. The result is cached per process
+     * and must not be modified.
+     */
     public static Map<String, Object> getMetaData(File apk) throws IOException {
-        return new MetaDataReader(apk).metaData;
+        var path = apk.getAbsolutePath();
+        long size = apk.length();
+        long mtime = apk.lastModified();
+        var cached = cache.get(path);
+        if (cached != null && cached.size == size && cached.mtime == mtime) {
+            return cached.metaData;
+        }
+        var metaData = Collections.unmodifiableMap(new MetaDataReader(apk).metaData);
+        cache.put(path, new CachedMetaData(size, mtime, metaData));
+        return metaData;
     }
 
     private MetaDataReader(File apk) throws IOException {
@@ -0,0 +1,166 @@
+/*
+ * This file is part of LSPosed.
+ *
+ * LSPosed is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LSPosed is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LSPosed.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * Copyright (C) 2023 LSPosed Contributors
+ */
+
+package org.lsposed.lspd.util;
+
+import android.os.Bundle;
+
+import org.lsposed.lspd.nativebridge.FileWatcherBridge;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Process wide inotify watcher for preference files. All files share one native inotify
+ * instance and one thread; events for the same file within {@link #SETTLE_MS} are coalesced
+ * into a single callback. Callbacks only mark the file dirty, reading it again is left to the
+ * next access.
+ */
+public final class PreferencesWatcher {
+    public interface Callback {
+        void onFileChanged();
+    }
+
+    private static final int SETTLE_MS = 100;
+
+    private static final LongAdder changes = new LongAdder();
+    private static final LongAdder reloads = new LongAdder();
+    private static final LongAdder parseNanos = new LongAdder();
+
+    // directory -> watch, guarded by the class
+    private static final Map<String, Directory> directories = new HashMap<>();
+    private static Boolean available = null;
+    private static Thread thread = null;
+
+    private static final class Directory {
+        final int wd;
+        final Map<String, Set<Callback>> files = new HashMap<>();
+
+        Directory(int wd) {
+            this.wd = wd;
+        }
+    }
+
+    private PreferencesWatcher() {
+    }
+
+    /**
+     * @return whether changes of the file will be reported
+     */
+    public static synchronized boolean watch(File file, Callback callback) {
+        if (available == null) {
+            try {
+                available = FileWatcherBridge.init();
+            } catch (Throwable t) {
+                Utils.logW("inotify is not available", t);
+                available = false;
+            }
+        }
+        if (!available) return false;
+        var dirPath = file.getParent();
+        if (dirPath == null) return false;
+        var dir = directories.get(dirPath);
+        if (dir == null) {
+            int wd = FileWatcherBridge.addWatch(dirPath);
+            if (wd < 0) {
+                Utils.logD("Failed to watch " + dirPath + ": errno " + -wd);
+                return false;
+            }
+            dir = new Directory(wd);
+            directories.put(dirPath, dir);
+        }
+        dir.files.computeIfAbsent(file.getAbsolutePath(), k -> new LinkedHashSet<>()).add(callback);
+        if (thread == null) {
+            thread = new Thread(PreferencesWatcher::run, "XSharedPreferences-Watcher");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        return true;
+    }
+
+    public static synchronized void unwatch(File file, Callback callback) {
+        var dirPath = file.getParent();
+        var dir = directories.get(dirPath);
+        if (dir == null) return;
+        var path = file.getAbsolutePath();
+        var callbacks = dir.files.get(path);
+        if (callbacks == null || !callbacks.remove(callback)) return;
+        if (callbacks.isEmpty()) dir.files.remove(path);
+        if (dir.files.isEmpty()) {
+            directories.remove(dirPath);
+            FileWatcherBridge.removeWatch(dir.wd);
+        }
+    }
+
+    private static void run() {
+        while (true) {
+            var paths = FileWatcherBridge.readEvents(SETTLE_MS);
+            if (paths == null) {
+                Utils.logE("Preferences watcher stopped");
+                synchronized (PreferencesWatcher.class) {
+                    available = false;
+                    thread = null;
+                }
+                return;
+            }
+            var callbacks = new LinkedHashSet<Callback>();
+            synchronized (PreferencesWatcher.class) {
+                for (var path : paths) {
+                    if (path.endsWith("/")) {
+                        var dir = directories.get(path.substring(0, path.length() - 1));
+                        if (dir != null) dir.files.values().forEach(callbacks::addAll);
+                    } else {
+                        var dir = directories.get(new File(path).getParent());
+                        var files = dir != null ? dir.files.get(path) : null;
+                        if (files != null) callbacks.addAll(files);
+                    }
+                }
+            }
+            changes.add(callbacks.size());
+            for (var callback : callbacks) {
+                try {
+                    callback.onFileChanged();
+                } catch (Throwable t) {
+                    Utils.logE("Fail in preference change listener", t);
+                }
+            }
+        }
+    }
+
+    /**
+     * Records a read of a preferences file that had to be parsed again.
+     */
+    public static void recordReload(long nanos) {
+        reloads.increment();
+        parseNanos.add(nanos);
+    }
+
+    /**
+     * Puts {@code prefs_changes}, {@code prefs_reloads} and {@code prefs_parse_ns} into the bundle.
+     */
+    public static void putStats(Bundle bundle) {
+        bundle.putLong("prefs_changes", changes.sum());
+        bundle.putLong("prefs_reloads", reloads.sum());
+        bundle.putLong("prefs_parse_ns", parseNanos.sum());
+    }
+}
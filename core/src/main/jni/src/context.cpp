@@ -27,6 +27,7 @@
 #include "jni/native_api.h"
 #include "jni/resources_hook.h"
 #include "jni/dex_parser.h"
+#include "jni/file_watcher.h"
 #include "symbol_cache.h"
 
 using namespace lsplant;
@@ -93,6 +94,7 @@ namespace lspd {
         RegisterHookBridge(env);
         RegisterNativeAPI(env);
         RegisterDexParserBridge(env);
+        RegisterFileWatcherBridge(env);
     }
 
     ScopedLocalRef<jclass>
@@ -21,8 +21,12 @@
 #include "native_util.h"
 #include "slicer/reader.h"
 
+#include <algorithm>
+#include <iterator>
 #include <list>
+#include <memory>
 #include <set>
+#include <shared_mutex>
 #include <parallel_hashmap/phmap.h>
 
 namespace {
@@ -54,7 +58,6 @@ namespace {
         };
 
         struct MethodBody {
-            bool loaded;
             std::vector<jint> referred_strings;
             std::vector<jint> accessed_fields;
             std::vector<jint> assigned_fields;
@@ -67,7 +70,15 @@ namespace {
         phmap::flat_hash_map<jint, std::vector<jint>> method_annotations;
         phmap::flat_hash_map<jint, std::vector<jint>> parameter_annotations;
 
-        phmap::flat_hash_map<jint, MethodBody> method_bodies;
+        // filled by concurrent visits, the pointers stay valid until closed
+        phmap::parallel_flat_hash_map<jint, std::unique_ptr<MethodBody>,
+                phmap::priv::hash_default_hash<jint>, phmap::priv::hash_default_eq<jint>,
+                phmap::priv::Allocator<phmap::priv::Pair<const jint, std::unique_ptr<MethodBody>>>,
+                4, std::shared_mutex> method_bodies;
+
+        // kept until closed, only converted to Java objects when they are asked for
+        AnnotationList annotations;
+        std::vector<Array> arrays;
     };
 
     template<class T>
@@ -193,6 +204,91 @@ namespace {
         return ret;
     }
 
+    std::unique_ptr<DexParser::MethodBody> ParseMethodBody(const dex::Code *code) {
+        static constexpr dex::u1 kOpcodeMask = 0xff;
+        static constexpr dex::u1 kOpcodeNoOp = 0x00;
+        static constexpr dex::u1 kOpcodeConstString = 0x1a;
+        static constexpr dex::u1 kOpcodeConstStringJumbo = 0x1b;
+        static constexpr dex::u1 kOpcodeIGetStart = 0x52;
+        static constexpr dex::u1 kOpcodeIGetEnd = 0x58;
+        static constexpr dex::u1 kOpcodeSGetStart = 0x60;
+        static constexpr dex::u1 kOpcodeSGetEnd = 0x66;
+        static constexpr dex::u1 kOpcodeIPutStart = 0x59;
+        static constexpr dex::u1 kOpcodeIPutEnd = 0x5f;
+        static constexpr dex::u1 kOpcodeSPutStart = 0x67;
+        static constexpr dex::u1 kOpcodeSPutEnd = 0x6d;
+        static constexpr dex::u1 kOpcodeInvokeStart = 0x6e;
+        static constexpr dex::u1 kOpcodeInvokeEnd = 0x72;
+        static constexpr dex::u1 kOpcodeInvokeRangeStart = 0x74;
+        static constexpr dex::u1 kOpcodeInvokeRangeEnd = 0x78;
+        static constexpr dex::u2 kInstPackedSwitchPlayLoad = 0x0100;
+        static constexpr dex::u2 kInstSparseSwitchPlayLoad = 0x0200;
+        static constexpr dex::u2 kInstFillArrayDataPlayLoad = 0x0300;
+
+        auto body = std::make_unique<DexParser::MethodBody>();
+        std::set<jint> referred_strings;
+        std::set<jint> assigned_fields;
+        std::set<jint> accessed_fields;
+        std::set<jint> invoked_methods;
+
+        const dex::u2 *inst = code->insns;
+        const dex::u2 *end = inst + code->insns_size;
+        while (inst < end) {
+            dex::u1 opcode = *inst & kOpcodeMask;
+            body->opcodes.push_back(static_cast<jbyte>(opcode));
+            if (opcode == kOpcodeConstString) {
+                auto str_idx = inst[1];
+                referred_strings.emplace(str_idx);
+            }
+            if (opcode == kOpcodeConstStringJumbo) {
+                auto str_idx = *reinterpret_cast<const dex::u4 *>(&inst[1]);
+                referred_strings.emplace(static_cast<jint>(str_idx));
+            }
+            if ((opcode >= kOpcodeIGetStart && opcode <= kOpcodeIGetEnd) ||
+                (opcode >= kOpcodeSGetStart && opcode <= kOpcodeSGetEnd)) {
+                auto field_idx = inst[1];
+                accessed_fields.emplace(field_idx);
+            }
+            if ((opcode >= kOpcodeIPutStart && opcode <= kOpcodeIPutEnd) ||
+                (opcode >= kOpcodeSPutStart && opcode <= kOpcodeSPutEnd)) {
+                auto field_idx = inst[1];
+                assigned_fields.emplace(field_idx);
+            }
+            if ((opcode >= kOpcodeInvokeStart &&
+                 opcode <= kOpcodeInvokeEnd) ||
+                (opcode >= kOpcodeInvokeRangeStart &&
+                 opcode <= kOpcodeInvokeRangeEnd)) {
+                auto callee = inst[1];
+                invoked_methods.emplace(callee);
+            }
+            if (opcode == kOpcodeNoOp) {
+                if (*inst == kInstPackedSwitchPlayLoad) {
+                    inst += inst[1] * 2 + 3;
+                } else if (*inst == kInstSparseSwitchPlayLoad) {
+                    inst += inst[1] * 4 + 1;
+                } else if (*inst == kInstFillArrayDataPlayLoad) {
+                    inst += (*reinterpret_cast<const dex::u4 *>(&inst[2]) *
+                             inst[1] + 1) /
+                            2 + 3;
+                }
+            }
+            inst += dex::opcode_len[opcode];
+        }
+        body->referred_strings.insert(body->referred_strings.end(),
+                                      referred_strings.begin(),
+                                      referred_strings.end());
+        body->assigned_fields.insert(body->assigned_fields.end(),
+                                     assigned_fields.begin(),
+                                     assigned_fields.end());
+        body->accessed_fields.insert(body->accessed_fields.end(),
+                                     accessed_fields.begin(),
+                                     accessed_fields.end());
+        body->invoked_methods.insert(body->invoked_methods.end(),
+                                     invoked_methods.begin(),
+                                     invoked_methods.end());
+        return body;
+    }
+
     void ParseAnnotationSet(dex::Reader &dex, AnnotationList &annotation_list,
                             ArrayList &array_list, std::vector<jint> &indices,
                             const dex::AnnotationSetItem *annotation_set) {
@@ -230,84 +326,64 @@ namespace lspd {
             return nullptr;
         }
         auto object_class = env->FindClass("java/lang/Object");
-        auto string_class = env->FindClass("java/lang/String");
-        auto int_array_class = env->FindClass("[I");
-        auto out = env->NewObjectArray(8, object_class, nullptr);
-        auto out0 = env->NewObjectArray(static_cast<jint>(dex.StringIds().size()),
-                                        string_class, nullptr);
-        auto strings = dex.StringIds();
-        for (size_t i = 0; i < strings.size(); ++i) {
-            const auto *ptr = dex.dataPtr<dex::u1>(strings[i].string_data_off);
-            [[maybe_unused]] size_t len = dex::ReadULeb128(&ptr);
-            auto str = env->NewStringUTF(reinterpret_cast<const char *>(ptr));
-            env->SetObjectArrayElement(out0, static_cast<jint>(i), str);
-            env->DeleteLocalRef(str);
+        auto out = env->NewObjectArray(4, object_class, nullptr);
+        // strings are decoded on demand by getString, only report how many there are
+        auto string_count = static_cast<jlong>(dex.StringIds().size());
+        env->SetLongArrayRegion(args, 2, 1, &string_count);
+        auto class_count = static_cast<jlong>(dex.ClassDefs().size());
+        env->SetLongArrayRegion(args, 3, 1, &class_count);
+
+        auto types = dex.TypeIds();
+        auto out0 = env->NewIntArray(static_cast<jint>(types.size()));
+        auto *out0_ptr = env->GetIntArrayElements(out0, nullptr);
+        for (size_t i = 0; i < types.size(); ++i) {
+            out0_ptr[i] = static_cast<jint>(types[i].descriptor_idx);
         }
+        env->ReleaseIntArrayElements(out0, out0_ptr, 0);
         env->SetObjectArrayElement(out, 0, out0);
         env->DeleteLocalRef(out0);
 
-        auto types = dex.TypeIds();
-        auto out1 = env->NewIntArray(static_cast<jint>(types.size()));
+        // parameters are read on demand by getProtoParameters
+        auto protos = dex.ProtoIds();
+        auto out1 = env->NewIntArray(static_cast<jint>(2 * protos.size()));
         auto *out1_ptr = env->GetIntArrayElements(out1, nullptr);
-        for (size_t i = 0; i < types.size(); ++i) {
-            out1_ptr[i] = static_cast<jint>(types[i].descriptor_idx);
+        for (size_t i = 0; i < protos.size(); ++i) {
+            out1_ptr[2 * i] = static_cast<jint>(protos[i].shorty_idx);
+            out1_ptr[2 * i + 1] = static_cast<jint>(protos[i].return_type_idx);
         }
         env->ReleaseIntArrayElements(out1, out1_ptr, 0);
         env->SetObjectArrayElement(out, 1, out1);
         env->DeleteLocalRef(out1);
 
-        auto protos = dex.ProtoIds();
-        auto out2 = env->NewObjectArray(static_cast<jint>(protos.size()),
-                                        int_array_class, nullptr);
-        auto empty_type_list = dex::TypeList{.size = 0, .list = {}};
-        for (size_t i = 0; i < protos.size(); ++i) {
-            auto &proto = protos[i];
-            const auto &params = proto.parameters_off ? *dex.dataPtr<dex::TypeList>(
-                    proto.parameters_off) : empty_type_list;
-
-            auto out2i = env->NewIntArray(static_cast<jint>(2 + params.size));
-            auto *out2i_ptr = env->GetIntArrayElements(out2i, nullptr);
-            out2i_ptr[0] = static_cast<jint>(proto.shorty_idx);
-            out2i_ptr[1] = static_cast<jint>(proto.return_type_idx);
-            for (size_t j = 0; j < params.size; ++j) {
-                out2i_ptr[2 + j] = static_cast<jint>(params.list[j].type_idx);
-            }
-            env->ReleaseIntArrayElements(out2i, out2i_ptr, 0);
-            env->SetObjectArrayElement(out2, static_cast<jint>(i), out2i);
-            env->DeleteLocalRef(out2i);
+        auto fields = dex.FieldIds();
+        auto out2 = env->NewIntArray(static_cast<jint>(3 * fields.size()));
+        auto *out2_ptr = env->GetIntArrayElements(out2, nullptr);
+        for (size_t i = 0; i < fields.size(); ++i) {
+            auto &field = fields[i];
+            out2_ptr[3 * i] = static_cast<jint>(field.class_idx);
+            out2_ptr[3 * i + 1] = static_cast<jint>(field.type_idx);
+            out2_ptr[3 * i + 2] = static_cast<jint>(field.name_idx);
         }
+        env->ReleaseIntArrayElements(out2, out2_ptr, 0);
         env->SetObjectArrayElement(out, 2, out2);
         env->DeleteLocalRef(out2);
 
-        auto fields = dex.FieldIds();
-        auto out3 = env->NewIntArray(static_cast<jint>(3 * fields.size()));
+        auto methods = dex.MethodIds();
+        auto out3 = env->NewIntArray(static_cast<jint>(3 * methods.size()));
         auto *out3_ptr = env->GetIntArrayElements(out3, nullptr);
-        for (size_t i = 0; i < fields.size(); ++i) {
-            auto &field = fields[i];
-            out3_ptr[3 * i] = static_cast<jint>(field.class_idx);
-            out3_ptr[3 * i + 1] = static_cast<jint>(field.type_idx);
-            out3_ptr[3 * i + 2] = static_cast<jint>(field.name_idx);
+        for (size_t i = 0; i < methods.size(); ++i) {
+            out3_ptr[3 * i] = static_cast<jint>(methods[i].class_idx);
+            out3_ptr[3 * i + 1] = static_cast<jint>(methods[i].proto_idx);
+            out3_ptr[3 * i + 2] = static_cast<jint>(methods[i].name_idx);
         }
         env->ReleaseIntArrayElements(out3, out3_ptr, 0);
         env->SetObjectArrayElement(out, 3, out3);
         env->DeleteLocalRef(out3);
 
-        auto methods = dex.MethodIds();
-        auto out4 = env->NewIntArray(static_cast<jint>(3 * methods.size()));
-        auto *out4_ptr = env->GetIntArrayElements(out4, nullptr);
-        for (size_t i = 0; i < methods.size(); ++i) {
-            out4_ptr[3 * i] = static_cast<jint>(methods[i].class_idx);
-            out4_ptr[3 * i + 1] = static_cast<jint>(methods[i].proto_idx);
-            out4_ptr[3 * i + 2] = static_cast<jint>(methods[i].name_idx);
-        }
-        env->ReleaseIntArrayElements(out4, out4_ptr, 0);
-        env->SetObjectArrayElement(out, 4, out4);
-        env->DeleteLocalRef(out4);
-
         auto classes = dex.ClassDefs();
         dex.class_data.resize(classes.size());
 
-        AnnotationList annotation_list;
+        auto &annotation_list = dex.annotations;
         ArrayList array_list;
 
         for (size_t i = 0; i < classes.size(); ++i) {
@@ -447,73 +523,117 @@ namespace lspd {
             }
         }
 
-        if (!include_annotations) return out;
+        // the list keeps references stable while parsing nested arrays, but we want indexed access
+        dex.arrays.reserve(array_list.size());
+        std::move(array_list.begin(), array_list.end(), std::back_inserter(dex.arrays));
+
+        return out;
+    }
 
-        auto out5 = env->NewIntArray(static_cast<jint>(2 * annotation_list.size()));
-        auto out6 = env->NewObjectArray(static_cast<jint>(2 * annotation_list.size()), object_class,
+    LSP_DEF_NATIVE_METHOD(jstring, DexParserBridge, getString, jlong cookie, jint id) {
+        auto &dex = *reinterpret_cast<DexParser *>(cookie);
+        auto strings = dex.StringIds();
+        if (id < 0 || static_cast<size_t>(id) >= strings.size()) {
+            env->ThrowNew(env->FindClass("java/lang/IndexOutOfBoundsException"),
+                          "Invalid string id");
+            return nullptr;
+        }
+        const auto *ptr = dex.dataPtr<dex::u1>(strings[id].string_data_off);
+        [[maybe_unused]] size_t len = dex::ReadULeb128(&ptr);
+        return env->NewStringUTF(reinterpret_cast<const char *>(ptr));
+    }
+
+    LSP_DEF_NATIVE_METHOD(jintArray, DexParserBridge, getProtoParameters, jlong cookie, jint id) {
+        auto &dex = *reinterpret_cast<DexParser *>(cookie);
+        auto protos = dex.ProtoIds();
+        if (id < 0 || static_cast<size_t>(id) >= protos.size()) {
+            env->ThrowNew(env->FindClass("java/lang/IndexOutOfBoundsException"),
+                          "Invalid proto id");
+            return nullptr;
+        }
+        auto &proto = protos[id];
+        if (!proto.parameters_off) return nullptr;
+        const auto &params = *dex.dataPtr<dex::TypeList>(proto.parameters_off);
+        auto out = env->NewIntArray(static_cast<jint>(params.size));
+        auto *out_ptr = env->GetIntArrayElements(out, nullptr);
+        for (size_t i = 0; i < params.size; ++i) {
+            out_ptr[i] = static_cast<jint>(params.list[i].type_idx);
+        }
+        env->ReleaseIntArrayElements(out, out_ptr, 0);
+        return out;
+    }
+
+    LSP_DEF_NATIVE_METHOD(jobject, DexParserBridge, getAnnotations, jlong cookie) {
+        auto &dex = *reinterpret_cast<DexParser *>(cookie);
+        auto &annotation_list = dex.annotations;
+        auto object_class = env->FindClass("java/lang/Object");
+        auto out = env->NewObjectArray(2, object_class, nullptr);
+        auto out0 = env->NewIntArray(static_cast<jint>(2 * annotation_list.size()));
+        auto out1 = env->NewObjectArray(static_cast<jint>(2 * annotation_list.size()), object_class,
                                         nullptr);
-        auto out5_ptr = env->GetIntArrayElements(out5, nullptr);
+        auto out0_ptr = env->GetIntArrayElements(out0, nullptr);
         size_t i = 0;
         for (auto &[visibility, type, items]: annotation_list) {
-            auto out6i0 = env->NewIntArray(static_cast<jint>(2 * items.size()));
-            auto out6i0_ptr = env->GetIntArrayElements(out6i0, nullptr);
-            auto out6i1 = env->NewObjectArray(static_cast<jint>(items.size()), object_class,
+            auto out1i0 = env->NewIntArray(static_cast<jint>(2 * items.size()));
+            auto out1i0_ptr = env->GetIntArrayElements(out1i0, nullptr);
+            auto out1i1 = env->NewObjectArray(static_cast<jint>(items.size()), object_class,
                                               nullptr);
             size_t j = 0;
             for (auto&[name, value]: items) {
                 auto &[value_type, value_data] = value;
                 auto java_value = value_data.empty() ? nullptr : env->NewDirectByteBuffer(
                         value_data.data(), value_data.size());
-                env->SetObjectArrayElement(out6i1, static_cast<jint>(j), java_value);
-                out6i0_ptr[2 * j] = name;
-                out6i0_ptr[2 * j + 1] = value_type;
+                env->SetObjectArrayElement(out1i1, static_cast<jint>(j), java_value);
+                out1i0_ptr[2 * j] = name;
+                out1i0_ptr[2 * j + 1] = value_type;
                 env->DeleteLocalRef(java_value);
                 ++j;
             }
-            env->ReleaseIntArrayElements(out6i0, out6i0_ptr, 0);
-            env->SetObjectArrayElement(out6, static_cast<jint>(2 * i), out6i0);
-            env->SetObjectArrayElement(out6, static_cast<jint>(2 * i + 1), out6i1);
-            out5_ptr[2 * i] = visibility;
-            out5_ptr[2 * i + 1] = type;
-            env->DeleteLocalRef(out6i0);
-            env->DeleteLocalRef(out6i1);
+            env->ReleaseIntArrayElements(out1i0, out1i0_ptr, 0);
+            env->SetObjectArrayElement(out1, static_cast<jint>(2 * i), out1i0);
+            env->SetObjectArrayElement(out1, static_cast<jint>(2 * i + 1), out1i1);
+            out0_ptr[2 * i] = visibility;
+            out0_ptr[2 * i + 1] = type;
+            env->DeleteLocalRef(out1i0);
+            env->DeleteLocalRef(out1i1);
             ++i;
         }
-        env->ReleaseIntArrayElements(out5, out5_ptr, 0);
-        env->SetObjectArrayElement(out, 5, out5);
-        env->SetObjectArrayElement(out, 6, out6);
-        env->DeleteLocalRef(out5);
-        env->DeleteLocalRef(out6);
-
-        auto out7 = env->NewObjectArray(static_cast<jint>(2 * array_list.size()), object_class,
-                                        nullptr);
-        i = 0;
-        for (auto &array: array_list) {
+        env->ReleaseIntArrayElements(out0, out0_ptr, 0);
+        env->SetObjectArrayElement(out, 0, out0);
+        env->SetObjectArrayElement(out, 1, out1);
+        env->DeleteLocalRef(out0);
+        env->DeleteLocalRef(out1);
+        return out;
+    }
 
-            auto out7i0 = env->NewIntArray(static_cast<jint>(array.size()));
-            auto out7i0_ptr = env->GetIntArrayElements(out7i0, nullptr);
-            auto out7i1 = env->NewObjectArray(static_cast<jint>(array.size()), object_class,
-                                              nullptr);
+    LSP_DEF_NATIVE_METHOD(jobject, DexParserBridge, getArrays, jlong cookie) {
+        auto &dex = *reinterpret_cast<DexParser *>(cookie);
+        auto object_class = env->FindClass("java/lang/Object");
+        auto out = env->NewObjectArray(static_cast<jint>(2 * dex.arrays.size()), object_class,
+                                       nullptr);
+        size_t i = 0;
+        for (auto &array: dex.arrays) {
+            auto outi0 = env->NewIntArray(static_cast<jint>(array.size()));
+            auto outi0_ptr = env->GetIntArrayElements(outi0, nullptr);
+            auto outi1 = env->NewObjectArray(static_cast<jint>(array.size()), object_class,
+                                             nullptr);
             size_t j = 0;
             for (auto &value: array) {
                 auto &[value_type, value_data] = value;
                 auto java_value = value_data.empty() ? nullptr : env->NewDirectByteBuffer(
                         value_data.data(), value_data.size());
-                out7i0_ptr[j] = value_type;
-                env->SetObjectArrayElement(out7i1, static_cast<jint>(j), java_value);
+                outi0_ptr[j] = value_type;
+                env->SetObjectArrayElement(outi1, static_cast<jint>(j), java_value);
                 env->DeleteLocalRef(java_value);
                 ++j;
             }
-            env->ReleaseIntArrayElements(out7i0, out7i0_ptr, 0);
-            env->SetObjectArrayElement(out7, static_cast<jint>(2 * i), out7i0);
-            env->SetObjectArrayElement(out7, static_cast<jint>(2 * i + 1), out7i1);
-            env->DeleteLocalRef(out7i0);
-            env->DeleteLocalRef(out7i1);
+            env->ReleaseIntArrayElements(outi0, outi0_ptr, 0);
+            env->SetObjectArrayElement(out, static_cast<jint>(2 * i), outi0);
+            env->SetObjectArrayElement(out, static_cast<jint>(2 * i + 1), outi1);
+            env->DeleteLocalRef(outi0);
+            env->DeleteLocalRef(outi1);
             ++i;
         }
-        env->SetObjectArrayElement(out, 7, out7);
-        env->DeleteLocalRef(out7);
-
         return out;
     }
 
@@ -529,31 +649,20 @@ namespace lspd {
                           jobject field_visit_method,
                           jobject method_visit_method,
                           jobject method_body_visit_method,
-                          jobject stop_method) {
-        static constexpr dex::u1 kOpcodeMask = 0xff;
-        static constexpr dex::u1 kOpcodeNoOp = 0x00;
-        static constexpr dex::u1 kOpcodeConstString = 0x1a;
-        static constexpr dex::u1 kOpcodeConstStringJumbo = 0x1b;
-        static constexpr dex::u1 kOpcodeIGetStart = 0x52;
-        static constexpr dex::u1 kOpcodeIGetEnd = 0x58;
-        static constexpr dex::u1 kOpcodeSGetStart = 0x60;
-        static constexpr dex::u1 kOpcodeSGetEnd = 0x66;
-        static constexpr dex::u1 kOpcodeIPutStart = 0x59;
-        static constexpr dex::u1 kOpcodeIPutEnd = 0x5f;
-        static constexpr dex::u1 kOpcodeSPutStart = 0x67;
-        static constexpr dex::u1 kOpcodeSPutEnd = 0x6d;
-        static constexpr dex::u1 kOpcodeInvokeStart = 0x6e;
-        static constexpr dex::u1 kOpcodeInvokeEnd = 0x72;
-        static constexpr dex::u1 kOpcodeInvokeRangeStart = 0x74;
-        static constexpr dex::u1 kOpcodeInvokeRangeEnd = 0x78;
-        static constexpr dex::u2 kInstPackedSwitchPlayLoad = 0x0100;
-        static constexpr dex::u2 kInstSparseSwitchPlayLoad = 0x0200;
-        static constexpr dex::u2 kInstFillArrayDataPlayLoad = 0x0300;
-
+                          jobject stop_method,
+                          jint class_begin,
+                          jint class_end) {
         if (cookie == 0) {
             return;
         }
+        // class data, annotations and classes are only read here, so disjoint ranges of classes
+        // can be visited from different threads; method bodies are cached in a concurrent map
         auto &dex = *reinterpret_cast<DexParser *>(cookie);
+        static const std::vector<jint> kNoAnnotations;
+        auto find_annotations = [](const auto &map, jint idx) -> const std::vector<jint> & {
+            auto it = map.find(idx);
+            return it == map.end() ? kNoAnnotations : it->second;
+        };
         auto *visit_class = env->FromReflectedMethod(class_visit_method);
         auto *visit_field = env->FromReflectedMethod(field_visit_method);
         auto *visit_method = env->FromReflectedMethod(method_visit_method);
@@ -561,9 +670,9 @@ namespace lspd {
         auto *stop = env->FromReflectedMethod(stop_method);
 
         auto classes = dex.ClassDefs();
+        auto classes_end = std::min(static_cast<size_t>(std::max(class_end, 0)), classes.size());
 
-
-        for (size_t i = 0; i < classes.size(); ++i) {
+        for (size_t i = std::max(class_begin, 0); i < classes_end; ++i) {
             auto &class_def = classes[i];
             auto &class_data = dex.class_data[i];
             auto interfaces = env->NewIntArray(
@@ -636,6 +745,7 @@ namespace lspd {
                                                            virtual_methods_access_flags,
                                                            class_annotations
             );
+            if (env->ExceptionCheck()) return;
             env->DeleteLocalRef(interfaces);
             env->DeleteLocalRef(static_fields);
             env->DeleteLocalRef(static_fields_access_flags);
@@ -649,14 +759,15 @@ namespace lspd {
             if (member_visitor && env->IsInstanceOf(member_visitor, field_visitor_class)) {
                 jboolean stopped = JNI_FALSE;
                 for (auto &[fields, fields_access_flags]: {
-                        std::make_tuple(class_data.static_fields,
-                                        class_data.static_fields_access_flags),
-                        std::make_tuple(class_data.instance_fields,
-                                        class_data.instance_fields_access_flags)}) {
+                        std::tie(class_data.static_fields,
+                                 class_data.static_fields_access_flags),
+                        std::tie(class_data.instance_fields,
+                                 class_data.instance_fields_access_flags)}) {
                     for (size_t j = 0; j < fields.size(); j++) {
                         auto field_idx = fields[j];
                         auto access_flags = fields_access_flags[j];
-                        auto &field_annotations = dex.field_annotations[field_idx];
+                        auto &field_annotations = find_annotations(dex.field_annotations,
+                                                                   field_idx);
                         auto annotations = env->NewIntArray(
                                 static_cast<jint>(field_annotations.size()));
                         env->SetIntArrayRegion(annotations, 0,
@@ -665,7 +776,9 @@ namespace lspd {
                         env->CallVoidMethod(member_visitor, visit_field, field_idx,
                                             access_flags, annotations);
                         env->DeleteLocalRef(annotations);
+                        if (env->ExceptionCheck()) return;
                         stopped = env->CallBooleanMethod(member_visitor, stop);
+                        if (env->ExceptionCheck()) return;
                         if (stopped == JNI_TRUE) break;
                     }
                     if (stopped == JNI_TRUE) break;
@@ -674,23 +787,25 @@ namespace lspd {
             if (member_visitor && env->IsInstanceOf(member_visitor, method_visitor_class)) {
                 jboolean stopped = JNI_FALSE;
                 for (auto &[methods, methods_access_flags, methods_code]: {
-                        std::make_tuple(class_data.direct_methods,
-                                        class_data.direct_methods_access_flags,
-                                        class_data.direct_methods_code),
-                        std::make_tuple(class_data.virtual_methods,
-                                        class_data.virtual_methods_access_flags,
-                                        class_data.virtual_methods_code)}) {
+                        std::tie(class_data.direct_methods,
+                                 class_data.direct_methods_access_flags,
+                                 class_data.direct_methods_code),
+                        std::tie(class_data.virtual_methods,
+                                 class_data.virtual_methods_access_flags,
+                                 class_data.virtual_methods_code)}) {
                     for (size_t j = 0; j < methods.size(); j++) {
                         auto method_idx = methods[j];
                         auto access_flags = methods_access_flags[j];
                         auto code = methods_code[j];
-                        auto method_annotation = dex.method_annotations[method_idx];
+                        auto &method_annotation = find_annotations(dex.method_annotations,
+                                                                   method_idx);
                         auto method_annotations = env->NewIntArray(
                                 static_cast<jint>(method_annotation.size()));
                         env->SetIntArrayRegion(method_annotations, 0,
                                                static_cast<jint>(method_annotation.size()),
                                                method_annotation.data());
-                        auto parameter_annotation = dex.parameter_annotations[method_idx];
+                        auto &parameter_annotation = find_annotations(dex.parameter_annotations,
+                                                                      method_idx);
                         auto parameter_annotations = env->NewIntArray(
                                 static_cast<jint>(parameter_annotation.size()));
                         env->SetIntArrayRegion(parameter_annotations, 0,
@@ -703,117 +818,136 @@ namespace lspd {
                                                                   parameter_annotations);
                         env->DeleteLocalRef(method_annotations);
                         env->DeleteLocalRef(parameter_annotations);
+                        if (env->ExceptionCheck()) return;
                         if (body_visitor && code != nullptr) {
-                            auto body = dex.method_bodies[method_idx];
-                            if (!body.loaded) {
-                                std::set<jint> referred_strings;
-                                std::set<jint> assigned_fields;
-                                std::set<jint> accessed_fields;
-                                std::set<jint> invoked_methods;
-
-                                const dex::u2 *inst = code->insns;
-                                const dex::u2 *end = inst + code->insns_size;
-                                while (inst < end) {
-                                    dex::u1 opcode = *inst & kOpcodeMask;
-                                    body.opcodes.push_back(static_cast<jbyte>(opcode));
-                                    if (opcode == kOpcodeConstString) {
-                                        auto str_idx = inst[1];
-                                        referred_strings.emplace(str_idx);
-                                    }
-                                    if (opcode == kOpcodeConstStringJumbo) {
-                                        auto str_idx = *reinterpret_cast<const dex::u4 *>(&inst[1]);
-                                        referred_strings.emplace(static_cast<jint>(str_idx));
-                                    }
-                                    if ((opcode >= kOpcodeIGetStart && opcode <= kOpcodeIGetEnd) ||
-                                        (opcode >= kOpcodeSGetStart && opcode <= kOpcodeSGetEnd)) {
-                                        auto field_idx = inst[1];
-                                        accessed_fields.emplace(field_idx);
-                                    }
-                                    if ((opcode >= kOpcodeIPutStart && opcode <= kOpcodeIPutEnd) ||
-                                        (opcode >= kOpcodeSPutStart && opcode <= kOpcodeSPutEnd)) {
-                                        auto field_idx = inst[1];
-                                        assigned_fields.emplace(field_idx);
-                                    }
-                                    if ((opcode >= kOpcodeInvokeStart &&
-                                         opcode <= kOpcodeInvokeEnd) ||
-                                        (opcode >= kOpcodeInvokeRangeStart &&
-                                         opcode <= kOpcodeInvokeRangeEnd)) {
-                                        auto callee = inst[1];
-                                        invoked_methods.emplace(callee);
-                                    }
-                                    if (opcode == kOpcodeNoOp) {
-                                        if (*inst == kInstPackedSwitchPlayLoad) {
-                                            inst += inst[1] * 2 + 3;
-                                        } else if (*inst == kInstSparseSwitchPlayLoad) {
-                                            inst += inst[1] * 4 + 1;
-                                        } else if (*inst == kInstFillArrayDataPlayLoad) {
-                                            inst += (*reinterpret_cast<const dex::u4 *>(&inst[2]) *
-                                                     inst[1] + 1) /
-                                                    2 + 3;
-                                        }
-                                    }
-                                    inst += dex::opcode_len[opcode];
-                                }
-                                body.referred_strings.insert(body.referred_strings.end(),
-                                                             referred_strings.begin(),
-                                                             referred_strings.end());
-                                body.assigned_fields.insert(body.assigned_fields.end(),
-                                                            assigned_fields.begin(),
-                                                            assigned_fields.end());
-                                body.accessed_fields.insert(body.accessed_fields.end(),
-                                                            accessed_fields.begin(),
-                                                            accessed_fields.end());
-                                body.invoked_methods.insert(body.invoked_methods.end(),
-                                                            invoked_methods.begin(),
-                                                            invoked_methods.end());
-                                body.loaded = true;
-                            }
+                            DexParser::MethodBody *body = nullptr;
+                            dex.method_bodies.lazy_emplace_l(method_idx, [&body](auto &it) {
+                                body = it.second.get();
+                            }, [&body, &method_idx, &code](const auto &ctor) {
+                                auto ptr = ParseMethodBody(code);
+                                body = ptr.get();
+                                ctor(method_idx, std::move(ptr));
+                            });
                             auto referred_strings = env->NewIntArray(
-                                    static_cast<jint>(body.referred_strings.size()));
+                                    static_cast<jint>(body->referred_strings.size()));
                             env->SetIntArrayRegion(referred_strings, 0,
-                                                   static_cast<jint>(body.referred_strings.size()),
-                                                   body.referred_strings.data());
+                                                   static_cast<jint>(body->referred_strings.size()),
+                                                   body->referred_strings.data());
                             auto accessed_fields = env->NewIntArray(
-                                    static_cast<jint>(body.accessed_fields.size()));
+                                    static_cast<jint>(body->accessed_fields.size()));
                             env->SetIntArrayRegion(accessed_fields, 0,
-                                                   static_cast<jint>(body.accessed_fields.size()),
-                                                   body.accessed_fields.data());
+                                                   static_cast<jint>(body->accessed_fields.size()),
+                                                   body->accessed_fields.data());
                             auto assigned_fields = env->NewIntArray(
-                                    static_cast<jint>(body.assigned_fields.size()));
+                                    static_cast<jint>(body->assigned_fields.size()));
                             env->SetIntArrayRegion(assigned_fields, 0,
-                                                   static_cast<jint>(body.assigned_fields.size()),
-                                                   body.assigned_fields.data());
+                                                   static_cast<jint>(body->assigned_fields.size()),
+                                                   body->assigned_fields.data());
                             auto invoked_methods = env->NewIntArray(
-                                    static_cast<jint>(body.invoked_methods.size()));
+                                    static_cast<jint>(body->invoked_methods.size()));
                             env->SetIntArrayRegion(invoked_methods, 0,
-                                                   static_cast<jint>(body.invoked_methods.size()),
-                                                   body.invoked_methods.data());
+                                                   static_cast<jint>(body->invoked_methods.size()),
+                                                   body->invoked_methods.data());
                             auto opcodes = env->NewByteArray(
-                                    static_cast<jint>(body.opcodes.size()));
+                                    static_cast<jint>(body->opcodes.size()));
                             env->SetByteArrayRegion(opcodes, 0,
-                                                    static_cast<jint>(body.opcodes.size()),
-                                                    body.opcodes.data());
+                                                    static_cast<jint>(body->opcodes.size()),
+                                                    body->opcodes.data());
                             env->CallVoidMethod(body_visitor, visit_method_body,
                                                 referred_strings,
                                                 invoked_methods,
                                                 accessed_fields, assigned_fields, opcodes);
+                            env->DeleteLocalRef(referred_strings);
+                            env->DeleteLocalRef(invoked_methods);
+                            env->DeleteLocalRef(accessed_fields);
+                            env->DeleteLocalRef(assigned_fields);
+                            env->DeleteLocalRef(opcodes);
+                            if (env->ExceptionCheck()) return;
                         }
+                        env->DeleteLocalRef(body_visitor);
                         stopped = env->CallBooleanMethod(member_visitor, stop);
+                        if (env->ExceptionCheck()) return;
                         if (stopped == JNI_TRUE) break;
                     }
                     if (stopped == JNI_TRUE) break;
                 }
             }
+            env->DeleteLocalRef(member_visitor);
             if (env->CallBooleanMethod(visitor, stop) == JNI_TRUE) break;
+            if (env->ExceptionCheck()) return;
+        }
+    }
+
+    LSP_DEF_NATIVE_METHOD(jbyteArray, DexParserBridge, buildIndex, jlong cookie) {
+        static constexpr dex::u4 kIndexMagic = 0x4944534c; // LSDI
+        static constexpr dex::u4 kIndexVersion = 1;
+        // key, method
+        using Edges = std::vector<std::pair<dex::u4, dex::u4>>;
+
+        auto &dex = *reinterpret_cast<DexParser *>(cookie);
+        auto string_count = dex.StringIds().size();
+        auto method_count = dex.MethodIds().size();
+        auto field_count = dex.FieldIds().size();
+        Edges referrers, callers, readers, writers;
+        for (auto &class_data: dex.class_data) {
+            for (auto &[methods, methods_code]: {
+                    std::tie(class_data.direct_methods, class_data.direct_methods_code),
+                    std::tie(class_data.virtual_methods, class_data.virtual_methods_code)}) {
+                for (size_t j = 0; j < methods.size(); ++j) {
+                    if (methods_code[j] == nullptr) continue;
+                    auto method_idx = static_cast<dex::u4>(methods[j]);
+                    // parsed without the cache, every body is only needed once here
+                    auto body = ParseMethodBody(methods_code[j]);
+                    for (auto idx: body->referred_strings) referrers.emplace_back(idx, method_idx);
+                    for (auto idx: body->invoked_methods) callers.emplace_back(idx, method_idx);
+                    for (auto idx: body->accessed_fields) readers.emplace_back(idx, method_idx);
+                    for (auto idx: body->assigned_fields) writers.emplace_back(idx, method_idx);
+                }
+            }
         }
+
+        std::vector<dex::u4> out = {kIndexMagic, kIndexVersion,
+                                    static_cast<dex::u4>(string_count),
+                                    static_cast<dex::u4>(method_count),
+                                    static_cast<dex::u4>(field_count)};
+        // count + 1 offsets into the postings, then the postings sorted by key and method
+        auto append_table = [&out](Edges &edges, size_t count) {
+            std::sort(edges.begin(), edges.end());
+            edges.erase(std::lower_bound(edges.begin(), edges.end(),
+                                         Edges::value_type{static_cast<dex::u4>(count), 0}),
+                        edges.end());
+            auto offsets = out.size();
+            out.resize(offsets + count + 1);
+            size_t k = 0;
+            for (size_t key = 0; key <= count; ++key) {
+                while (k < edges.size() && edges[k].first < key) ++k;
+                out[offsets + key] = static_cast<dex::u4>(k);
+            }
+            for (auto &[key, method]: edges) out.push_back(method);
+        };
+        append_table(referrers, string_count);
+        append_table(callers, method_count);
+        append_table(readers, field_count);
+        append_table(writers, field_count);
+
+        auto size = static_cast<jint>(out.size() * sizeof(dex::u4));
+        auto result = env->NewByteArray(size);
+        if (result == nullptr) return nullptr;
+        env->SetByteArrayRegion(result, 0, size, reinterpret_cast<const jbyte *>(out.data()));
+        return result;
     }
 
     static JNINativeMethod gMethods[] = {
             LSP_NATIVE_METHOD(DexParserBridge, openDex,
                               "(Ljava/nio/ByteBuffer;[J)Ljava/lang/Object;"),
             LSP_NATIVE_METHOD(DexParserBridge, closeDex, "(J)V"),
+            LSP_NATIVE_METHOD(DexParserBridge, getString, "(JI)Ljava/lang/String;"),
+            LSP_NATIVE_METHOD(DexParserBridge, getProtoParameters, "(JI)[I"),
+            LSP_NATIVE_METHOD(DexParserBridge, getAnnotations, "(J)Ljava/lang/Object;"),
+            LSP_NATIVE_METHOD(DexParserBridge, getArrays, "(J)Ljava/lang/Object;"),
+            LSP_NATIVE_METHOD(DexParserBridge, buildIndex, "(J)[B"),
             LSP_NATIVE_METHOD(DexParserBridge, visitClass,
-                              "(JLjava/lang/Object;Ljava/lang/Class;Ljava/lang/Class;Ljava/lang/reflect/Method;Ljava/lang/reflect/Method;Ljava/lang/reflect/Method;Ljava/lang/reflect/Method;Ljava/lang/reflect/Method;)V"),
+                              "(JLjava/lang/Object;Ljava/lang/Class;Ljava/lang/Class;Ljava/lang/reflect/Method;Ljava/lang/reflect/Method;Ljava/lang/reflect/Method;Ljava/lang/reflect/Method;Ljava/lang/reflect/Method;II)V"),
     };
 
 
@@ -0,0 +1,166 @@
+/*
+ * This file is part of LSPosed.
+ *
+ * LSPosed is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LSPosed is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LSPosed.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * Copyright (C) 2023 LSPosed Contributors
+ */
+
+
+#include "file_watcher.h"
+#include "native_util.h"
+
+#include <parallel_hashmap/phmap.h>
+#include <poll.h>
+#include <sys/inotify.h>
+#include <algorithm>
+#include <chrono>
+#include <mutex>
+#include <string>
+#include <vector>
+
+namespace {
+    constexpr uint32_t kWatchMask = IN_CLOSE_WRITE | IN_CREATE | IN_DELETE | IN_MOVED_FROM |
+                                    IN_MOVED_TO | IN_ONLYDIR;
+    constexpr std::string_view kBackupSuffix = ".bak";
+    // a batch is returned at the latest this many settle periods after its first change
+    constexpr int kMaxSettlePeriods = 4;
+
+    int inotify_fd = -1;
+    std::mutex watch_lock;
+    phmap::flat_hash_map<int, std::string> watch_dirs;
+    // only touched by the thread in readEvents
+    phmap::flat_hash_set<std::string> pending_backups;
+}
+
+namespace lspd {
+    LSP_DEF_NATIVE_METHOD(jboolean, FileWatcherBridge, init) {
+        if (inotify_fd < 0) {
+            inotify_fd = inotify_init1(IN_CLOEXEC);
+            if (inotify_fd < 0) PLOGE("inotify_init1");
+        }
+        return inotify_fd >= 0;
+    }
+
+    LSP_DEF_NATIVE_METHOD(jint, FileWatcherBridge, addWatch, jstring jdir) {
+        lsplant::JUTFString dir(env, jdir);
+        std::lock_guard lk(watch_lock);
+        int wd = inotify_add_watch(inotify_fd, dir.get(), kWatchMask);
+        if (wd < 0) return -errno;
+        watch_dirs[wd] = dir.get();
+        return wd;
+    }
+
+    LSP_DEF_NATIVE_METHOD(void, FileWatcherBridge, removeWatch, jint wd) {
+        // the directory is dropped once IN_IGNORED is read, so late events still resolve
+        inotify_rm_watch(inotify_fd, wd);
+    }
+
+    // SharedPreferencesImpl renames the file to .bak, writes the new one and deletes the backup
+    // when done, so while a backup exists the file is incomplete and only its removal counts.
+    LSP_DEF_NATIVE_METHOD(jobjectArray, FileWatcherBridge, readEvents, jint settle_ms) {
+        alignas(inotify_event) char buf[4096];
+        std::vector<std::string> changed;
+        phmap::flat_hash_set<std::string> seen;
+        auto add = [&](std::string &&path) {
+            if (seen.emplace(path).second) changed.emplace_back(std::move(path));
+        };
+        // block for the first change, then keep collecting until the directory is quiet, but
+        // at most for a few settle periods so that a steady stream of writes is still reported
+        std::chrono::steady_clock::time_point deadline;
+        int timeout = -1;
+        while (true) {
+            pollfd pfd{inotify_fd, POLLIN, 0};
+            int ret = poll(&pfd, 1, timeout);
+            if (ret < 0) {
+                if (errno == EINTR) continue;
+                PLOGE("poll inotify");
+                return nullptr;
+            }
+            if (ret == 0) break;
+            auto len = read(inotify_fd, buf, sizeof(buf));
+            if (len < 0) {
+                if (errno == EINTR || errno == EAGAIN) continue;
+                PLOGE("read inotify");
+                return nullptr;
+            }
+            for (char *ptr = buf; ptr < buf + len;) {
+                const auto *event = reinterpret_cast<const inotify_event *>(ptr);
+                ptr += sizeof(inotify_event) + event->len;
+                if (event->mask & IN_Q_OVERFLOW) {
+                    // events were lost, report every directory as a whole
+                    std::lock_guard lk(watch_lock);
+                    for (const auto &[_, dir]: watch_dirs) add(dir + '/');
+                    pending_backups.clear();
+                    continue;
+                }
+                std::string dir;
+                {
+                    std::lock_guard lk(watch_lock);
+                    auto it = watch_dirs.find(event->wd);
+                    if (it == watch_dirs.end()) continue;
+                    dir = it->second + '/';
+                    if (event->mask & IN_IGNORED) watch_dirs.erase(it);
+                }
+                if (event->mask & IN_IGNORED) {
+                    std::vector<std::string> stale;
+                    for (const auto &path: pending_backups) {
+                        if (path.starts_with(dir)) stale.emplace_back(path);
+                    }
+                    for (const auto &path: stale) pending_backups.erase(path);
+                    continue;
+                }
+                if (event->len == 0) continue;
+                auto path = dir + event->name;
+                if (path.ends_with(kBackupSuffix)) {
+                    path.resize(path.size() - kBackupSuffix.size());
+                    if (event->mask & (IN_CREATE | IN_MOVED_TO)) {
+                        pending_backups.emplace(std::move(path));
+                    } else if (event->mask & (IN_DELETE | IN_MOVED_FROM)) {
+                        pending_backups.erase(path);
+                        add(std::move(path));
+                    }
+                } else if (event->mask & (IN_CLOSE_WRITE | IN_MOVED_TO | IN_DELETE) &&
+                           !pending_backups.contains(path)) {
+                    add(std::move(path));
+                }
+            }
+            if (changed.empty()) continue;
+            auto now = std::chrono::steady_clock::now();
+            if (timeout < 0) deadline = now + std::chrono::milliseconds(settle_ms) * kMaxSettlePeriods;
+            auto left = std::chrono::duration_cast<std::chrono::milliseconds>(deadline - now).count();
+            if (left <= 0) break;
+            timeout = static_cast<int>(std::min<decltype(left)>(settle_ms, left));
+        }
+        auto string_class = env->FindClass("java/lang/String");
+        auto out = env->NewObjectArray(static_cast<jint>(changed.size()), string_class, nullptr);
+        for (size_t i = 0; i < changed.size(); ++i) {
+            auto str = env->NewStringUTF(changed[i].data());
+            env->SetObjectArrayElement(out, static_cast<jint>(i), str);
+            env->DeleteLocalRef(str);
+        }
+        return out;
+    }
+
+    static JNINativeMethod gMethods[] = {
+            LSP_NATIVE_METHOD(FileWatcherBridge, init, "()Z"),
+            LSP_NATIVE_METHOD(FileWatcherBridge, addWatch, "(Ljava/lang/String;)I"),
+            LSP_NATIVE_METHOD(FileWatcherBridge, removeWatch, "(I)V"),
+            LSP_NATIVE_METHOD(FileWatcherBridge, readEvents, "(I)[Ljava/lang/String;"),
+    };
+
+    void RegisterFileWatcherBridge(JNIEnv *env) {
+        REGISTER_LSP_NATIVE_METHODS(FileWatcherBridge);
+    }
+}
@@ -29,14 +29,27 @@
 using namespace lsplant;
 
 namespace {
+JavaVM *vm = nullptr;
+
 struct ModuleCallback {
     jmethodID before_method;
-    jmethodID after_method;
+    jobject callback;
 };
 
 struct HookItem {
     std::multimap<jint, jobject, std::greater<>> legacy_callbacks;
     std::multimap<jint, ModuleCallback, std::greater<>> modern_callbacks;
+    // the NativeHooker instance, whose snapshot field is republished on every change
+    jobject hooker = nullptr;
+    // set under the backup monitor once the trampoline was removed, never cleared
+    bool retired = false;
+    ~HookItem() {
+        // the last reference is always dropped by a native method, so the thread is attached
+        JNIEnv *env = nullptr;
+        vm->GetEnv(reinterpret_cast<void **>(&env), JNI_VERSION_1_6);
+        if (hooker) env->DeleteGlobalRef(hooker);
+        if (auto bk = backup.load(std::memory_order_relaxed); bk && bk != FAILED) env->DeleteGlobalRef(bk);
+    }
 private:
     std::atomic<jobject> backup {nullptr};
     static_assert(decltype(backup)::is_always_lock_free);
@@ -63,12 +76,166 @@ template <class K, class V, class Hash = phmap::priv::hash_default_hash<K>,
         class Alloc = phmap::priv::Allocator<phmap::priv::Pair<const K, V>>, size_t N = 4>
 using SharedHashMap = phmap::parallel_flat_hash_map<K, V, Hash, Eq, Alloc, N, std::shared_mutex>;
 
-SharedHashMap<jmethodID, std::unique_ptr<HookItem>> hooked_methods;
+// Every native method copies the item out under the map lock and keeps it for as long as it uses
+// the item or its backup, so a retired item is freed by whoever drops the last reference.
+SharedHashMap<jmethodID, std::shared_ptr<HookItem>> hooked_methods;
+
+std::shared_ptr<HookItem> FindHookItem(jmethodID target) {
+    std::shared_ptr<HookItem> hook_item;
+    hooked_methods.if_contains(target, [&hook_item](const auto &it) {
+        hook_item = it.second;
+    });
+    return hook_item;
+}
 
 jmethodID invoke = nullptr;
-jmethodID callback_ctor = nullptr;
+jclass invocation_target_exception = nullptr;
+jmethodID invocation_target_exception_ctor = nullptr;
+
+struct BoxedType {
+    jclass clazz;
+    jmethodID unbox;
+    jmethodID box;
+};
+
+// indexed by shorty char
+struct {
+    BoxedType I, D, J, F, S, B, C, Z;
+
+    BoxedType *operator[](jchar type) {
+        switch (type) {
+            case 'I': return &I;
+            case 'D': return &D;
+            case 'J': return &J;
+            case 'F': return &F;
+            case 'S': return &S;
+            case 'B': return &B;
+            case 'C': return &C;
+            case 'Z': return &Z;
+            default: return nullptr;
+        }
+    }
+} boxed_types;
+
+BoxedType InitBoxedType(JNIEnv *env, const char *name, const char *unbox, const char *unbox_sig, const char *box_sig) {
+    auto clazz = env->FindClass(name);
+    BoxedType type {
+        .clazz = (jclass) env->NewGlobalRef(clazz),
+        .unbox = env->GetMethodID(clazz, unbox, unbox_sig),
+        .box = env->GetStaticMethodID(clazz, "valueOf", box_sig),
+    };
+    env->DeleteLocalRef(clazz);
+    return type;
+}
+
+// Unboxes args according to shorty, returns false with an exception pending on failure. With
+// exact set, all parameters must be primitives whose arguments already have the exact box type,
+// and false is returned without an exception otherwise, so that the caller can fall back to
+// Method.invoke.
+bool UnboxArguments(JNIEnv *env, const jchar *shorty, jint param_len, jobjectArray args, jvalue *out, bool exact) {
+    for (jint i = 0; i != param_len; ++i) {
+        auto element = env->GetObjectArrayElement(args, i);
+        auto type = boxed_types[shorty[i + 1]];
+        if (!type) {
+            // references cannot be type checked cheaply here
+            if (exact) {
+                env->DeleteLocalRef(element);
+                return false;
+            }
+            out[i].l = element;
+            continue;
+        }
+        // boxed types are final, so instanceof is an exact type check
+        if (exact && (element == nullptr || !env->IsInstanceOf(element, type->clazz))) {
+            env->DeleteLocalRef(element);
+            return false;
+        }
+        switch (shorty[i + 1]) {
+            case 'I': out[i].i = env->CallIntMethod(element, type->unbox); break;
+            case 'D': out[i].d = env->CallDoubleMethod(element, type->unbox); break;
+            case 'J': out[i].j = env->CallLongMethod(element, type->unbox); break;
+            case 'F': out[i].f = env->CallFloatMethod(element, type->unbox); break;
+            case 'S': out[i].s = env->CallShortMethod(element, type->unbox); break;
+            case 'B': out[i].b = env->CallByteMethod(element, type->unbox); break;
+            case 'C': out[i].c = env->CallCharMethod(element, type->unbox); break;
+            case 'Z': out[i].z = env->CallBooleanMethod(element, type->unbox); break;
+        }
+        env->DeleteLocalRef(element);
+        if (env->ExceptionCheck()) return false;
+    }
+    return true;
+}
+
+jvalue CallWithShorty(JNIEnv *env, jchar return_type, bool is_static, jobject thiz, jclass cls,
+                      jmethodID method, const jvalue *args) {
+    jvalue result {};
+    switch (return_type) {
+        case 'I': result.i = is_static ? env->CallStaticIntMethodA(cls, method, args) : env->CallNonvirtualIntMethodA(thiz, cls, method, args); break;
+        case 'D': result.d = is_static ? env->CallStaticDoubleMethodA(cls, method, args) : env->CallNonvirtualDoubleMethodA(thiz, cls, method, args); break;
+        case 'J': result.j = is_static ? env->CallStaticLongMethodA(cls, method, args) : env->CallNonvirtualLongMethodA(thiz, cls, method, args); break;
+        case 'F': result.f = is_static ? env->CallStaticFloatMethodA(cls, method, args) : env->CallNonvirtualFloatMethodA(thiz, cls, method, args); break;
+        case 'S': result.s = is_static ? env->CallStaticShortMethodA(cls, method, args) : env->CallNonvirtualShortMethodA(thiz, cls, method, args); break;
+        case 'B': result.b = is_static ? env->CallStaticByteMethodA(cls, method, args) : env->CallNonvirtualByteMethodA(thiz, cls, method, args); break;
+        case 'C': result.c = is_static ? env->CallStaticCharMethodA(cls, method, args) : env->CallNonvirtualCharMethodA(thiz, cls, method, args); break;
+        case 'Z': result.z = is_static ? env->CallStaticBooleanMethodA(cls, method, args) : env->CallNonvirtualBooleanMethodA(thiz, cls, method, args); break;
+        case 'L': result.l = is_static ? env->CallStaticObjectMethodA(cls, method, args) : env->CallNonvirtualObjectMethodA(thiz, cls, method, args); break;
+        default:
+        case 'V':
+            if (is_static) env->CallStaticVoidMethodA(cls, method, args);
+            else env->CallNonvirtualVoidMethodA(thiz, cls, method, args);
+            break;
+    }
+    return result;
+}
+
+jobject BoxResult(JNIEnv *env, jchar return_type, jvalue value) {
+    if (env->ExceptionCheck()) return nullptr;
+    auto type = boxed_types[return_type];
+    if (!type) return return_type == 'L' ? value.l : nullptr;
+    return env->CallStaticObjectMethodA(type->clazz, type->box, &value);
+}
 jfieldID before_method_field = nullptr;
-jfieldID after_method_field = nullptr;
+jfieldID snapshot_field = nullptr;
+jfieldID backup_field = nullptr;
+
+// Builds an immutable copy of both callback lists and publishes it to the volatile snapshot
+// field of the hooker. Readers then only need a single field load, and old snapshots are
+// reclaimed by the GC once no invocation still uses them. Must be called with the backup
+// monitor held so that writers are serialized.
+void PublishSnapshot(JNIEnv *env, HookItem *hook_item) {
+    auto object_class = env->FindClass("java/lang/Object");
+    auto array_class = env->FindClass("[Ljava/lang/Object;");
+    auto res = env->NewObjectArray(2, array_class, nullptr);
+    auto modern = env->NewObjectArray((jsize) hook_item->modern_callbacks.size(), object_class, nullptr);
+    auto legacy = env->NewObjectArray((jsize) hook_item->legacy_callbacks.size(), object_class, nullptr);
+    for (jsize i = 0; auto callback: hook_item->modern_callbacks) {
+        env->SetObjectArrayElement(modern, i++, callback.second.callback);
+    }
+    for (jsize i = 0; auto callback: hook_item->legacy_callbacks) {
+        env->SetObjectArrayElement(legacy, i++, callback.second);
+    }
+    env->SetObjectArrayElement(res, 0, modern);
+    env->SetObjectArrayElement(res, 1, legacy);
+    env->SetObjectField(hook_item->hooker, snapshot_field, res);
+    env->DeleteLocalRef(modern);
+    env->DeleteLocalRef(legacy);
+    env->DeleteLocalRef(res);
+    env->DeleteLocalRef(array_class);
+    env->DeleteLocalRef(object_class);
+}
+
+// Once the last callback is gone, restore the original entry point so that the method no longer
+// pays for the dispatcher at all. The next hookMethod creates a fresh item and hooks again, while
+// this one is freed together with its backup once the callers still holding it are done.
+// Must be called with the backup monitor held.
+void RetireIfEmpty(JNIEnv *env, jobject hook_method, jmethodID target, HookItem *hook_item) {
+    if (!hook_item->modern_callbacks.empty() || !hook_item->legacy_callbacks.empty()) return;
+    if (!lsplant::UnHook(env, hook_method)) return;
+    hook_item->retired = true;
+    hooked_methods.erase_if(target, [&](auto &it) {
+        return it.second.get() == hook_item;
+    });
+}
 }
 
 namespace lspd {
@@ -91,70 +258,86 @@ LSP_DEF_NATIVE_METHOD(jboolean, HookBridge, hookMethod, jboolean useModernApi, j
     };
 #endif
     auto target = env->FromReflectedMethod(hookMethod);
-    HookItem * hook_item = nullptr;
-    hooked_methods.lazy_emplace_l(target, [&hook_item](auto &it) {
-        hook_item = it.second.get();
-    }, [&hook_item, &target, &newHook](const auto &ctor) {
-        auto ptr = std::make_unique<HookItem>();
-        hook_item = ptr.get();
-        ctor(target, std::move(ptr));
-        newHook = true;
-    });
-    if (newHook) {
-        auto init = env->GetMethodID(hooker, "<init>", "(Ljava/lang/reflect/Executable;)V");
-        auto callback_method = env->ToReflectedMethod(hooker, env->GetMethodID(hooker, "callback",
-                                                                               "([Ljava/lang/Object;)Ljava/lang/Object;"),
-                                                      false);
-        auto hooker_object = env->NewObject(hooker, init, hookMethod);
-        hook_item->SetBackup(lsplant::Hook(env, hookMethod, hooker_object, callback_method));
-        env->DeleteLocalRef(hooker_object);
-    }
-    jobject backup = hook_item->GetBackup();
-    if (!backup) return JNI_FALSE;
-    JNIMonitor monitor(env, backup);
-    if (useModernApi) {
-        if (before_method_field == nullptr) {
-            auto callback_class = JNI_GetObjectClass(env, callback);
-            callback_ctor = JNI_GetMethodID(env, callback_class, "<init>", "(Ljava/lang/reflect/Method;Ljava/lang/reflect/Method;)V");
-            before_method_field = JNI_GetFieldID(env, callback_class, "beforeInvocation", "Ljava/lang/reflect/Method;");
-            after_method_field = JNI_GetFieldID(env, callback_class, "afterInvocation", "Ljava/lang/reflect/Method;");
+    while (true) {
+        newHook = false;
+        std::shared_ptr<HookItem> hook_item;
+        hooked_methods.lazy_emplace_l(target, [&hook_item](auto &it) {
+            hook_item = it.second;
+        }, [&hook_item, &target, &newHook](const auto &ctor) {
+            hook_item = std::make_shared<HookItem>();
+            ctor(target, hook_item);
+            newHook = true;
+        });
+        if (newHook) {
+            auto init = env->GetMethodID(hooker, "<init>", "(Ljava/lang/reflect/Executable;)V");
+            auto callback_method = env->ToReflectedMethod(hooker, env->GetMethodID(hooker, "callback",
+                                                                                   "([Ljava/lang/Object;)Ljava/lang/Object;"),
+                                                          false);
+            if (snapshot_field == nullptr) {
+                snapshot_field = env->GetFieldID(hooker, "snapshot", "[[Ljava/lang/Object;");
+                backup_field = env->GetFieldID(hooker, "backup", "Ljava/lang/reflect/Executable;");
+            }
+            auto hooker_object = env->NewObject(hooker, init, hookMethod);
+            auto backup = lsplant::Hook(env, hookMethod, hooker_object, callback_method);
+            if (backup) {
+                hook_item->hooker = env->NewGlobalRef(hooker_object);
+                env->SetObjectField(hooker_object, backup_field, backup);
+            }
+            hook_item->SetBackup(backup);
+            env->DeleteLocalRef(hooker_object);
         }
-        auto before_method = JNI_GetObjectField(env, callback, before_method_field);
-        auto after_method = JNI_GetObjectField(env, callback, after_method_field);
-        auto callback_type = ModuleCallback {
-                .before_method = env->FromReflectedMethod(before_method),
-                .after_method = env->FromReflectedMethod(after_method),
-        };
-        hook_item->modern_callbacks.emplace(priority, callback_type);
-    } else {
-        hook_item->legacy_callbacks.emplace(priority, env->NewGlobalRef(callback));
+        jobject backup = hook_item->GetBackup();
+        if (!backup) return JNI_FALSE;
+        JNIMonitor monitor(env, backup);
+        // raced with the removal of the last callback, start over with a new item
+        if (hook_item->retired) continue;
+        if (useModernApi) {
+            if (before_method_field == nullptr) {
+                auto callback_class = JNI_GetObjectClass(env, callback);
+                before_method_field = JNI_GetFieldID(env, callback_class, "beforeInvocation", "Ljava/lang/reflect/Method;");
+            }
+            auto before_method = JNI_GetObjectField(env, callback, before_method_field);
+            // keep the callback object itself so that handles pre-bound by Java survive snapshots
+            auto callback_type = ModuleCallback {
+                    .before_method = env->FromReflectedMethod(before_method),
+                    .callback = env->NewGlobalRef(callback),
+            };
+            hook_item->modern_callbacks.emplace(priority, callback_type);
+        } else {
+            hook_item->legacy_callbacks.emplace(priority, env->NewGlobalRef(callback));
+        }
+        PublishSnapshot(env, hook_item.get());
+        return JNI_TRUE;
     }
-    return JNI_TRUE;
 }
 
 LSP_DEF_NATIVE_METHOD(jboolean, HookBridge, unhookMethod, jboolean useModernApi, jobject hookMethod, jobject callback) {
     auto target = env->FromReflectedMethod(hookMethod);
-    HookItem * hook_item = nullptr;
-    hooked_methods.if_contains(target, [&hook_item](const auto &it) {
-        hook_item = it.second.get();
-    });
+    auto hook_item = FindHookItem(target);
     if (!hook_item) return JNI_FALSE;
     jobject backup = hook_item->GetBackup();
     if (!backup) return JNI_FALSE;
     JNIMonitor monitor(env, backup);
+    if (hook_item->retired) return JNI_FALSE;
     if (useModernApi) {
         auto before_method = JNI_GetObjectField(env, callback, before_method_field);
         auto before = env->FromReflectedMethod(before_method);
         for (auto i = hook_item->modern_callbacks.begin(); i != hook_item->modern_callbacks.end(); ++i) {
             if (before == i->second.before_method) {
+                env->DeleteGlobalRef(i->second.callback);
                 hook_item->modern_callbacks.erase(i);
+                PublishSnapshot(env, hook_item.get());
+                RetireIfEmpty(env, hookMethod, target, hook_item.get());
                 return JNI_TRUE;
             }
         }
     } else {
         for (auto i = hook_item->legacy_callbacks.begin(); i != hook_item->legacy_callbacks.end(); ++i) {
             if (env->IsSameObject(i->second, callback)) {
+                env->DeleteGlobalRef(i->second);
                 hook_item->legacy_callbacks.erase(i);
+                PublishSnapshot(env, hook_item.get());
+                RetireIfEmpty(env, hookMethod, target, hook_item.get());
                 return JNI_TRUE;
             }
         }
@@ -170,10 +353,7 @@ LSP_DEF_NATIVE_METHOD(jboolean, HookBridge, deoptimizeMethod, jobject hookMethod
 LSP_DEF_NATIVE_METHOD(jobject, HookBridge, invokeOriginalMethod, jobject hookMethod,
                       jobject thiz, jobjectArray args) {
     auto target = env->FromReflectedMethod(hookMethod);
-    HookItem * hook_item = nullptr;
-    hooked_methods.if_contains(target, [&hook_item](const auto &it) {
-        hook_item = it.second.get();
-    });
+    auto hook_item = FindHookItem(target);
     return env->CallObjectMethod(hook_item ? hook_item->GetBackup() : hookMethod, invoke, thiz, args);
 }
 
@@ -183,23 +363,6 @@ LSP_DEF_NATIVE_METHOD(jobject, HookBridge, allocateObject, jclass cls) {
 
 LSP_DEF_NATIVE_METHOD(jobject, HookBridge, invokeSpecialMethod, jobject method, jcharArray shorty,
                       jclass cls, jobject thiz, jobjectArray args) {
-    static auto* const get_int = env->GetMethodID(env->FindClass("java/lang/Integer"), "intValue", "()I");
-    static auto* const get_double = env->GetMethodID(env->FindClass("java/lang/Double"), "doubleValue", "()D");
-    static auto* const get_long = env->GetMethodID(env->FindClass("java/lang/Long"), "longValue", "()J");
-    static auto* const get_float = env->GetMethodID(env->FindClass("java/lang/Float"), "floatValue", "()F");
-    static auto* const get_short = env->GetMethodID(env->FindClass("java/lang/Short"), "shortValue", "()S");
-    static auto* const get_byte = env->GetMethodID(env->FindClass("java/lang/Byte"), "byteValue", "()B");
-    static auto* const get_char = env->GetMethodID(env->FindClass("java/lang/Character"), "charValue", "()C");
-    static auto* const get_boolean = env->GetMethodID(env->FindClass("java/lang/Boolean"), "booleanValue", "()Z");
-    static auto* const set_int = env->GetStaticMethodID(env->FindClass("java/lang/Integer"), "valueOf", "(I)Ljava/lang/Integer;");
-    static auto* const set_double = env->GetStaticMethodID(env->FindClass("java/lang/Double"), "valueOf", "(D)Ljava/lang/Double;");
-    static auto* const set_long = env->GetStaticMethodID(env->FindClass("java/lang/Long"), "valueOf", "(J)Ljava/lang/Long;");
-    static auto* const set_float = env->GetStaticMethodID(env->FindClass("java/lang/Float"), "valueOf", "(F)Ljava/lang/Float;");
-    static auto* const set_short = env->GetStaticMethodID(env->FindClass("java/lang/Short"), "valueOf", "(S)Ljava/lang/Short;");
-    static auto* const set_byte = env->GetStaticMethodID(env->FindClass("java/lang/Byte"), "valueOf", "(B)Ljava/lang/Byte;");
-    static auto* const set_char = env->GetStaticMethodID(env->FindClass("java/lang/Character"), "valueOf", "(C)Ljava/lang/Character;");
-    static auto* const set_boolean = env->GetStaticMethodID(env->FindClass("java/lang/Boolean"), "valueOf", "(Z)Ljava/lang/Boolean;");
-
     auto target = env->FromReflectedMethod(method);
     auto param_len = env->GetArrayLength(shorty) - 1;
     if (env->GetArrayLength(args) != param_len) {
@@ -212,75 +375,45 @@ LSP_DEF_NATIVE_METHOD(jobject, HookBridge, invokeSpecialMethod, jobject method,
     }
     std::vector<jvalue> a(param_len);
     auto *const shorty_char = env->GetCharArrayElements(shorty, nullptr);
-    for (jint i = 0; i != param_len; ++i) {
-        jobject element;
-        switch(shorty_char[i + 1]) {
-            case 'I':
-                a[i].i = env->CallIntMethod(element = env->GetObjectArrayElement(args, i), get_int);
-                break;
-            case 'D':
-                a[i].d = env->CallDoubleMethod(element = env->GetObjectArrayElement(args, i), get_double);
-                break;
-            case 'J':
-                a[i].j = env->CallLongMethod(element = env->GetObjectArrayElement(args, i), get_long);
-                break;
-            case 'F':
-                a[i].f = env->CallFloatMethod(element = env->GetObjectArrayElement(args, i), get_float);
-                break;
-            case 'S':
-                a[i].s = env->CallShortMethod(element = env->GetObjectArrayElement(args, i), get_short);
-                break;
-            case 'B':
-                a[i].b = env->CallByteMethod(element = env->GetObjectArrayElement(args, i), get_byte);
-                break;
-            case 'C':
-                a[i].c = env->CallCharMethod(element = env->GetObjectArrayElement(args, i), get_char);
-                break;
-            case 'Z':
-                a[i].z = env->CallBooleanMethod(element = env->GetObjectArrayElement(args, i), get_boolean);
-                break;
-            default:
-            case 'L':
-                a[i].l = env->GetObjectArrayElement(args, i);
-                element = nullptr;
-                break;
-        }
-        if (element) env->DeleteLocalRef(element);
-        if (env->ExceptionCheck()) return nullptr;
+    jobject value = nullptr;
+    if (UnboxArguments(env, shorty_char, param_len, args, a.data(), false)) {
+        value = BoxResult(env, shorty_char[0], CallWithShorty(env, shorty_char[0], false, thiz, cls, target, a.data()));
     }
+    env->ReleaseCharArrayElements(shorty, shorty_char, JNI_ABORT);
+    return value;
+}
+
+// Saves the reflective call only, arguments and result keep going through their boxes
+LSP_DEF_NATIVE_METHOD(jobject, HookBridge, invokeOriginalMethodWithShorty, jobject hookMethod,
+                      jcharArray shorty, jboolean is_static, jclass cls, jobject thiz, jobjectArray args) {
+    auto target = env->FromReflectedMethod(hookMethod);
+    auto hook_item = FindHookItem(target);
+    // a backup itself, or a method that is not hooked, is called as is
+    jobject original = hook_item ? hook_item->GetBackup() : nullptr;
+    if (!original) original = hookMethod;
+    auto param_len = env->GetArrayLength(shorty) - 1;
+    std::vector<jvalue> a(param_len);
+    auto *const shorty_char = env->GetCharArrayElements(shorty, nullptr);
+    // Anything Method.invoke would convert or reject goes through it for identical semantics
+    bool direct = env->GetArrayLength(args) == param_len &&
+                  (is_static || (thiz != nullptr && env->IsInstanceOf(thiz, cls))) &&
+                  UnboxArguments(env, shorty_char, param_len, args, a.data(), true);
     jobject value = nullptr;
-    switch(shorty_char[0]) {
-        case 'I':
-            value = env->CallStaticObjectMethod(jclass{nullptr}, set_int, env->CallNonvirtualIntMethodA(thiz, cls, target, a.data()));
-            break;
-        case 'D':
-            value = env->CallStaticObjectMethod(jclass{nullptr}, set_double, env->CallNonvirtualDoubleMethodA(thiz, cls, target, a.data()));
-            break;
-        case 'J':
-            value = env->CallStaticObjectMethod(jclass{nullptr}, set_long, env->CallNonvirtualLongMethodA(thiz, cls, target, a.data()));
-            break;
-        case 'F':
-            value = env->CallStaticObjectMethod(jclass{nullptr}, set_float, env->CallNonvirtualFloatMethodA(thiz, cls, target, a.data()));
-            break;
-        case 'S':
-            value = env->CallStaticObjectMethod(jclass{nullptr}, set_short, env->CallNonvirtualShortMethodA(thiz, cls, target, a.data()));
-            break;
-        case 'B':
-            value = env->CallStaticObjectMethod(jclass{nullptr}, set_byte, env->CallNonvirtualByteMethodA(thiz, cls, target, a.data()));
-            break;
-        case 'C':
-            value = env->CallStaticObjectMethod(jclass{nullptr}, set_char, env->CallNonvirtualCharMethodA(thiz, cls, target, a.data()));
-            break;
-        case 'Z':
-            value = env->CallStaticObjectMethod(jclass{nullptr}, set_boolean, env->CallNonvirtualBooleanMethodA(thiz, cls, target, a.data()));
-            break;
-        case 'L':
-            value = env->CallNonvirtualObjectMethodA(thiz, cls, target, a.data());
-            break;
-        default:
-        case 'V':
-            env->CallNonvirtualVoidMethodA(thiz, cls, target, a.data());
-            break;
+    if (direct) {
+        auto result = CallWithShorty(env, shorty_char[0], is_static, thiz, cls,
+                                     env->FromReflectedMethod(original), a.data());
+        if (auto throwable = env->ExceptionOccurred(); throwable) {
+            // keep the contract of invokeOriginalMethod
+            env->ExceptionClear();
+            auto ite = (jthrowable) env->NewObject(invocation_target_exception, invocation_target_exception_ctor, throwable);
+            if (ite) env->Throw(ite);
+            env->DeleteLocalRef(ite);
+            env->DeleteLocalRef(throwable);
+        } else {
+            value = BoxResult(env, shorty_char[0], result);
+        }
+    } else if (!env->ExceptionCheck()) {
+        value = env->CallObjectMethod(original, invoke, thiz, args);
     }
     env->ReleaseCharArrayElements(shorty, shorty_char, JNI_ABORT);
     return value;
@@ -296,30 +429,10 @@ LSP_DEF_NATIVE_METHOD(jboolean, HookBridge, setTrusted, jobject cookie) {
 
 LSP_DEF_NATIVE_METHOD(jobjectArray, HookBridge, callbackSnapshot, jclass callback_class, jobject method) {
     auto target = env->FromReflectedMethod(method);
-    HookItem *hook_item = nullptr;
-    hooked_methods.if_contains(target, [&hook_item](const auto &it) {
-        hook_item = it.second.get();
-    });
+    auto hook_item = FindHookItem(target);
     if (!hook_item) return nullptr;
-    jobject backup = hook_item->GetBackup();
-    if (!backup) return nullptr;
-    JNIMonitor monitor(env, backup);
-
-    auto res = env->NewObjectArray(2, env->FindClass("[Ljava/lang/Object;"), nullptr);
-    auto modern = env->NewObjectArray((jsize) hook_item->modern_callbacks.size(), env->FindClass("java/lang/Object"), nullptr);
-    auto legacy = env->NewObjectArray((jsize) hook_item->legacy_callbacks.size(), env->FindClass("java/lang/Object"), nullptr);
-    for (jsize i = 0; auto callback: hook_item->modern_callbacks) {
-        auto before_method = JNI_ToReflectedMethod(env, clazz, callback.second.before_method, JNI_TRUE);
-        auto after_method = JNI_ToReflectedMethod(env, clazz, callback.second.after_method, JNI_TRUE);
-        auto callback_object = JNI_NewObject(env, callback_class, callback_ctor, before_method, after_method);
-        env->SetObjectArrayElement(modern, i++, env->NewLocalRef(callback_object));
-    }
-    for (jsize i = 0; auto callback: hook_item->legacy_callbacks) {
-        env->SetObjectArrayElement(legacy, i++, env->NewLocalRef(callback.second));
-    }
-    env->SetObjectArrayElement(res, 0, modern);
-    env->SetObjectArrayElement(res, 1, legacy);
-    return res;
+    if (!hook_item->GetBackup() || !hook_item->hooker) return nullptr;
+    return (jobjectArray) env->GetObjectField(hook_item->hooker, snapshot_field);
 }
 
 static JNINativeMethod gMethods[] = {
@@ -327,6 +440,7 @@ static JNINativeMethod gMethods[] = {
     LSP_NATIVE_METHOD(HookBridge, unhookMethod, "(ZLjava/lang/reflect/Executable;Ljava/lang/Object;)Z"),
     LSP_NATIVE_METHOD(HookBridge, deoptimizeMethod, "(Ljava/lang/reflect/Executable;)Z"),
     LSP_NATIVE_METHOD(HookBridge, invokeOriginalMethod, "(Ljava/lang/reflect/Executable;Ljava/lang/Object;[Ljava/lang/Object;)Ljava/lang/Object;"),
+    LSP_NATIVE_METHOD(HookBridge, invokeOriginalMethodWithShorty, "(Ljava/lang/reflect/Executable;[CZLjava/lang/Class;Ljava/lang/Object;[Ljava/lang/Object;)Ljava/lang/Object;"),
     LSP_NATIVE_METHOD(HookBridge, invokeSpecialMethod, "(Ljava/lang/reflect/Executable;[CLjava/lang/Class;Ljava/lang/Object;[Ljava/lang/Object;)Ljava/lang/Object;"),
     LSP_NATIVE_METHOD(HookBridge, allocateObject, "(Ljava/lang/Class;)Ljava/lang/Object;"),
     LSP_NATIVE_METHOD(HookBridge, instanceOf, "(Ljava/lang/Object;Ljava/lang/Class;)Z"),
@@ -335,11 +449,24 @@ static JNINativeMethod gMethods[] = {
 };
 
 void RegisterHookBridge(JNIEnv *env) {
+    env->GetJavaVM(&vm);
     jclass method = env->FindClass("java/lang/reflect/Method");
     invoke = env->GetMethodID(
             method, "invoke",
             "(Ljava/lang/Object;[Ljava/lang/Object;)Ljava/lang/Object;");
     env->DeleteLocalRef(method);
+    jclass ite = env->FindClass("java/lang/reflect/InvocationTargetException");
+    invocation_target_exception = (jclass) env->NewGlobalRef(ite);
+    invocation_target_exception_ctor = env->GetMethodID(ite, "<init>", "(Ljava/lang/Throwable;)V");
+    env->DeleteLocalRef(ite);
+    boxed_types.I = InitBoxedType(env, "java/lang/Integer", "intValue", "()I", "(I)Ljava/lang/Integer;");
+    boxed_types.D = InitBoxedType(env, "java/lang/Double", "doubleValue", "()D", "(D)Ljava/lang/Double;");
+    boxed_types.J = InitBoxedType(env, "java/lang/Long", "longValue", "()J", "(J)Ljava/lang/Long;");
+    boxed_types.F = InitBoxedType(env, "java/lang/Float", "floatValue", "()F", "(F)Ljava/lang/Float;");
+    boxed_types.S = InitBoxedType(env, "java/lang/Short", "shortValue", "()S", "(S)Ljava/lang/Short;");
+    boxed_types.B = InitBoxedType(env, "java/lang/Byte", "byteValue", "()B", "(B)Ljava/lang/Byte;");
+    boxed_types.C = InitBoxedType(env, "java/lang/Character", "charValue", "()C", "(C)Ljava/lang/Character;");
+    boxed_types.Z = InitBoxedType(env, "java/lang/Boolean", "booleanValue", "()Z", "(Z)Ljava/lang/Boolean;");
     REGISTER_LSP_NATIVE_METHODS(HookBridge);
 }
 } // namespace lspd
@@ -19,6 +19,8 @@
  */
 
 #include <jni.h>
+#include <parallel_hashmap/phmap.h>
+#include <shared_mutex>
 #include "dex_builder.h"
 #include "framework/androidfw/resource_types.h"
 #include "elf_util.h"
@@ -41,6 +43,18 @@ namespace lspd {
     static jmethodID methodXResourcesTranslateAttrId;
     static jmethodID methodXResourcesTranslateResId;
 
+    // Translated ids of module resources, keyed by the translation table in the high and the
+    // module id in the low half. A table belongs to one module Resources and one original
+    // resources dir, see XResources#getXmlTranslationTable. Ids of tables are never reused, so
+    // entries of dropped tables are only dead weight and the maps are simply reset once full.
+    using TranslationMap = phmap::parallel_flat_hash_map<uint64_t, jint,
+            phmap::priv::hash_default_hash<uint64_t>, phmap::priv::hash_default_eq<uint64_t>,
+            phmap::priv::Allocator<phmap::priv::Pair<const uint64_t, jint>>, 4, std::shared_mutex>;
+
+    static TranslationMap translated_res_ids;
+    static TranslationMap translated_attr_ids;
+    static constexpr size_t kMaxTranslations = 1 << 16;
+
     static TYPE_NEXT ResXMLParser_next = nullptr;
     static TYPE_RESTART ResXMLParser_restart = nullptr;
     static TYPE_GET_ATTR_NAME_ID ResXMLParser_getAttributeNameID = nullptr;
@@ -141,8 +155,25 @@ namespace lspd {
                              dex_buffer, parent).release();
     }
 
+    // Looks the id up in the table and falls back to the upcall, whose result is cached unless it
+    // threw. Lookups of other threads are not blocked during the upcall, a race only repeats it.
+    template<class Upcall>
+    static bool TranslateCached(JNIEnv *env, TranslationMap &map, jint table, uint32_t id,
+                                jint &result, Upcall &&upcall) {
+        auto key = (uint64_t) (uint32_t) table << 32 | id;
+        if (map.if_contains(key, [&](const auto &entry) { result = entry.second; }))
+            return true;
+        result = upcall();
+        if (env->ExceptionCheck())
+            return false;
+        if (map.size() >= kMaxTranslations)
+            map.clear();
+        map.try_emplace(key, result);
+        return true;
+    }
+
     LSP_DEF_NATIVE_METHOD(void, ResourcesHook, rewriteXmlReferencesNative,
-                          jlong parserPtr, jobject origRes, jobject repRes) {
+                          jlong parserPtr, jobject origRes, jobject repRes, jint table) {
         auto parser = (android::ResXMLParser *) parserPtr;
 
         if (parser == nullptr)
@@ -169,14 +200,23 @@ namespace lspd {
                         // only replace attribute name IDs for app packages
                         if (attrNameID >= 0 && (size_t) attrNameID < mTree.mNumResIds &&
                             mResIds[attrNameID] >= 0x7f000000) {
-                            auto attrName = mTree.mStrings.stringAt(attrNameID);
-                            jint attrResID = env->CallStaticIntMethod(classXResources,
-                                                                      methodXResourcesTranslateAttrId,
-                                                                      env->NewString(
-                                                                              (const jchar *) attrName.data_,
-                                                                              attrName.length_),
-                                                                      origRes);
-                            if (env->ExceptionCheck())
+                            // the module attr id stands for the attr name, as the name
+                            // string index is only meaningful within this XML
+                            auto translateAttrId = [&]() -> jint {
+                                auto attrName = mTree.mStrings.stringAt(attrNameID);
+                                auto name = env->NewString((const jchar *) attrName.data_,
+                                                           attrName.length_);
+                                if (name == nullptr)
+                                    return 0;
+                                jint id = env->CallStaticIntMethod(classXResources,
+                                                                   methodXResourcesTranslateAttrId,
+                                                                   name, origRes);
+                                env->DeleteLocalRef(name);
+                                return id;
+                            };
+                            jint attrResID;
+                            if (!TranslateCached(env, translated_attr_ids, table,
+                                                 mResIds[attrNameID], attrResID, translateAttrId))
                                 goto leave;
 
                             mResIds[attrNameID] = attrResID;
@@ -190,10 +230,14 @@ namespace lspd {
                         if (oldValue < 0x7f000000)
                             continue;
 
-                        jint newValue = env->CallStaticIntMethod(classXResources,
-                                                                 methodXResourcesTranslateResId,
-                                                                 oldValue, origRes, repRes);
-                        if (env->ExceptionCheck())
+                        auto translateResId = [&]() -> jint {
+                            return env->CallStaticIntMethod(classXResources,
+                                                            methodXResourcesTranslateResId,
+                                                            oldValue, origRes, repRes);
+                        };
+                        jint newValue;
+                        if (!TranslateCached(env, translated_res_ids, table, oldValue, newValue,
+                                             translateResId))
                             goto leave;
 
                         if (newValue != oldValue)
@@ -218,11 +262,11 @@ namespace lspd {
             LSP_NATIVE_METHOD(ResourcesHook, buildDummyClassLoader,
                               "(Ljava/lang/ClassLoader;Ljava/lang/String;Ljava/lang/String;)Ljava/lang/ClassLoader;"),
             LSP_NATIVE_METHOD(ResourcesHook, rewriteXmlReferencesNative,
-                              "(JLandroid/content/res/XResources;Landroid/content/res/Resources;)V")
+                              "(JLandroid/content/res/XResources;Landroid/content/res/Resources;I)V")
     };
 
     void RegisterResourcesHook(JNIEnv *env) {
-        auto sign = fmt::format("(JL{};Landroid/content/res/Resources;)V", GetXResourcesClassName());
+        auto sign = fmt::format("(JL{};Landroid/content/res/Resources;I)V", GetXResourcesClassName());
         gMethods[3].signature = sign.c_str();
 
         REGISTER_LSP_NATIVE_METHODS(ResourcesHook);
@@ -0,0 +1,99 @@
+/*
+ * This file is part of LSPosed.
+ *
+ * LSPosed is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LSPosed is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LSPosed.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * Copyright (C) 2022 LSPosed Contributors
+ */
+
+package de.robv.android.xposed;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+import org.lsposed.lspd.util.MicroBenchmark;
+
+/**
+ * Additional instance fields as modules use them to tag objects from many threads at once.
+ */
+public class AdditionalFieldsBenchmark {
+    private static final int OPS = 1_000_000;
+    private static final int OBJECTS = 1024;
+
+    private static Object[] objects() {
+        var objects = new Object[OBJECTS];
+        for (int i = 0; i < OBJECTS; i++) objects[i] = new Object();
+        return objects;
+    }
+
+    @Test
+    public void nullIsStoredLikeAnyValue() {
+        var obj = new Object();
+        assertNull(XposedHelpers.setAdditionalInstanceField(obj, "key", "value"));
+        assertEquals("value", XposedHelpers.setAdditionalInstanceField(obj, "key", null));
+        assertNull(XposedHelpers.getAdditionalInstanceField(obj, "key"));
+        assertNull(XposedHelpers.setAdditionalInstanceField(obj, "key", "other"));
+        assertEquals("other", XposedHelpers.removeAdditionalInstanceField(obj, "key"));
+        assertNull(XposedHelpers.removeAdditionalInstanceField(obj, "key"));
+    }
+
+    @Test
+    public void fieldsBelongToTheInstance() {
+        var a = new String("same");
+        var b = new String("same");
+        XposedHelpers.setAdditionalInstanceField(a, "key", a);
+        assertSame(a, XposedHelpers.getAdditionalInstanceField(a, "key"));
+        assertNull(XposedHelpers.getAdditionalInstanceField(b, "key"));
+    }
+
+    @Test
+    public void getSharedObjects() throws Throwable {
+        var objects = objects();
+        for (var obj : objects) XposedHelpers.setAdditionalInstanceField(obj, "tag", obj);
+        MicroBenchmark.run("get", OPS, i -> {
+            var obj = objects[i & (OBJECTS - 1)];
+            if (XposedHelpers.getAdditionalInstanceField(obj, "tag") != obj) throw new AssertionError();
+        });
+        MicroBenchmark.runConcurrent("get", 4, OPS, i -> {
+            var obj = objects[i & (OBJECTS - 1)];
+            if (XposedHelpers.getAdditionalInstanceField(obj, "tag") != obj) throw new AssertionError();
+        });
+    }
+
+    @Test
+    public void setGetRemoveSharedObjects() throws Throwable {
+        var objects = objects();
+        // each thread uses its own key on the same objects
+        MicroBenchmark.runConcurrent("set, get and remove", 4, OPS, i -> {
+            var obj = objects[i & (OBJECTS - 1)];
+            var key = Thread.currentThread().getName();
+            XposedHelpers.setAdditionalInstanceField(obj, key, i);
+            if (!Integer.valueOf(i).equals(XposedHelpers.getAdditionalInstanceField(obj, key))) throw new AssertionError();
+            if (!Integer.valueOf(i).equals(XposedHelpers.removeAdditionalInstanceField(obj, key))) throw new AssertionError();
+        });
+    }
+
+    @Test
+    public void tagNewObjects() throws Throwable {
+        // objects die young, their entries have to be expunged along the way, which makes this
+        // one bound by the GC
+        MicroBenchmark.runConcurrent("tag new objects", 4, OPS / 20, i -> {
+            var obj = new Object();
+            XposedHelpers.setAdditionalInstanceField(obj, "tag", i);
+            if (!Integer.valueOf(i).equals(XposedHelpers.getAdditionalInstanceField(obj, "tag"))) throw new AssertionError();
+        });
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * This file is part of LSPosed.
+ *
+ * LSPosed is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LSPosed is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LSPosed.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * Copyright (C) 2022 LSPosed Contributors
+ */
+
+package de.robv.android.xposed;
+
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.lsposed.lspd.util.MicroBenchmark;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+
+/**
+ * Throughput of cached member lookups. Classes loaded by the same loader as XposedBridge are
+ * looked up in the boot segment, the copy of {@link Target} in its own loader exercises the
+ * per-loader segments like app classes do.
+ */
+public class XposedHelpersBenchmark {
+    private static final int OPS = 1_000_000;
+
+    private static Class<?> appTarget;
+
+    public static class Target {
+        public int value;
+
+        public int method(int a, String b) {
+            return a;
+        }
+    }
+
+    @BeforeClass
+    public static void loadAppTarget() throws Exception {
+        var location = Target.class.getProtectionDomain().getCodeSource().getLocation();
+        var loader = new URLClassLoader(new URL[]{location}, ClassLoader.getPlatformClassLoader());
+        appTarget = loader.loadClass(Target.class.getName());
+    }
+
+    @Test
+    public void cachedLookupsReturnTheSameMember() {
+        assertNotSame(Target.class.getClassLoader(), appTarget.getClassLoader());
+        assertSame(XposedHelpers.findField(Target.class, "value"), XposedHelpers.findField(Target.class, "value"));
+        assertSame(XposedHelpers.findField(appTarget, "value"), XposedHelpers.findField(appTarget, "value"));
+        assertNotSame(XposedHelpers.findField(Target.class, "value"), XposedHelpers.findField(appTarget, "value"));
+    }
+
+    private static void lookups(Class<?> clazz, String segment) throws Throwable {
+        MicroBenchmark.run("findField, " + segment, OPS, i -> XposedHelpers.findField(clazz, "value"));
+        MicroBenchmark.run("findMethodExact, " + segment, OPS,
+                i -> XposedHelpers.findMethodExact(clazz, "method", int.class, String.class));
+    }
+
+    @Test
+    public void bootSegment() throws Throwable {
+        lookups(Target.class, "boot segment");
+    }
+
+    @Test
+    public void loaderSegment() throws Throwable {
+        lookups(appTarget, "loader segment");
+    }
+
+    @Test
+    public void loaderSegmentConcurrently() throws Throwable {
+        MicroBenchmark.runConcurrent("findMethodExact, loader segment", 4, OPS,
+                i -> XposedHelpers.findMethodExact(appTarget, "method", int.class, String.class));
+    }
+}
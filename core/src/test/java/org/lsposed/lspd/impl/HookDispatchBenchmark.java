@@ -0,0 +1,201 @@
+/*
+ * This file is part of LSPosed.
+ *
+ * LSPosed is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LSPosed is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LSPosed.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * Copyright (C) 2022 LSPosed Contributors
+ */
+
+package org.lsposed.lspd.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+import org.lsposed.lspd.util.MicroBenchmark;
+
+import java.lang.reflect.Executable;
+import java.lang.reflect.Method;
+
+import de.robv.android.xposed.XC_MethodHook;
+import io.github.libxposed.api.XposedInterface;
+
+/**
+ * Allocations and time per call dispatched through {@link LSPosedBridge.NativeHooker#callback}.
+ * The hookers skip the original method, which could only be invoked through the native bridge.
+ */
+public class HookDispatchBenchmark {
+    private static final int OPS = 200_000;
+
+    static Object[] keptArgs;
+
+    static XposedInterface.BeforeHookCallback keptCallback;
+
+    public int target(String s) {
+        return s.length();
+    }
+
+    public static class SkipHooker {
+        public static void before(XposedInterface.BeforeHookCallback callback) {
+            callback.returnAndSkip(1);
+        }
+
+        public static void after(XposedInterface.AfterHookCallback callback) {
+        }
+    }
+
+    public static class PassHooker {
+        public static void before(XposedInterface.BeforeHookCallback callback) {
+        }
+
+        public static void after(XposedInterface.AfterHookCallback callback) {
+        }
+    }
+
+    public static class ArgsHooker {
+        public static void before(XposedInterface.BeforeHookCallback callback) {
+            callback.returnAndSkip(((String) callback.getArgs()[0]).length());
+        }
+
+        public static void after(XposedInterface.AfterHookCallback callback) {
+        }
+    }
+
+    public static class KeepArgsHooker {
+        public static void before(XposedInterface.BeforeHookCallback callback) {
+            keptArgs = callback.getArgs();
+            callback.returnAndSkip(1);
+        }
+
+        public static void after(XposedInterface.AfterHookCallback callback) {
+        }
+    }
+
+    public static class KeepCallbackHooker {
+        public static void before(XposedInterface.BeforeHookCallback callback) {
+            keptCallback = callback;
+            callback.returnAndSkip(1);
+        }
+
+        public static void after(XposedInterface.AfterHookCallback callback) {
+        }
+    }
+
+    static final class SkipLegacyHook extends XC_MethodHook {
+        @Override
+        protected void beforeHookedMethod(MethodHookParam<?> param) {
+            param.setResult(1);
+        }
+    }
+
+    static LSPosedBridge.HookerCallback hooker(Class<?> clazz) throws ReflectiveOperationException {
+        return hooker(clazz, true);
+    }
+
+    static LSPosedBridge.HookerCallback hooker(Class<?> clazz, boolean bindHandles) throws ReflectiveOperationException {
+        return new LSPosedBridge.HookerCallback(
+                clazz.getMethod("before", XposedInterface.BeforeHookCallback.class),
+                clazz.getMethod("after", XposedInterface.AfterHookCallback.class), bindHandles);
+    }
+
+    // every before and after callback runs, the last hooker skips the original method
+    static Object[] stackedHookers(int count, boolean bindHandles) throws ReflectiveOperationException {
+        var hookers = new Object[count];
+        for (int i = 0; i < count - 1; i++) hookers[i] = hooker(PassHooker.class, bindHandles);
+        hookers[count - 1] = hooker(SkipHooker.class, bindHandles);
+        return hookers;
+    }
+
+    // what HookBridge.hookMethod sets up natively
+    @SuppressWarnings("unchecked")
+    static LSPosedBridge.NativeHooker<Method> nativeHooker(Object[] modern, Object[] legacy) throws ReflectiveOperationException {
+        var constructor = LSPosedBridge.NativeHooker.class.getDeclaredConstructor(Executable.class);
+        constructor.setAccessible(true);
+        var hooker = (LSPosedBridge.NativeHooker<Method>) constructor.newInstance(
+                HookDispatchBenchmark.class.getMethod("target", String.class));
+        var snapshot = LSPosedBridge.NativeHooker.class.getDeclaredField("snapshot");
+        snapshot.setAccessible(true);
+        snapshot.set(hooker, new Object[][]{modern, legacy});
+        return hooker;
+    }
+
+    private void dispatch(String name, Object[] modern, Object[] legacy) throws Throwable {
+        var hooker = nativeHooker(modern, legacy);
+        var args = new Object[]{this, "hooked"};
+        MicroBenchmark.run(name, OPS, i -> hooker.callback(args));
+    }
+
+    @Test
+    public void modernHookerWithoutArgs() throws Throwable {
+        dispatch("modern, arguments untouched", new Object[]{hooker(SkipHooker.class)}, new Object[0]);
+    }
+
+    @Test
+    public void modernHookerReadingArgs() throws Throwable {
+        dispatch("modern, arguments read", new Object[]{hooker(ArgsHooker.class)}, new Object[0]);
+    }
+
+    @Test
+    public void stackedHookers() throws Throwable {
+        for (int count : new int[]{1, 4, 16}) {
+            dispatch(count + " modern hookers, reflection", stackedHookers(count, false), new Object[0]);
+            dispatch(count + " modern hookers, method handles", stackedHookers(count, true), new Object[0]);
+        }
+    }
+
+    @Test
+    public void legacyHook() throws Throwable {
+        dispatch("legacy", new Object[0], new Object[]{new SkipLegacyHook()});
+    }
+
+    @Test
+    public void keptArgsAreNotReused() throws Throwable {
+        var hooker = nativeHooker(new Object[]{hooker(KeepArgsHooker.class)}, new Object[0]);
+        assertEquals(1, hooker.callback(new Object[]{this, "first"}));
+        var first = keptArgs;
+        hooker.callback(new Object[]{this, "second"});
+        assertArrayEquals(new Object[]{"first"}, first);
+        assertArrayEquals(new Object[]{"second"}, keptArgs);
+    }
+
+    @Test
+    public void keptCallbackIsNotReused() throws Throwable {
+        var hooker = nativeHooker(new Object[]{hooker(KeepCallbackHooker.class)}, new Object[0]);
+        hooker.callback(new Object[]{this, "first"});
+        var first = keptCallback;
+        hooker.callback(new Object[]{this, "second"});
+        assertNotSame(first, keptCallback);
+        assertArrayEquals(new Object[]{"first"}, first.getArgs());
+        assertSame(this, first.getThisObject());
+    }
+
+    @Test
+    public void keptLegacyArgsAreNotReused() throws Throwable {
+        var kept = new Object[1][];
+        var hook = new XC_MethodHook() {
+            @Override
+            protected void beforeHookedMethod(MethodHookParam<?> param) {
+                kept[0] = param.args;
+                param.setResult(1);
+            }
+        };
+        var hooker = nativeHooker(new Object[0], new Object[]{hook});
+        hooker.callback(new Object[]{this, "first"});
+        var first = kept[0];
+        hooker.callback(new Object[]{this, "second"});
+        assertArrayEquals(new Object[]{"first"}, first);
+    }
+}
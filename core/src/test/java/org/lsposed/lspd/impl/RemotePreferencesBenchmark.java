@@ -0,0 +1,116 @@
+/*
+ * This file is part of LSPosed.
+ *
+ * LSPosed is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LSPosed is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LSPosed.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * Copyright (C) 2022 LSPosed Contributors
+ */
+
+package org.lsposed.lspd.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.lsposed.lspd.util.MicroBenchmark;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Getter throughput of {@link LSPosedRemotePreferences} while updates keep arriving, and how
+ * listeners interact with updates.
+ */
+public class RemotePreferencesBenchmark {
+    private static final int OPS = 1_000_000;
+    private static final int KEYS = 64;
+
+    private static LSPosedRemotePreferences populated() {
+        var prefs = new LSPosedRemotePreferences();
+        Map<String, Object> puts = new HashMap<>();
+        for (int i = 0; i < KEYS; i++) {
+            puts.put("int" + i, i);
+            puts.put("string" + i, "value" + i);
+        }
+        prefs.applyUpdate(1, null, puts);
+        return prefs;
+    }
+
+    private static void getters(LSPosedRemotePreferences prefs, int threads) throws Throwable {
+        var stop = new AtomicBoolean();
+        var updater = new Thread(() -> {
+            for (long version = 2; !stop.get(); version++) {
+                prefs.applyUpdate(version, null, Map.of("int" + version % KEYS, (int) version));
+            }
+        });
+        updater.start();
+        try {
+            MicroBenchmark.runConcurrent("getters while updating", threads, OPS, i -> {
+                if (prefs.getInt("int" + (i & (KEYS - 1)), -1) < 0) throw new AssertionError();
+                if (prefs.getString("string" + (i & (KEYS - 1)), null) == null) throw new AssertionError();
+            });
+        } finally {
+            stop.set(true);
+            updater.join();
+        }
+    }
+
+    @Test
+    public void gettersWhileUpdating() throws Throwable {
+        var prefs = populated();
+        getters(prefs, 1);
+        getters(prefs, 4);
+    }
+
+    @Test
+    public void gettersWhileUpdatingWithListener() throws Throwable {
+        var prefs = populated();
+        prefs.registerOnSharedPreferenceChangeListener((p, key) -> p.getInt(key, 0));
+        getters(prefs, 4);
+    }
+
+    @Test
+    public void listenerDoesNotBlockUpdates() throws Throwable {
+        var prefs = populated();
+        var applied = new CountDownLatch(1);
+        prefs.registerOnSharedPreferenceChangeListener((p, key) -> {
+            if (!key.equals("first")) return;
+            // an update delivered on another binder thread while this listener runs
+            var other = new Thread(() -> {
+                prefs.applyUpdate(3, null, Map.of("second", 2));
+                applied.countDown();
+            });
+            other.start();
+            try {
+                assertTrue(applied.await(5, TimeUnit.SECONDS));
+            } catch (InterruptedException e) {
+                throw new AssertionError(e);
+            }
+        });
+        prefs.applyUpdate(2, null, Map.of("first", 1));
+        assertEquals(2, prefs.getInt("second", 0));
+    }
+
+    @Test
+    public void staleUpdatesAreIgnored() {
+        var prefs = populated();
+        prefs.applyUpdate(3, Set.of("int0"), null);
+        prefs.applyUpdate(2, null, Map.of("int0", 5));
+        assertEquals(-1, prefs.getInt("int0", -1));
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * This file is part of LSPosed.
+ *
+ * LSPosed is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LSPosed is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LSPosed.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * Copyright (C) 2022 LSPosed Contributors
+ */
+
+package org.lsposed.lspd.util;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+
+/**
+ * Minimal JMH-style harness for the host benchmarks: warms up, then reports the best of a few
+ * measured rounds as nanoseconds and allocated bytes per operation.
+ */
+public final class MicroBenchmark {
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int ROUNDS = 5;
+
+    private MicroBenchmark() {
+    }
+
+    public interface Operation {
+        void run(int i) throws Throwable;
+    }
+
+    public static final class Result {
+        public final String name;
+        public final double nanosPerOp;
+        public final double bytesPerOp;
+
+        Result(String name, double nanosPerOp, double bytesPerOp) {
+            this.name = name;
+            this.nanosPerOp = nanosPerOp;
+            this.bytesPerOp = bytesPerOp;
+        }
+
+        @Override
+        public String toString() {
+            if (Double.isNaN(bytesPerOp)) {
+                return String.format(Locale.ROOT, "%-48s %10.1f ns/op", name, nanosPerOp);
+            }
+            return String.format(Locale.ROOT, "%-48s %10.1f ns/op %10.1f B/op", name, nanosPerOp, bytesPerOp);
+        }
+    }
+
+    // -1 if the VM cannot tell, e.g. when not running on HotSpot
+    private static long allocatedBytes() {
+        var bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    /**
+     * Runs {@code op} {@code ops} times per round on the calling thread.
+     */
+    public static Result run(String name, int ops, Operation op) throws Throwable {
+        for (int round = 0; round < WARMUP_ROUNDS; round++) {
+            for (int i = 0; i < ops; i++) op.run(i);
+        }
+        double bestNanos = Double.MAX_VALUE, bestBytes = Double.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            long bytes = allocatedBytes();
+            long start = System.nanoTime();
+            for (int i = 0; i < ops; i++) op.run(i);
+            long nanos = System.nanoTime() - start;
+            bytes = bytes < 0 ? -1 : allocatedBytes() - bytes;
+            bestNanos = Math.min(bestNanos, (double) nanos / ops);
+            bestBytes = bytes < 0 ? Double.NaN : Math.min(bestBytes, (double) bytes / ops);
+        }
+        var result = new Result(name, bestNanos, bestBytes);
+        System.out.println(result);
+        return result;
+    }
+
+    /**
+     * Runs {@code op} {@code ops} times per round on each of {@code threads} threads started
+     * together and reports the wall time per operation over all threads.
+     */
+    public static Result runConcurrent(String name, int threads, int ops, Operation op) throws Throwable {
+        double best = Double.MAX_VALUE;
+        for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++) {
+            var start = new CyclicBarrier(threads + 1);
+            var done = new CountDownLatch(threads);
+            var failures = new ArrayList<Throwable>();
+            for (int t = 0; t < threads; t++) {
+                var thread = new Thread(() -> {
+                    try {
+                        start.await();
+                        for (int i = 0; i < ops; i++) op.run(i);
+                    } catch (Throwable e) {
+                        synchronized (failures) {
+                            failures.add(e);
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                });
+                thread.start();
+            }
+            start.await();
+            long begin = System.nanoTime();
+            done.await();
+            long nanos = System.nanoTime() - begin;
+            if (!failures.isEmpty()) throw failures.get(0);
+            if (round >= WARMUP_ROUNDS) best = Math.min(best, (double) nanos / ((long) threads * ops));
+        }
+        var result = new Result(name + " x" + threads, best, Double.NaN);
+        System.out.println(result);
+        return result;
+    }
+}
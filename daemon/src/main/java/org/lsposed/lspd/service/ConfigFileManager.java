@@ -30,9 +30,11 @@ import android.os.Process;
 import android.os.RemoteException;
 import android.os.SELinux;
 import android.os.SharedMemory;
+import android.os.SystemClock;
 import android.system.ErrnoException;
 import android.system.Os;
 import android.system.OsConstants;
+import android.system.StructPollfd;
 import android.util.Log;
 
 import androidx.annotation.Nullable;
@@ -40,9 +42,12 @@ import androidx.annotation.Nullable;
 import org.lsposed.daemon.BuildConfig;
 import org.lsposed.lspd.models.PreLoadedApk;
 import org.lsposed.lspd.util.InstallerVerifier;
+import org.lsposed.lspd.util.LogReader;
+import org.lsposed.lspd.util.PreferencesCodec;
 import org.lsposed.lspd.util.Utils;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -50,10 +55,14 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.lang.reflect.Method;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.LinkOption;
@@ -61,15 +70,25 @@ import java.nio.file.OpenOption;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
 import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.time.Instant;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
 import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
@@ -88,6 +107,14 @@ public class ConfigFileManager {
     static final File dbPath = configDirPath.resolve("modules_config.db").toFile();
     private static final Path logDirPath = basePath.resolve("log");
     private static final Path oldLogDirPath = basePath.resolve("log.old");
+    private static final Path dexCachePath = basePath.resolve("cache").resolve("dex");
+    private static final Path prefsPath = basePath.resolve("prefs");
+    private static final Path dexIndexPath = basePath.resolve("cache").resolve("index");
+    // per module, the least recently opened indexes are dropped first
+    private static final int MAX_DEX_INDEXES = 32;
+    private static final long MAX_DEX_INDEX_SIZE = 64 * 1024 * 1024;
+    // the writer is a client, which must not stall the storage of other indexes
+    private static final long DEX_INDEX_TIMEOUT_MS = 10 * 1000;
     private static final DateTimeFormatter formatter =
             DateTimeFormatter.ISO_LOCAL_DATE_TIME.withZone(Utils.getZoneId());
     @SuppressWarnings("FieldCanBeLocal")
@@ -95,12 +122,15 @@ public class ConfigFileManager {
     private static Resources res = null;
     private static ParcelFileDescriptor fd = null;
     private static SharedMemory preloadDex = null;
+    // apk path -> key of its cached dexes
+    private static final Map<String, String> dexCacheKeys = new ConcurrentHashMap<>();
 
     static {
         try {
             Files.createDirectories(basePath);
             SELinux.setFileContext(basePath.toString(), "u:object_r:system_file:s0");
             Files.createDirectories(configDirPath);
+            Files.createDirectories(dexCachePath);
             createLogDirPath();
         } catch (IOException e) {
             Log.e(TAG, Log.getStackTraceString(e));
@@ -312,15 +342,35 @@ public class ConfigFileManager {
         }
     }
 
+    private static void zipAddLogText(ZipOutputStream os, FileInputStream log, File index) throws IOException {
+        LogReader reader;
+        if (index.isFile()) {
+            try (var is = new FileInputStream(index)) {
+                reader = new LogReader(log.getFD(), is.getFD());
+            }
+        } else {
+            reader = new LogReader(log.getFD(), null);
+        }
+        var writer = new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8));
+        reader.writeText(writer);
+        writer.flush();
+    }
+
     private static void zipAddDir(ZipOutputStream os, Path path) throws IOException {
         if (!Files.isDirectory(path)) return;
         Files.walkFileTree(path, new SimpleFileVisitor<>() {
             public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
                 if (Files.isRegularFile(file)) {
                     var name = path.getParent().relativize(file).toString();
+                    // binary logs are exported as text, their index is not needed for that
+                    if (name.endsWith(".log.idx")) return FileVisitResult.CONTINUE;
                     try (var is = new FileInputStream(file.toFile())) {
                         os.putNextEntry(new ZipEntry(name));
-                        transfer(is, os);
+                        if (LogReader.isBinaryLog(is.getFD())) {
+                            zipAddLogText(os, is, LogcatService.getIndexFile(file.toFile()));
+                        } else {
+                            transfer(is, os);
+                        }
                         os.closeEntry();
                     } catch (IOException e) {
                         Log.w(TAG, name, e);
@@ -331,15 +381,20 @@ public class ConfigFileManager {
         });
     }
 
-    private static SharedMemory readDex(InputStream in, boolean obfuscate) throws IOException, ErrnoException {
+    private static SharedMemory readDex(InputStream in) throws IOException, ErrnoException {
         var memory = SharedMemory.create(null, in.available());
         var byteBuffer = memory.mapReadWrite();
         Channels.newChannel(in).read(byteBuffer);
         SharedMemory.unmap(byteBuffer);
+        return memory;
+    }
+
+    private static SharedMemory processDex(SharedMemory memory, boolean obfuscate) throws ErrnoException {
         if (obfuscate) {
             var newMemory = ObfuscationManager.obfuscateDex(memory);
             if (memory != newMemory) {
                 memory.close();
+                if (newMemory == null) throw new ErrnoException("obfuscateDex", OsConstants.EINVAL);
                 memory = newMemory;
             }
         }
@@ -347,16 +402,149 @@ public class ConfigFileManager {
         return memory;
     }
 
-    private static void readDexes(ZipFile apkFile, List<SharedMemory> preLoadedDexes,
-                                  boolean obfuscate) {
+    private static boolean readDexes(ZipFile apkFile, List<SharedMemory> preLoadedDexes,
+                                     boolean obfuscate) {
+        boolean complete = true;
+        var dexes = new ArrayList<SharedMemory>();
         int secondary = 2;
         for (var dexFile = apkFile.getEntry("classes.dex"); dexFile != null;
              dexFile = apkFile.getEntry("classes" + secondary + ".dex"), secondary++) {
             try (var is = apkFile.getInputStream(dexFile)) {
-                preLoadedDexes.add(readDex(is, obfuscate));
+                dexes.add(readDex(is));
             } catch (IOException | ErrnoException e) {
                 Log.w(TAG, "Can not load " + dexFile + " in " + apkFile, e);
+                complete = false;
+            }
+        }
+        // dexes are obfuscated independently, so multidex modules can use all cores
+        var processed = dexes.parallelStream().map(memory -> {
+            try {
+                return processDex(memory, obfuscate);
+            } catch (ErrnoException e) {
+                Log.w(TAG, "Can not process dex in " + apkFile, e);
+                memory.close();
+                return null;
             }
+        }).collect(Collectors.toList());
+        for (var memory : processed) {
+            if (memory != null) preLoadedDexes.add(memory);
+            else complete = false;
+        }
+        return complete;
+    }
+
+    // Identifies the processed dexes of an apk: a new apk, a different obfuscation mapping or
+    // a new daemon (which may obfuscate differently) all lead to a new key
+    @Nullable
+    private static String getDexCacheKey(String path, ZipFile apkFile, boolean obfuscate) {
+        try {
+            var attrs = Files.readAttributes(Paths.get(toGlobalNamespace(path)), BasicFileAttributes.class);
+            var key = new StringBuilder();
+            key.append(path).append('\0').append(attrs.size()).append('\0').append(attrs.lastModifiedTime().toMillis());
+            int secondary = 2;
+            for (var dexFile = apkFile.getEntry("classes.dex"); dexFile != null;
+                 dexFile = apkFile.getEntry("classes" + secondary + ".dex"), secondary++) {
+                key.append('\0').append(dexFile.getSize()).append(':').append(dexFile.getCrc());
+            }
+            key.append('\0').append(obfuscate ? new TreeMap<>(ObfuscationManager.getSignatures()) : "");
+            key.append('\0').append(BuildConfig.VERSION_CODE);
+            var digest = MessageDigest.getInstance("SHA-256").digest(key.toString().getBytes(StandardCharsets.UTF_8));
+            return String.format(Locale.ROOT, "%064x", new BigInteger(1, digest));
+        } catch (IOException | NoSuchAlgorithmException e) {
+            Log.w(TAG, "dex cache key of " + path, e);
+            return null;
+        }
+    }
+
+    private static String getDexName(int index) {
+        return index == 0 ? "classes.dex" : "classes" + (index + 1) + ".dex";
+    }
+
+    private static boolean readCachedDexes(String key, List<SharedMemory> preLoadedDexes) {
+        var dir = dexCachePath.resolve(key);
+        if (!Files.isDirectory(dir)) return false;
+        var dexes = new ArrayList<SharedMemory>();
+        try {
+            for (int i = 0; ; i++) {
+                var file = dir.resolve(getDexName(i));
+                if (!Files.isRegularFile(file)) break;
+                try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                    var size = channel.size();
+                    if (size <= 0 || size > Integer.MAX_VALUE) throw new IOException("Invalid size " + size + " of " + file);
+                    var memory = SharedMemory.create(null, (int) size);
+                    dexes.add(memory);
+                    var byteBuffer = memory.mapReadWrite();
+                    try {
+                        byteBuffer.put(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+                    } finally {
+                        SharedMemory.unmap(byteBuffer);
+                    }
+                    memory.setProtect(OsConstants.PROT_READ);
+                }
+            }
+        } catch (IOException | ErrnoException e) {
+            Log.w(TAG, "Invalid dex cache " + dir, e);
+            dexes.forEach(SharedMemory::close);
+            dexes.clear();
+        }
+        if (dexes.isEmpty()) {
+            try {
+                deleteFolderIfExists(dir);
+            } catch (IOException e) {
+                Log.w(TAG, "delete " + dir, e);
+            }
+            return false;
+        }
+        preLoadedDexes.addAll(dexes);
+        return true;
+    }
+
+    private static boolean writeCachedDexes(String key, List<SharedMemory> dexes) {
+        var dir = dexCachePath.resolve(key);
+        var tmp = dexCachePath.resolve(key + ".tmp");
+        try {
+            deleteFolderIfExists(tmp);
+            Files.createDirectories(tmp);
+            for (int i = 0; i < dexes.size(); i++) {
+                var byteBuffer = dexes.get(i).mapReadOnly();
+                try (var channel = FileChannel.open(tmp.resolve(getDexName(i)), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                    while (byteBuffer.hasRemaining()) channel.write(byteBuffer);
+                } finally {
+                    SharedMemory.unmap(byteBuffer);
+                }
+            }
+            // the directory only appears once all dexes are written
+            Files.move(tmp, dir, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } catch (IOException | ErrnoException e) {
+            Log.w(TAG, "Can not cache dexes to " + dir, e);
+            try {
+                deleteFolderIfExists(tmp);
+            } catch (IOException ignored) {
+            }
+            return false;
+        }
+    }
+
+    // Drops cached dexes not backing any of the given apks, e.g. of updated or removed modules,
+    // or of the other obfuscation setting
+    static void pruneDexCache(Collection<String> apkPaths) {
+        dexCacheKeys.keySet().retainAll(apkPaths);
+        var used = new HashSet<>(dexCacheKeys.values());
+        if (!Files.isDirectory(dexCachePath)) return;
+        try (var l = Files.list(dexCachePath)) {
+            l.filter(p -> {
+                var name = p.getFileName().toString();
+                return !name.endsWith(".tmp") && !used.contains(name);
+            }).forEach(p -> {
+                try {
+                    deleteFolderIfExists(p);
+                } catch (IOException e) {
+                    Log.w(TAG, "delete " + p, e);
+                }
+            });
+        } catch (IOException e) {
+            Log.w(TAG, "prune dex cache", e);
         }
     }
 
@@ -384,7 +572,16 @@ public class ConfigFileManager {
         var moduleClassNames = new ArrayList<String>(1);
         var moduleLibraryNames = new ArrayList<String>(1);
         try (var apkFile = new ZipFile(toGlobalNamespace(path))) {
-            readDexes(apkFile, preLoadedDexes, obfuscate);
+            var cacheKey = getDexCacheKey(path, apkFile, obfuscate);
+            boolean cached = cacheKey != null && readCachedDexes(cacheKey, preLoadedDexes);
+            if (!cached && readDexes(apkFile, preLoadedDexes, obfuscate) && cacheKey != null && !preLoadedDexes.isEmpty()) {
+                cached = writeCachedDexes(cacheKey, preLoadedDexes);
+            }
+            if (cached) {
+                dexCacheKeys.put(path, cacheKey);
+            } else {
+                dexCacheKeys.remove(path);
+            }
             readName(apkFile, "META-INF/xposed/java_init.list", moduleClassNames);
             if (moduleClassNames.isEmpty()) {
                 file.legacy = true;
@@ -438,7 +635,7 @@ public class ConfigFileManager {
     synchronized static SharedMemory getPreloadDex(boolean obfuscate) {
         if (preloadDex == null) {
             try (var is = new FileInputStream("framework/lspd.dex")) {
-                preloadDex = readDex(is, obfuscate);
+                preloadDex = processDex(readDex(is), obfuscate);
             } catch (Throwable e) {
                 Log.e(TAG, "preload dex", e);
             }
@@ -452,6 +649,121 @@ public class ConfigFileManager {
         }
     }
 
+    static Path resolvePreferencesDir(String packageName, int userId) {
+        return prefsPath.resolve(String.valueOf(userId)).resolve(packageName);
+    }
+
+    static Path resolvePreferencesFile(String packageName, int userId, String group) {
+        // group names are arbitrary, hex keeps them a single valid file name
+        var name = new StringBuilder(group.length() * 2 + 6);
+        for (var b : group.getBytes(StandardCharsets.UTF_8)) {
+            name.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        name.append(".prefs");
+        return resolvePreferencesDir(packageName, userId).resolve(name.toString());
+    }
+
+    // Replaces the file atomically, processes that mapped the old one keep a consistent snapshot
+    static void writePreferencesFile(Path file, Map<String, ?> prefs) throws IOException {
+        var dir = file.getParent();
+        Files.createDirectories(dir);
+        var tmp = dir.resolve(file.getFileName() + ".tmp");
+        try (var channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            var buffer = ByteBuffer.wrap(PreferencesCodec.encodeMap(prefs));
+            while (buffer.hasRemaining()) channel.write(buffer);
+        }
+        SELinux.setFileContext(tmp.toString(), "u:object_r:magisk_file:s0");
+        Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    // the SHA-1 signature of the dex in hex, see DexIndex.keyOf
+    static void ensureDexIndexKey(String key) throws RemoteException {
+        if (key == null || key.length() != 40) {
+            throw new RemoteException("Invalid dex index key: " + key);
+        }
+        for (int i = 0; i < key.length(); i++) {
+            if (Character.digit(key.charAt(i), 16) < 0 || Character.isUpperCase(key.charAt(i))) {
+                throw new RemoteException("Invalid dex index key: " + key);
+            }
+        }
+    }
+
+    // Indexes are kept per module, a module can only ever see the indexes it stored itself
+    private static Path resolveDexIndex(String packageName, String key) {
+        return dexIndexPath.resolve(packageName).resolve(key);
+    }
+
+    @Nullable
+    static ParcelFileDescriptor openDexIndex(String packageName, String key) {
+        var file = resolveDexIndex(packageName, key);
+        if (!Files.isRegularFile(file)) return null;
+        try {
+            Files.setLastModifiedTime(file, FileTime.from(Instant.now()));
+            return ParcelFileDescriptor.open(file.toFile(), ParcelFileDescriptor.MODE_READ_ONLY);
+        } catch (IOException e) {
+            Log.w(TAG, "open dex index " + file, e);
+            return null;
+        }
+    }
+
+    // Replaces the file atomically, processes that mapped the old one keep reading it
+    static void writeDexIndex(String packageName, String key, ParcelFileDescriptor data) {
+        var file = resolveDexIndex(packageName, key);
+        var dir = file.getParent();
+        var tmp = dir.resolve(key + ".tmp");
+        try (data) {
+            Files.createDirectories(dir);
+            try (var channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                var bytes = new byte[64 * 1024];
+                long size = 0;
+                long deadline = SystemClock.uptimeMillis() + DEX_INDEX_TIMEOUT_MS;
+                for (int n; (n = readBefore(data, bytes, deadline)) > 0; ) {
+                    size += n;
+                    if (size > MAX_DEX_INDEX_SIZE) throw new IOException("Dex index too large");
+                    var buffer = ByteBuffer.wrap(bytes, 0, n);
+                    while (buffer.hasRemaining()) channel.write(buffer);
+                }
+            }
+            SELinux.setFileContext(tmp.toString(), "u:object_r:magisk_file:s0");
+            Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            Log.w(TAG, "write dex index " + file, e);
+            try {
+                Files.deleteIfExists(tmp);
+            } catch (IOException ignored) {
+            }
+            return;
+        }
+        try (var l = Files.list(dir)) {
+            var indexes = l.filter(p -> !p.getFileName().toString().endsWith(".tmp"))
+                    .sorted(Comparator.comparingLong(p -> p.toFile().lastModified()))
+                    .collect(Collectors.toList());
+            for (int i = 0; i < indexes.size() - MAX_DEX_INDEXES; i++) {
+                Files.deleteIfExists(indexes.get(i));
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "trim dex indexes of " + packageName, e);
+        }
+    }
+
+    // Reads what is available once the pipe becomes readable, gives up at the deadline
+    private static int readBefore(ParcelFileDescriptor data, byte[] bytes, long deadline) throws IOException {
+        var pollfd = new StructPollfd();
+        pollfd.fd = data.getFileDescriptor();
+        pollfd.events = (short) OsConstants.POLLIN;
+        while (true) {
+            long left = deadline - SystemClock.uptimeMillis();
+            if (left <= 0) throw new IOException("Timed out reading dex index");
+            try {
+                if (Os.poll(new StructPollfd[]{pollfd}, (int) left) == 0) continue;
+                return Os.read(pollfd.fd, bytes, 0, bytes.length);
+            } catch (ErrnoException e) {
+                if (e.errno == OsConstants.EINTR || e.errno == OsConstants.EAGAIN) continue;
+                throw new IOException(e);
+            }
+        }
+    }
+
     static Path resolveModuleDir(String packageName, String dir, int userId, int uid) throws IOException {
         var path = modulePath.resolve(String.valueOf(userId)).resolve(packageName).resolve(dir).normalize();
         if (uid != -1) {
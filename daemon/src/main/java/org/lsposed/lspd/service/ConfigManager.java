@@ -34,7 +34,6 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteStatement;
 import android.os.Build;
-import android.os.Bundle;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.ParcelFileDescriptor;
@@ -47,6 +46,7 @@ import android.system.ErrnoException;
 import android.system.Os;
 import android.util.Log;
 import android.util.Pair;
+import android.util.SparseArray;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -55,11 +55,13 @@ import org.apache.commons.lang3.SerializationUtils;
 import org.lsposed.daemon.BuildConfig;
 import org.lsposed.lspd.models.Application;
 import org.lsposed.lspd.models.Module;
+import org.lsposed.lspd.util.PreferencesCodec;
 
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
@@ -68,6 +70,9 @@ import java.nio.file.Paths;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -80,6 +85,7 @@ import java.util.Objects;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
@@ -97,6 +103,8 @@ public class ConfigManager {
     private boolean verboseLog = true;
     private boolean dexObfuscate = true;
     private boolean enableStatusNotification = true;
+    private boolean hookStats = false;
+    private boolean methodHandleDispatch = true;
     private Path miscPath = null;
 
     private int managerUid = -1;
@@ -167,12 +175,28 @@ public class ConfigManager {
 
     private final Map<ProcessScope, List<Module>> cachedScope = new ConcurrentHashMap<>();
 
+    // uid, processName, modules; immutable snapshot of cachedScope rebuilt by cacheScopes()
+    // so that the checks on the process start path neither iterate nor allocate
+    private volatile SparseArray<Map<String, List<Module>>> scopeIndex = new SparseArray<>();
+
+    // packageName, userId, processes the app contributes to cachedScope; lets a single package
+    // event recompute only its own entries
+    private final Map<Pair<String, Integer>, Set<ProcessScope>> cachedAppProcesses = new ConcurrentHashMap<>();
+
+    // process, the apps contributing to it; the inverse of cachedAppProcesses
+    private final Map<ProcessScope, Set<Pair<String, Integer>>> cachedProcessApps = new ConcurrentHashMap<>();
+
     // packageName, Module
     private final Map<String, Module> cachedModule = new ConcurrentHashMap<>();
 
     // packageName, userId, group, key, value
     private final Map<Pair<String, Integer>, Map<String, HashMap<String, Object>>> cachedConfig = new ConcurrentHashMap<>();
 
+    // encoded size of each config, maintained on writes instead of serializing the whole config
+    private final Map<Pair<String, Integer>, AtomicLong> cachedConfigSize = new ConcurrentHashMap<>();
+
+    private static final long MAX_CONFIG_SIZE = 1024 * 1024;
+
     private Set<String> scopeRequestBlocked = new HashSet<>();
 
     private static SQLiteDatabase openDb() {
@@ -258,6 +282,21 @@ public class ConfigManager {
         }).collect(Collectors.toList());
     }
 
+    // The obfuscation mapping changes with every boot, so obfuscated names cannot fingerprint the
+    // device for long. Within a boot it stays the same, so that daemon restarts and module cache
+    // refreshes still reuse obfuscated dexes from the disk cache; after a reboot they miss it.
+    private static long getBootSeed(long secret) {
+        try {
+            var digest = MessageDigest.getInstance("SHA-256");
+            digest.update(ByteBuffer.allocate(Long.BYTES).putLong(secret).array());
+            digest.update(Files.readAllBytes(Paths.get("/proc/sys/kernel/random/boot_id")));
+            return ByteBuffer.wrap(digest.digest()).getLong();
+        } catch (IOException | NoSuchAlgorithmException e) {
+            Log.w(TAG, "boot seed", e);
+            return new SecureRandom().nextLong();
+        }
+    }
+
     private synchronized void updateConfig() {
         Map<String, Object> config = getModulePrefs("lspd", 0, "config");
 
@@ -267,6 +306,13 @@ public class ConfigManager {
         bool = config.get("enable_dex_obfuscate");
         dexObfuscate = bool == null || (boolean) bool;
 
+        var secret = (Long) config.get("dex_obfuscate_seed");
+        if (secret == null) {
+            secret = new SecureRandom().nextLong();
+            updateModulePrefs("lspd", 0, "config", "dex_obfuscate_seed", secret);
+        }
+        ObfuscationManager.setSeed(getBootSeed(secret));
+
         bool = config.get("enable_auto_add_shortcut");
         if (bool != null) {
             // TODO: remove
@@ -276,6 +322,12 @@ public class ConfigManager {
         bool = config.get("enable_status_notification");
         enableStatusNotification = bool == null || (boolean) bool;
 
+        bool = config.get("enable_hook_stats");
+        hookStats = bool != null && (boolean) bool;
+
+        bool = config.get("enable_method_handle_dispatch");
+        methodHandleDispatch = bool == null || (boolean) bool;
+
         var set = (Set<String>) config.get("scope_request_blocked");
         scopeRequestBlocked = set == null ? new HashSet<>() : set;
 
@@ -458,7 +510,13 @@ public class ConfigManager {
                 var group = cursor.getString(groupIdx);
                 var key = cursor.getString(keyIdx);
                 var data = cursor.getBlob(dataIdx);
-                var object = SerializationUtils.deserialize(data);
+                Object object;
+                try {
+                    object = isJavaSerialized(data) ? SerializationUtils.deserialize(data) : PreferencesCodec.decode(data);
+                } catch (IOException | RuntimeException e) {
+                    Log.w(TAG, "invalid config " + name + "/" + group + "/" + key, e);
+                    continue;
+                }
                 if (object == null) continue;
                 config.computeIfAbsent(group, g -> new HashMap<>()).put(key, object);
             }
@@ -466,16 +524,42 @@ public class ConfigManager {
         return config;
     }
 
+    // rows written before the typed encoding start with the serialization stream magic
+    private static boolean isJavaSerialized(byte[] data) {
+        return data.length >= 2 && data[0] == (byte) 0xac && data[1] == (byte) 0xed;
+    }
+
     public void updateModulePrefs(String moduleName, int userId, String group, String key, Object value) {
         Map<String, Object> values = new HashMap<>();
         values.put(key, value);
         updateModulePrefs(moduleName, userId, group, values);
     }
 
+    private static long sizeOf(String key, Object value) {
+        return PreferencesCodec.sizeOf(key) + PreferencesCodec.sizeOf(value);
+    }
+
     public void updateModulePrefs(String moduleName, int userId, String group, Map<String, Object> values) {
-        var config = cachedConfig.computeIfAbsent(new Pair<>(moduleName, userId), module -> fetchModuleConfig(module.first, module.second));
+        var pair = new Pair<>(moduleName, userId);
+        var config = cachedConfig.computeIfAbsent(pair, module -> fetchModuleConfig(module.first, module.second));
+        var configSize = cachedConfigSize.computeIfAbsent(pair, module -> {
+            long size = 0;
+            for (var prefs : config.values()) {
+                for (var entry : prefs.entrySet()) size += sizeOf(entry.getKey(), entry.getValue());
+            }
+            return new AtomicLong(size);
+        });
         config.compute(group, (g, prefs) -> {
             HashMap<String, Object> newPrefs = prefs == null ? new HashMap<>() : new HashMap<>(prefs);
+            long delta = 0;
+            for (var entry : values.entrySet()) {
+                var old = newPrefs.get(entry.getKey());
+                if (old != null) delta -= sizeOf(entry.getKey(), old);
+                if (entry.getValue() instanceof Serializable) delta += sizeOf(entry.getKey(), entry.getValue());
+            }
+            if (delta > 0 && configSize.get() + delta > MAX_CONFIG_SIZE) {
+                throw new IllegalArgumentException("Preference too large");
+            }
             executeInTransaction(() -> {
                 for (var entry : values.entrySet()) {
                     var key = entry.getKey();
@@ -485,7 +569,7 @@ public class ConfigManager {
                         var contents = new ContentValues();
                         contents.put("`group`", group);
                         contents.put("`key`", key);
-                        contents.put("data", SerializationUtils.serialize((Serializable) value));
+                        contents.put("data", PreferencesCodec.encode(value));
                         contents.put("module_pkg_name", moduleName);
                         contents.put("user_id", String.valueOf(userId));
                         db.insertWithOnConflict("configs", null, contents, SQLiteDatabase.CONFLICT_REPLACE);
@@ -494,12 +578,21 @@ public class ConfigManager {
                         db.delete("configs", "module_pkg_name=? and user_id=? and `group`=? and `key`=?", new String[]{moduleName, String.valueOf(userId), group, key});
                     }
                 }
-                var bundle = new Bundle();
-                bundle.putSerializable("config", (Serializable) config);
-                if (bundle.size() > 1024 * 1024) {
-                    throw new IllegalArgumentException("Preference too large");
-                }
             });
+            configSize.addAndGet(delta);
+            // only refresh files some process has asked for
+            var file = ConfigFileManager.resolvePreferencesFile(moduleName, userId, group);
+            if (Files.exists(file)) {
+                try {
+                    ConfigFileManager.writePreferencesFile(file, newPrefs);
+                } catch (IOException e) {
+                    Log.w(TAG, "update " + file, e);
+                    try {
+                        Files.deleteIfExists(file);
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
             return newPrefs;
         });
     }
@@ -510,6 +603,38 @@ public class ConfigManager {
         if (config != null) {
             config.remove(group);
         }
+        // recounted on the next write
+        cachedConfigSize.remove(new Pair<>(moduleName, userId));
+        try {
+            Files.deleteIfExists(ConfigFileManager.resolvePreferencesFile(moduleName, userId, group));
+        } catch (IOException e) {
+            Log.w(TAG, "delete prefs file of " + moduleName, e);
+        }
+    }
+
+    // A read-only descriptor of the group's preferences encoded by PreferencesCodec, which
+    // injected processes map instead of receiving the whole map over binder
+    @Nullable
+    public ParcelFileDescriptor getModulePrefsFile(String moduleName, int userId, String group) {
+        var config = cachedConfig.computeIfAbsent(new Pair<>(moduleName, userId), module -> fetchModuleConfig(module.first, module.second));
+        var file = ConfigFileManager.resolvePreferencesFile(moduleName, userId, group);
+        // serialized with updateModulePrefs, which rewrites the file inside compute as well
+        config.compute(group, (g, prefs) -> {
+            if (!Files.exists(file)) {
+                try {
+                    ConfigFileManager.writePreferencesFile(file, prefs == null ? Collections.emptyMap() : prefs);
+                } catch (IOException e) {
+                    Log.w(TAG, "write " + file, e);
+                }
+            }
+            return prefs;
+        });
+        try {
+            return ParcelFileDescriptor.open(file.toFile(), ParcelFileDescriptor.MODE_READ_ONLY);
+        } catch (IOException e) {
+            Log.w(TAG, "open " + file, e);
+            return null;
+        }
     }
 
     public HashMap<String, Object> getModulePrefs(String moduleName, int userId, String group) {
@@ -524,6 +649,9 @@ public class ConfigManager {
         }
         cachedModule.clear();
         cachedScope.clear();
+        cachedAppProcesses.clear();
+        cachedProcessApps.clear();
+        scopeIndex = new SparseArray<>();
     }
 
     private synchronized void cacheModules() {
@@ -623,6 +751,7 @@ public class ConfigManager {
                 return;
             }
         }
+        ConfigFileManager.pruneDexCache(cachedModule.values().stream().map(m -> m.apkPath).collect(Collectors.toSet()));
         Log.d(TAG, "cached modules");
         for (var module : cachedModule.entrySet()) {
             Log.d(TAG, module.getKey() + " " + module.getValue().apkPath);
@@ -639,6 +768,8 @@ public class ConfigManager {
             else lastScopeCacheTime = SystemClock.elapsedRealtime();
         }
         cachedScope.clear();
+        cachedAppProcesses.clear();
+        cachedProcessApps.clear();
         try (Cursor cursor = db.query("scope INNER JOIN modules ON scope.mid = modules.mid", new String[]{"app_pkg_name", "module_pkg_name", "user_id"},
                 "enabled = 1", null, null, null, null)) {
             int appPkgNameIdx = cursor.getColumnIndex("app_pkg_name");
@@ -693,21 +824,7 @@ public class ConfigManager {
                     }
                     var module = cachedModule.get(modulePackageName);
                     assert module != null;
-                    for (ProcessScope processScope : processesScope) {
-                        cachedScope.computeIfAbsent(processScope,
-                                ignored -> new LinkedList<>()).add(module);
-                        // Always allow the module to inject itself
-                        if (modulePackageName.equals(app.packageName)) {
-                            var appId = processScope.uid % PER_USER_RANGE;
-                            for (var user : UserService.getUsers()) {
-                                var moduleUid = user.id * PER_USER_RANGE + appId;
-                                if (moduleUid == processScope.uid) continue; // skip duplicate
-                                var moduleSelf = new ProcessScope(processScope.processName, moduleUid);
-                                cachedScope.computeIfAbsent(moduleSelf,
-                                        ignored -> new LinkedList<>()).add(module);
-                            }
-                        }
-                    }
+                    addScope(app, module, processesScope);
                 } catch (RemoteException e) {
                     Log.e(TAG, Log.getStackTraceString(e));
                 }
@@ -728,6 +845,7 @@ public class ConfigManager {
                 return;
             }
         }
+        rebuildScopeIndex();
         Log.d(TAG, "cached scope");
         cachedScope.forEach((ps, modules) -> {
             Log.d(TAG, ps.processName + "/" + ps.uid);
@@ -735,18 +853,148 @@ public class ConfigManager {
         });
     }
 
+    private void addScope(Application app, Module module, List<ProcessScope> processesScope) throws RemoteException {
+        var key = new Pair<>(app.packageName, app.userId);
+        var appProcesses = cachedAppProcesses.computeIfAbsent(key, k -> new HashSet<>());
+        for (ProcessScope processScope : processesScope) {
+            cachedScope.computeIfAbsent(processScope,
+                    ignored -> new LinkedList<>()).add(module);
+            appProcesses.add(processScope);
+            cachedProcessApps.computeIfAbsent(processScope, k -> new HashSet<>()).add(key);
+            // Always allow the module to inject itself
+            if (module.packageName.equals(app.packageName)) {
+                var appId = processScope.uid % PER_USER_RANGE;
+                for (var user : UserService.getUsers()) {
+                    var moduleUid = user.id * PER_USER_RANGE + appId;
+                    if (moduleUid == processScope.uid) continue; // skip duplicate
+                    var moduleSelf = new ProcessScope(processScope.processName, moduleUid);
+                    cachedScope.computeIfAbsent(moduleSelf,
+                            ignored -> new LinkedList<>()).add(module);
+                    appProcesses.add(moduleSelf);
+                    cachedProcessApps.computeIfAbsent(moduleSelf, k -> new HashSet<>()).add(key);
+                }
+            }
+        }
+    }
+
+    private boolean isSharedProcess(Pair<String, Integer> app, Iterable<ProcessScope> processes) {
+        for (var process : processes) {
+            var apps = cachedProcessApps.get(process);
+            if (apps == null) continue;
+            for (var other : apps) {
+                if (!other.equals(app)) return true;
+            }
+        }
+        return false;
+    }
+
+    // Called from package broadcasts, which must not wait for the queries and binder calls
+    public void updateAppCache(String packageName, int userId) {
+        cacheHandler.post(() -> cacheAppScope(packageName, userId));
+    }
+
+    // Recomputes the cached scope of one app in one user after it was installed, updated or
+    // removed, instead of rebuilding the scope of every app. Falls back to the full rebuild if
+    // the app shares processes with another package, since their modules cannot be told apart.
+    private synchronized void cacheAppScope(String packageName, int userId) {
+        if (!PackageService.isAlive()) return;
+        var key = new Pair<>(packageName, userId);
+        var app = new Application();
+        app.packageName = packageName;
+        app.userId = userId;
+        List<ProcessScope> processes;
+        try {
+            processes = getAssociatedProcesses(app);
+        } catch (RemoteException e) {
+            processes = Collections.emptyList();
+        }
+        var oldProcesses = cachedAppProcesses.getOrDefault(key, Collections.emptySet());
+        if (isSharedProcess(key, oldProcesses) || isSharedProcess(key, processes)) {
+            Log.d(TAG, packageName + "/" + userId + " shares processes, rebuilding all scopes");
+            synchronized (cacheHandler) {
+                requestScopeCacheTime = SystemClock.elapsedRealtime();
+            }
+            cacheScopes();
+            return;
+        }
+
+        List<Module> modules = new ArrayList<>();
+        try (Cursor cursor = db.query("scope INNER JOIN modules ON scope.mid = modules.mid", new String[]{"module_pkg_name"},
+                "app_pkg_name = ? AND user_id = ? AND enabled = 1", new String[]{packageName, String.valueOf(userId)}, null, null, null)) {
+            int modulePkgNameIdx = cursor.getColumnIndex("module_pkg_name");
+            while (cursor.moveToNext()) {
+                var module = cachedModule.get(cursor.getString(modulePkgNameIdx));
+                try {
+                    if (module != null && PackageService.isPackageAvailable(module.packageName, userId, true)) {
+                        modules.add(module);
+                    }
+                } catch (Throwable e) {
+                    Log.w(TAG, "check package availability ", e);
+                }
+            }
+        }
+
+        oldProcesses.forEach(cachedScope::remove);
+        oldProcesses.forEach(cachedProcessApps::remove);
+        cachedAppProcesses.remove(key);
+        // system server always loads database
+        if (!packageName.equals("system")) {
+            if (processes.isEmpty()) {
+                if (!modules.isEmpty()) {
+                    Log.d(TAG, "removing obsolete package: " + packageName + "/" + userId);
+                    removeAppWithoutCache(app);
+                }
+            } else {
+                try {
+                    for (var module : modules) {
+                        addScope(app, module, processes);
+                    }
+                } catch (RemoteException e) {
+                    Log.e(TAG, Log.getStackTraceString(e));
+                }
+            }
+        }
+        rebuildScopeIndex();
+        Log.d(TAG, "cached scope of " + packageName + "/" + userId);
+    }
+
+    private void rebuildScopeIndex() {
+        var index = new SparseArray<Map<String, List<Module>>>();
+        cachedScope.forEach((ps, modules) -> {
+            var processes = index.get(ps.uid);
+            if (processes == null) {
+                processes = new HashMap<>();
+                index.put(ps.uid, processes);
+            }
+            processes.put(ps.processName, Collections.unmodifiableList(new ArrayList<>(modules)));
+        });
+        scopeIndex = index;
+    }
+
+    @Nullable
+    private List<Module> lookupScope(String processName, int uid) {
+        var processes = scopeIndex.get(uid);
+        return processes == null ? null : processes.get(processName);
+    }
+
     // This is called when a new process created, use the cached result
     public List<Module> getModulesForProcess(String processName, int uid) {
-        return isManager(uid) ? Collections.emptyList() : cachedScope.getOrDefault(new ProcessScope(processName, uid), Collections.emptyList());
+        if (isManager(uid)) return Collections.emptyList();
+        var modules = lookupScope(processName, uid);
+        return modules == null ? Collections.emptyList() : modules;
     }
 
     // This is called when a new process created, use the cached result
+    public boolean shouldSkipProcess(String processName, int uid) {
+        return lookupScope(processName, uid) == null && !isManager(uid);
+    }
+
     public boolean shouldSkipProcess(ProcessScope scope) {
-        return !cachedScope.containsKey(scope) && !isManager(scope.uid);
+        return shouldSkipProcess(scope.processName, scope.uid);
     }
 
     public boolean isUidHooked(int uid) {
-        return cachedScope.keySet().stream().reduce(false, (p, scope) -> p || scope.uid == uid, Boolean::logicalOr);
+        return scopeIndex.indexOfKey(uid) >= 0;
     }
 
     @Nullable
@@ -922,6 +1170,7 @@ public class ConfigManager {
         try {
             for (var user : UserService.getUsers()) {
                 removeModulePrefs(user.id, packageName);
+                ConfigFileManager.deleteFolderIfExists(ConfigFileManager.resolvePreferencesDir(packageName, user.id));
             }
         } catch (Throwable e) {
             Log.w(TAG, "remove module prefs for " + packageName);
@@ -995,8 +1244,6 @@ public class ConfigManager {
     }
 
     public void setVerboseLog(boolean on) {
-        return;
-/*
         if (BuildConfig.DEBUG) return;
         var logcatService = ServiceManager.getLogcatService();
         if (on) {
@@ -1006,7 +1253,6 @@ public class ConfigManager {
         }
         updateModulePrefs("lspd", 0, "config", "enable_verbose_log", on);
         verboseLog = on;
-*/
     }
 
     public boolean verboseLog() {
@@ -1051,6 +1297,26 @@ public class ConfigManager {
         enableStatusNotification = enable;
     }
 
+    // only takes effect for processes started afterwards
+    public boolean hookStats() {
+        return hookStats;
+    }
+
+    public void setHookStats(boolean enable) {
+        updateModulePrefs("lspd", 0, "config", "enable_hook_stats", enable);
+        hookStats = enable;
+    }
+
+    // only takes effect for processes started afterwards
+    public boolean methodHandleDispatch() {
+        return methodHandleDispatch;
+    }
+
+    public void setMethodHandleDispatch(boolean enable) {
+        updateModulePrefs("lspd", 0, "config", "enable_method_handle_dispatch", enable);
+        methodHandleDispatch = enable;
+    }
+
     public ParcelFileDescriptor getManagerApk() {
         try {
             return ConfigFileManager.getManagerApk();
@@ -1061,8 +1327,6 @@ public class ConfigManager {
     }
 
     public ParcelFileDescriptor getModulesLog() {
-        return null;
-/*
         try {
             var modulesLog = ServiceManager.getLogcatService().getModulesLog();
             if (modulesLog == null) return null;
@@ -1071,12 +1335,9 @@ public class ConfigManager {
             Log.e(TAG, Log.getStackTraceString(e));
             return null;
         }
-*/
     }
 
     public ParcelFileDescriptor getVerboseLog() {
-        return null;
-/*
         try {
             var verboseLog = ServiceManager.getLogcatService().getVerboseLog();
             if (verboseLog == null) return null;
@@ -1085,11 +1346,21 @@ public class ConfigManager {
             Log.e(TAG, Log.getStackTraceString(e));
             return null;
         }
-*/
+    }
+
+    public ParcelFileDescriptor getLogIndex(boolean verbose) {
+        try {
+            var index = ServiceManager.getLogcatService().getLogIndex(verbose);
+            if (index == null) return null;
+            return ParcelFileDescriptor.open(index, ParcelFileDescriptor.MODE_READ_ONLY);
+        } catch (FileNotFoundException e) {
+            Log.e(TAG, Log.getStackTraceString(e));
+            return null;
+        }
     }
 
     public boolean clearLogs(boolean verbose) {
-//        ServiceManager.getLogcatService().refresh(verbose);
+        ServiceManager.getLogcatService().refresh(verbose);
         return true;
     }
 
@@ -21,6 +21,7 @@ package org.lsposed.lspd.service;
 
 import static org.lsposed.lspd.service.ServiceManager.TAG;
 
+import android.os.Bundle;
 import android.os.IBinder;
 import android.os.Parcel;
 import android.os.ParcelFileDescriptor;
@@ -50,6 +51,7 @@ public class LSPApplicationService extends ILSPApplicationService.Stub {
         final int pid;
         final String processName;
         final IBinder heartBeat;
+        volatile Bundle hookStats = null;
 
         ProcessInfo(int uid, int pid, String processName, IBinder heartBeat) throws RemoteException {
             this.uid = uid;
@@ -152,6 +154,36 @@ public class LSPApplicationService extends ILSPApplicationService.Stub {
         return ConfigManager.getInstance().getManagerApk();
     }
 
+    @Override
+    public boolean isHookStatsEnabled() throws RemoteException {
+        ensureRegistered();
+        return ConfigManager.getInstance().hookStats();
+    }
+
+    @Override
+    public boolean isMethodHandleDispatchEnabled() throws RemoteException {
+        ensureRegistered();
+        return ConfigManager.getInstance().methodHandleDispatch();
+    }
+
+    @Override
+    public void reportHookStats(Bundle stats) throws RemoteException {
+        var processInfo = ensureRegistered();
+        processInfo.hookStats = stats;
+    }
+
+    // processName/pid, stats from HookStats.snapshot() already sorted by total time
+    static Bundle getHookStats() {
+        var res = new Bundle();
+        for (var processInfo : processes.values()) {
+            var stats = processInfo.hookStats;
+            if (stats != null) {
+                res.putBundle(processInfo.processName + "/" + processInfo.pid, stats);
+            }
+        }
+        return res;
+    }
+
     public boolean hasRegister(int uid, int pid) {
         return processes.containsKey(new Pair<>(uid, pid));
     }
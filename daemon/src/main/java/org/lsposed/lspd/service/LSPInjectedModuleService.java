@@ -5,12 +5,18 @@ import static org.lsposed.lspd.service.PackageService.PER_USER_RANGE;
 
 import android.os.Binder;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
 import android.util.Log;
+import android.util.Pair;
 
 import org.lsposed.lspd.models.Module;
 
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
@@ -21,9 +27,38 @@ public class LSPInjectedModuleService extends ILSPInjectedModuleService.Stub {
 
     private static final String TAG = "LSPosedInjectedModuleService";
 
+    // how long changes are collected before being sent, so a burst of writes from the
+    // module's settings becomes a single transaction per subscriber
+    private static final long BATCH_DELAY_MS = 50;
+
+    private static final Handler batchHandler;
+
+    // dex indexes are read from the module's pipe, away from the binder threads
+    private static final Handler indexHandler;
+
+    static {
+        var thread = new HandlerThread("remote-prefs");
+        thread.start();
+        batchHandler = new Handler(thread.getLooper());
+        var indexThread = new HandlerThread("dex-index");
+        indexThread.start();
+        indexHandler = new Handler(indexThread.getLooper());
+    }
+
     private final String mPackageName;
 
-    Map<String, Set<IRemotePreferenceCallback>> callbacks = new ConcurrentHashMap<>();
+    // userId, group
+    Map<Pair<Integer, String>, Set<IRemotePreferenceCallback>> callbacks = new ConcurrentHashMap<>();
+
+    // guarded by pendingUpdates
+    private final Map<Pair<Integer, String>, PendingUpdate> pendingUpdates = new HashMap<>();
+    private final Map<Pair<Integer, String>, Long> versions = new HashMap<>();
+
+    private static class PendingUpdate {
+        final HashMap<String, Object> puts = new HashMap<>();
+        final HashSet<String> deletes = new HashSet<>();
+        long version;
+    }
 
     LSPInjectedModuleService(String packageName) {
         mPackageName = packageName;
@@ -38,9 +73,11 @@ public class LSPInjectedModuleService extends ILSPInjectedModuleService.Stub {
     public Bundle requestRemotePreferences(String group, IRemotePreferenceCallback callback) {
         var bundle = new Bundle();
         var userId = Binder.getCallingUid() / PER_USER_RANGE;
-        bundle.putSerializable("map", ConfigManager.getInstance().getModulePrefs(mPackageName, userId, group));
+        var key = new Pair<>(userId, group);
         if (callback != null) {
-            var groupCallbacks = callbacks.computeIfAbsent(group, k -> ConcurrentHashMap.newKeySet());
+            // subscribe first, changes racing with the snapshot are sent again and skipped
+            // by the client according to the version
+            var groupCallbacks = callbacks.computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet());
             groupCallbacks.add(callback);
             try {
                 callback.asBinder().linkToDeath(() -> groupCallbacks.remove(callback), 0);
@@ -48,6 +85,16 @@ public class LSPInjectedModuleService extends ILSPInjectedModuleService.Stub {
                 Log.w(TAG, "requestRemotePreferences: ", e);
             }
         }
+        // read before the snapshot, which then contains at least every change up to it
+        synchronized (pendingUpdates) {
+            bundle.putLong("version", versions.getOrDefault(key, 0L));
+        }
+        var fd = ConfigManager.getInstance().getModulePrefsFile(mPackageName, userId, group);
+        if (fd != null) {
+            bundle.putParcelable("fd", fd);
+        } else {
+            bundle.putSerializable("map", ConfigManager.getInstance().getModulePrefs(mPackageName, userId, group));
+        }
         return bundle;
     }
 
@@ -76,16 +123,74 @@ public class LSPInjectedModuleService extends ILSPInjectedModuleService.Stub {
         }
     }
 
-    void onUpdateRemotePreferences(String group, Bundle diff) {
-        var groupCallbacks = callbacks.get(group);
-        if (groupCallbacks != null) {
-            for (var callback : groupCallbacks) {
-                try {
-                    callback.onUpdate(diff);
-                } catch (RemoteException e) {
-                    groupCallbacks.remove(callback);
+    @Override
+    public ParcelFileDescriptor openDexIndex(String key) throws RemoteException {
+        ConfigFileManager.ensureDexIndexKey(key);
+        return ConfigFileManager.openDexIndex(mPackageName, key);
+    }
+
+    @Override
+    public void storeDexIndex(String key, ParcelFileDescriptor data) throws RemoteException {
+        try {
+            ConfigFileManager.ensureDexIndexKey(key);
+        } catch (RemoteException e) {
+            try {
+                data.close();
+            } catch (IOException ignored) {
+            }
+            throw e;
+        }
+        indexHandler.post(() -> ConfigFileManager.writeDexIndex(mPackageName, key, data));
+    }
+
+    // Merges a committed change into the pending delta of the group, which is sent once the
+    // batch window closes. Every change bumps the group's version.
+    @SuppressWarnings("unchecked")
+    void onUpdateRemotePreferences(int userId, String group, Bundle diff) {
+        var key = new Pair<>(userId, group);
+        var deletes = diff.containsKey("delete") ? (Set<String>) diff.getSerializable("delete") : null;
+        var puts = diff.containsKey("put") ? (Map<String, Object>) diff.getSerializable("put") : null;
+        synchronized (pendingUpdates) {
+            var update = pendingUpdates.get(key);
+            if (update == null) {
+                update = new PendingUpdate();
+                pendingUpdates.put(key, update);
+                batchHandler.postDelayed(() -> flushRemotePreferences(key), BATCH_DELAY_MS);
+            }
+            if (deletes != null) {
+                for (var k : deletes) {
+                    update.puts.remove(k);
+                    update.deletes.add(k);
+                }
+            }
+            if (puts != null) {
+                for (var entry : puts.entrySet()) {
+                    update.deletes.remove(entry.getKey());
+                    update.puts.put(entry.getKey(), entry.getValue());
                 }
             }
+            update.version = versions.merge(key, 1L, Long::sum);
+        }
+    }
+
+    private void flushRemotePreferences(Pair<Integer, String> key) {
+        PendingUpdate update;
+        synchronized (pendingUpdates) {
+            update = pendingUpdates.remove(key);
+        }
+        if (update == null) return;
+        var groupCallbacks = callbacks.get(key);
+        if (groupCallbacks == null || groupCallbacks.isEmpty()) return;
+        var delta = new Bundle();
+        if (!update.puts.isEmpty()) delta.putSerializable("put", update.puts);
+        if (!update.deletes.isEmpty()) delta.putSerializable("delete", update.deletes);
+        delta.putLong("version", update.version);
+        for (var callback : groupCallbacks) {
+            try {
+                callback.onUpdate(delta);
+            } catch (RemoteException e) {
+                groupCallbacks.remove(callback);
+            }
         }
     }
 }
@@ -431,6 +431,11 @@ public class LSPManagerService extends ILSPManagerService.Stub {
         return ConfigManager.getInstance().getModulesLog();
     }
 
+    @Override
+    public ParcelFileDescriptor getLogIndex(boolean verbose) {
+        return ConfigManager.getInstance().getLogIndex(verbose);
+    }
+
     @Override
     public boolean clearLogs(boolean verbose) {
         return ConfigManager.getInstance().clearLogs(verbose);
@@ -634,6 +639,31 @@ public class LSPManagerService extends ILSPManagerService.Stub {
         ConfigManager.getInstance().setDexObfuscate(enabled);
     }
 
+    @Override
+    public boolean getHookStatsEnabled() {
+        return ConfigManager.getInstance().hookStats();
+    }
+
+    @Override
+    public void setHookStatsEnabled(boolean enabled) {
+        ConfigManager.getInstance().setHookStats(enabled);
+    }
+
+    @Override
+    public Bundle getHookStats() {
+        return LSPApplicationService.getHookStats();
+    }
+
+    @Override
+    public boolean getMethodHandleDispatch() {
+        return ConfigManager.getInstance().methodHandleDispatch();
+    }
+
+    @Override
+    public void setMethodHandleDispatch(boolean enabled) {
+        ConfigManager.getInstance().setMethodHandleDispatch(enabled);
+    }
+
     @Override
     public int getDex2OatWrapperCompatibility() {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
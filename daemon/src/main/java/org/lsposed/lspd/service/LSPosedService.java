@@ -93,7 +93,7 @@ public class LSPosedService extends ILSPosedService.Stub {
             Log.d(TAG, "Skipped duplicated request for uid " + uid + " pid " + pid);
             return null;
         }
-        if (!ServiceManager.getManagerService().shouldStartManager(pid, uid, processName) && ConfigManager.getInstance().shouldSkipProcess(new ConfigManager.ProcessScope(processName, uid))) {
+        if (!ServiceManager.getManagerService().shouldStartManager(pid, uid, processName) && ConfigManager.getInstance().shouldSkipProcess(processName, uid)) {
             Log.d(TAG, "Skipped " + processName + "/" + uid);
             return null;
         }
@@ -167,7 +167,7 @@ public class LSPosedService extends ILSPosedService.Stub {
                     isXposedModule = ConfigManager.getInstance().updateModuleApkPath(moduleName, ConfigManager.getInstance().getModuleApkPath(applicationInfo), false);
                 } else if (ConfigManager.getInstance().isUidHooked(uid)) {
                     // it will auto update obsolete scope from database
-                    ConfigManager.getInstance().updateAppCache();
+                    updateAppCache(moduleName, userId);
                 }
                 broadcastAndShowNotification(moduleName, userId, intent, isXposedModule);
             }
@@ -180,7 +180,7 @@ public class LSPosedService extends ILSPosedService.Stub {
                     ConfigManager.getInstance().updateCache();
                 } else if (ConfigManager.getInstance().isUidHooked(uid)) {
                     // it will auto remove obsolete scope from database
-                    ConfigManager.getInstance().updateAppCache();
+                    updateAppCache(moduleName, userId);
                 }
             }
         }
@@ -194,6 +194,14 @@ public class LSPosedService extends ILSPosedService.Stub {
         }
     }
 
+    private void updateAppCache(String packageName, int userId) {
+        if (packageName != null) {
+            ConfigManager.getInstance().updateAppCache(packageName, userId);
+        } else {
+            ConfigManager.getInstance().updateAppCache();
+        }
+    }
+
     private void broadcastAndShowNotification(String packageName, int userId, Intent intent, boolean isXposedModule) {
         Log.d(TAG, "package " + packageName + " changed, dispatching to manager");
         var action = intent.getAction();
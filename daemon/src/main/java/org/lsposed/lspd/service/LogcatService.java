@@ -26,6 +26,8 @@ public class LogcatService implements Runnable {
             ParcelFileDescriptor.MODE_APPEND;
     private int modulesFd = -1;
     private int verboseFd = -1;
+    private int modulesIndexFd = -1;
+    private int verboseIndexFd = -1;
     private Thread thread = null;
 
     static class LogLRU extends LinkedHashMap<File, Object> {
@@ -39,6 +41,8 @@ public class LogcatService implements Runnable {
         synchronized protected boolean removeEldestEntry(Entry<File, Object> eldest) {
             if (size() > MAX_ENTRIES && eldest.getKey().delete()) {
                 Log.d(TAG, "Deleted old log " + eldest.getKey().getAbsolutePath());
+                //noinspection ResultOfMethodCallIgnored
+                getIndexFile(eldest.getKey()).delete();
                 return true;
             }
             return false;
@@ -96,11 +100,9 @@ public class LogcatService implements Runnable {
 
     @Override
     public void run() {
-/*
         Log.i(TAG, "start running");
         runLogcat();
         Log.i(TAG, "stopped");
-*/
     }
 
     @SuppressWarnings("unused")
@@ -117,26 +119,41 @@ public class LogcatService implements Runnable {
             Log.i(TAG, "New log file: " + log);
             ConfigFileManager.chattr0(log.toPath().getParent());
             int fd = ParcelFileDescriptor.open(log, mode).detachFd();
+            int indexFd = ParcelFileDescriptor.open(getIndexFile(log), mode).detachFd();
             if (isVerboseLog) {
                 synchronized (verboseLogs) {
                     verboseLogs.put(log, new Object());
                 }
                 verboseFd = fd;
+                verboseIndexFd = indexFd;
             } else {
                 synchronized (moduleLogs) {
                     moduleLogs.put(log, new Object());
                 }
                 modulesFd = fd;
+                modulesIndexFd = indexFd;
             }
             return fd;
         } catch (IOException e) {
-            if (isVerboseLog) verboseFd = -1;
-            else modulesFd = -1;
+            if (isVerboseLog) verboseFd = verboseIndexFd = -1;
+            else modulesFd = modulesIndexFd = -1;
             Log.w(TAG, "refreshFd", e);
             return -1;
         }
     }
 
+    /**
+     * Index of the log opened by the last {@link #refreshFd}, the native side takes ownership.
+     */
+    @SuppressWarnings("unused")
+    private int getIndexFd(boolean isVerboseLog) {
+        return isVerboseLog ? verboseIndexFd : modulesIndexFd;
+    }
+
+    static File getIndexFile(File log) {
+        return new File(log.getPath() + ".idx");
+    }
+
     private static void checkFd(int fd) {
         if (fd == -1) return;
         try {
@@ -165,8 +182,6 @@ public class LogcatService implements Runnable {
     }
 
     public void start() {
-        return;
-/*
         if (isRunning()) return;
         thread = new Thread(this);
         thread.setName("logcat");
@@ -176,7 +191,6 @@ public class LogcatService implements Runnable {
             start();
         });
         thread.start();
-*/
     }
 
     public void startVerbose() {
@@ -210,6 +224,11 @@ public class LogcatService implements Runnable {
         return path == null ? null : path.toFile();
     }
 
+    public File getLogIndex(boolean verbose) {
+        var path = fdToPath(verbose ? verboseIndexFd : modulesIndexFd);
+        return path == null ? null : path.toFile();
+    }
+
     public void checkLogFile() {
         if (modulesFd == -1)
             refresh(false);
@@ -5,6 +5,9 @@ import android.os.SharedMemory;
 import java.util.HashMap;
 
 public class ObfuscationManager {
+    // Must be called before the first dex is obfuscated, later calls are ignored
+    static native void setSeed(long seed);
+
     // For module dexes
     static native SharedMemory obfuscateDex(SharedMemory memory);
 
@@ -113,7 +113,7 @@ public class ServiceManager {
         });
 
         logcatService = new LogcatService();
-//        logcatService.start();
+        logcatService.start();
 
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R)
             permissionManagerWorkaround();
@@ -175,7 +175,7 @@ public class ServiceManager {
 
         // Force logging on boot, now let's see if we need to stop logging
         if (!configManager.verboseLog()) {
-//            logcatService.stopVerbose();
+            logcatService.stopVerbose();
         }
 
         Looper.loop();
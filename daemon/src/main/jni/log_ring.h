@@ -0,0 +1,108 @@
+/*
+ * This file is part of LSPosed.
+ *
+ * LSPosed is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LSPosed is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LSPosed.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * Copyright (C) 2022 LSPosed Contributors
+ */
+
+#pragma once
+
+#include <atomic>
+#include <cstddef>
+#include <cstdint>
+#include <memory>
+
+// Single producer single consumer ring of variable sized records, filled by the logd reader
+// and drained by the writer. Records never wrap around, the space left at the end is skipped
+// with a padding record, which the consumer recognizes by its targets. The reader never waits
+// for the writer: if the ring is full, the line is dropped.
+template<size_t kCapacity>
+class LogRing {
+    static_assert((kCapacity & (kCapacity - 1)) == 0);
+
+public:
+    static constexpr uint32_t kPadding = 1U << 2;
+
+    struct Record {
+        uint32_t size;
+        uint32_t targets;
+    };
+
+    LogRing() : buf_(new char[kCapacity]) {}
+
+    // returns room for up to max_size bytes, or nullptr if the ring is full
+    char *Reserve(size_t max_size) {
+        auto need = Align(sizeof(Record) + max_size);
+        auto head = head_.load(std::memory_order_relaxed);
+        auto free = kCapacity - (head - tail_.load(std::memory_order_acquire));
+        auto offset = head & (kCapacity - 1);
+        if (kCapacity - offset < need) {
+            if (free < kCapacity - offset + need) return nullptr;
+            *At(head) = {static_cast<uint32_t>(kCapacity - offset - sizeof(Record)), kPadding};
+            head += kCapacity - offset;
+            head_.store(head, std::memory_order_release);
+            offset = 0;
+        } else if (free < need) {
+            return nullptr;
+        }
+        return buf_.get() + offset + sizeof(Record);
+    }
+
+    // publishes the last reserved record
+    void Commit(size_t size, uint32_t targets) {
+        auto head = head_.load(std::memory_order_relaxed);
+        *At(head) = {static_cast<uint32_t>(size), targets};
+        head_.store(head + Align(sizeof(Record) + size), std::memory_order_release);
+        head_.notify_one();
+    }
+
+    // blocks until there are records after tail and returns the head
+    size_t Wait(size_t tail) {
+        size_t head;
+        while ((head = head_.load(std::memory_order_acquire)) == tail) {
+            head_.wait(tail, std::memory_order_acquire);
+        }
+        return head;
+    }
+
+    Record *At(size_t pos) {
+        return reinterpret_cast<Record *>(buf_.get() + (pos & (kCapacity - 1)));
+    }
+
+    static const char *Data(const Record *record) {
+        return reinterpret_cast<const char *>(record + 1);
+    }
+
+    static size_t Next(size_t pos, const Record *record) {
+        return pos + Align(sizeof(Record) + record->size);
+    }
+
+    void Release(size_t pos) {
+        tail_.store(pos, std::memory_order_release);
+    }
+
+private:
+    // whole headers, so the space left at the end always fits a padding record
+    static constexpr size_t Align(size_t size) {
+        return (size + sizeof(Record) - 1) & ~(sizeof(Record) - 1);
+    }
+
+    static_assert((sizeof(Record) & (sizeof(Record) - 1)) == 0);
+    static_assert(kCapacity % sizeof(Record) == 0);
+
+    std::unique_ptr<char[]> buf_;
+    alignas(64) std::atomic<size_t> head_{0};
+    alignas(64) std::atomic<size_t> tail_{0};
+};
@@ -1,35 +1,35 @@
 #include "logcat.h"
+#include "log_ring.h"
 
 #include <jni.h>
 #include <unistd.h>
 #include <string>
 #include <android/log.h>
+#include <algorithm>
 #include <array>
+#include <atomic>
 #include <cinttypes>
 #include <chrono>
+#include <cstring>
+#include <deque>
+#include <memory>
+#include <optional>
 #include <thread>
-#include <functional>
+#include <unordered_map>
+#include <vector>
 #include <sys/system_properties.h>
+#include <sys/uio.h>
 
 using namespace std::string_view_literals;
 using namespace std::chrono_literals;
 
 constexpr size_t kMaxLogSize = 4 * 1024 * 1024;
 constexpr size_t kLogBufferSize = 64 * 1024;
+constexpr size_t kMaxIov = 256;
 
-namespace {
-    constexpr std::array<char, ANDROID_LOG_SILENT + 1> kLogChar = {
-            /*ANDROID_LOG_UNKNOWN*/'?',
-            /*ANDROID_LOG_DEFAULT*/ '?',
-            /*ANDROID_LOG_VERBOSE*/ 'V',
-            /*ANDROID_LOG_DEBUG*/ 'D',
-            /*ANDROID_LOG_INFO*/'I',
-            /*ANDROID_LOG_WARN*/'W',
-            /*ANDROID_LOG_ERROR*/ 'E',
-            /*ANDROID_LOG_FATAL*/ 'F',
-            /*ANDROID_LOG_SILENT*/ 'S',
-    };
+using Ring = LogRing<2 * 1024 * 1024>;
 
+namespace {
     size_t ParseUint(const char *s) {
         if (s[0] == '\0') return -1;
 
@@ -82,28 +82,182 @@ namespace {
         return __system_property_set(prop.data(), val.data()) >= 0;
     }
 
+    enum Target : uint32_t {
+        kModules = 1U << 0,
+        kVerbose = 1U << 1,
+        kPadding = Ring::kPadding,
+        kRefreshModules = 1U << 3,
+        kRefreshVerbose = 1U << 4,
+        kTagName = 1U << 5,
+    };
+
+    // Both the log and its index start with a FileHeader. The log is a sequence of records, each
+    // starting with its size and type; the index holds the offset of every kIndexInterval-th
+    // entry and the name of every tag id the first time it is used in the log.
+    // Keep in sync with org.lsposed.lspd.util.LogReader.
+    constexpr uint32_t kLogMagic = 0x4c50534c; // LSPL
+    constexpr uint32_t kLogVersion = 1;
+    constexpr size_t kIndexInterval = 256;
+    constexpr uint16_t kUnknownTag = UINT16_MAX;
+
+    enum RecordType : uint8_t {
+        kEntry = 1,
+        kPartStart = 2,
+        kPartEnd = 3,
+    };
+
+    enum IndexType : uint8_t {
+        kIndexPage = 1,
+        kIndexTag = 2,
+    };
+
+    struct [[gnu::packed]] FileHeader {
+        uint32_t magic = kLogMagic;
+        uint32_t version = kLogVersion;
+    };
+
+    struct [[gnu::packed]] EntryHeader {
+        uint16_t size;
+        uint8_t type;
+        uint8_t priority;
+        uint16_t tag;
+        uint32_t sec;
+        uint32_t nsec;
+        int32_t pid;
+        int32_t tid;
+        int32_t uid;
+    };
+
+    struct [[gnu::packed]] PartRecord {
+        uint16_t size;
+        uint8_t type;
+        uint32_t part;
+    };
+
+    struct [[gnu::packed]] IndexPage {
+        uint8_t type;
+        uint64_t offset;
+    };
+
+    struct [[gnu::packed]] IndexTag {
+        uint8_t type;
+        uint16_t id;
+        uint16_t length;
+    };
+
+    template<typename T>
+    inline void Append(std::string &out, const T &value) {
+        out.append(reinterpret_cast<const char *>(&value), sizeof(T));
+    }
+
+    const std::unordered_map<std::string_view, uint32_t> kTagTargets = {
+            {"LSPosed-Bridge"sv,     kModules | kVerbose},
+            {"XSharedPreferences"sv, kModules | kVerbose},
+            {"LSPosedContext"sv,     kModules | kVerbose},
+            {"Magisk"sv,             kVerbose},
+            {"Dobby"sv,              kVerbose},
+            {"LSPlant"sv,            kVerbose},
+    };
+
+    const std::unordered_map<std::string_view, uint32_t> kTagPrefixTargets = {
+            {"Riru"sv,    kVerbose},
+            {"zygisk"sv,  kVerbose},
+            {"LSPosed"sv, kVerbose},
+    };
+
+    const auto kTagPrefixLengths = [] {
+        std::vector<size_t> lengths;
+        for (const auto &[prefix, _]: kTagPrefixTargets) lengths.push_back(prefix.size());
+        std::sort(lengths.begin(), lengths.end());
+        lengths.erase(std::unique(lengths.begin(), lengths.end()), lengths.end());
+        return lengths;
+    }();
+
+    uint32_t MatchTag(std::string_view tag) {
+        if (auto it = kTagTargets.find(tag); it != kTagTargets.end()) return it->second;
+        for (auto length: kTagPrefixLengths) {
+            if (length > tag.size()) break;
+            if (auto it = kTagPrefixTargets.find(tag.substr(0, length));
+                    it != kTagPrefixTargets.end())
+                return it->second;
+        }
+        return 0;
+    }
+
 }  // namespace
 
-class UniqueFile : public std::unique_ptr<FILE, std::function<void(FILE *)>> {
-    inline static deleter_type deleter = [](auto f) { f && f != stdout && fclose(f); };
-public:
-    explicit UniqueFile(FILE *f) : std::unique_ptr<FILE, std::function<void(FILE *)>>(f, deleter) {}
+struct LogFile {
+    int fd = -1;
+    int index_fd = -1;
+    size_t part = 0;
+    // bytes written or queued, which is the offset of the next record
+    size_t size = 0;
+    size_t entries = 0;
+    // tag ids whose name is already in the index
+    std::vector<bool> tags;
+    // index records to write after the queued entries
+    std::string index;
+
+    void Write(iovec *iov, size_t count) {
+        while (count > 0) {
+            auto len = writev(fd, iov, static_cast<int>(std::min(count, kMaxIov)));
+            if (len < 0 && errno == EINTR) continue;
+            if (len <= 0) {
+                // trigger overflow when failed to generate a new fd
+                size = kMaxLogSize;
+                return;
+            }
+            while (count > 0 && static_cast<size_t>(len) >= iov->iov_len) {
+                len -= static_cast<ssize_t>(iov->iov_len);
+                ++iov;
+                --count;
+            }
+            if (count > 0) {
+                iov->iov_base = static_cast<char *>(iov->iov_base) + len;
+                iov->iov_len -= len;
+            }
+        }
+    }
 
-    UniqueFile(int fd, const char *mode) : UniqueFile(fd > 0 ? fdopen(fd, mode) : stdout) {};
+    template<typename T>
+    void Write(const T &record) {
+        iovec iov{const_cast<T *>(&record), sizeof(T)};
+        Write(&iov, 1);
+        size += sizeof(T);
+    }
 
-    UniqueFile() : UniqueFile(stdout) {};
+    void FlushIndex() {
+        for (size_t written = 0; written < index.size();) {
+            auto len = write(index_fd, index.data() + written, index.size() - written);
+            if (len < 0 && errno == EINTR) continue;
+            if (len <= 0) break;
+            written += len;
+        }
+        index.clear();
+    }
 };
 
 class Logcat {
 public:
-    explicit Logcat(JNIEnv *env, jobject thiz, jmethodID method) :
-            env_(env), thiz_(thiz), refresh_fd_method_(method) {}
+    explicit Logcat(JNIEnv *env, jobject thiz, jmethodID refresh_fd_method,
+                    jmethodID get_index_fd_method) :
+            thiz_(env->NewGlobalRef(thiz)), refresh_fd_method_(refresh_fd_method),
+            get_index_fd_method_(get_index_fd_method) {
+        env->GetJavaVM(&vm_);
+    }
 
-    void Run();
-//    [[noreturn]] void Run();
+    [[noreturn]] void Run();
 
 private:
-    inline void RefreshFd(bool is_verbose);
+    // writer thread
+
+    [[noreturn]] void WriteLoop();
+
+    void RefreshFd(JNIEnv *env, bool is_verbose);
+
+    void QueueEntry(LogFile &file, std::vector<iovec> &iov, const Ring::Record *record);
+
+    // reader thread
 
     inline void Log(std::string_view str);
 
@@ -111,89 +265,218 @@ private:
 
     void ProcessBuffer(struct log_msg *buf);
 
-    static size_t PrintLogLine(const AndroidLogEntry &entry, FILE *out);
+    void PrintLogLine(const AndroidLogEntry &entry, uint32_t targets);
+
+    void PrintEntry(const EntryHeader &header, std::string_view msg, uint32_t targets);
+
+    std::optional<uint16_t> GetTagId(std::string_view tag);
+
+    char *Reserve(size_t size);
+
+    void RequestRefresh(uint32_t refresh);
 
     void EnsureLogWatchDog();
 
-    JNIEnv *env_;
+    JavaVM *vm_ = nullptr;
     jobject thiz_;
     jmethodID refresh_fd_method_;
+    jmethodID get_index_fd_method_;
 
-    UniqueFile modules_file_{};
-    size_t modules_file_part_ = 0;
-    size_t modules_print_count_ = 0;
+    Ring ring_;
 
-    UniqueFile verbose_file_{};
-    size_t verbose_file_part_ = 0;
-    size_t verbose_print_count_ = 0;
+    // owned by the writer
+    LogFile modules_file_{};
+    LogFile verbose_file_{};
+    std::vector<std::string> tag_names_;
 
+    // owned by the reader
     pid_t my_pid_ = getpid();
-
     bool verbose_ = true;
+    size_t dropped_ = 0;
+    uint32_t pending_refresh_ = 0;
+    std::deque<std::string> tags_;
+    std::unordered_map<std::string_view, uint16_t> tag_ids_;
+    uint16_t logcat_tag_ = kUnknownTag;
+
+    std::atomic<bool> log_settings_reset_ = false;
 };
 
-size_t Logcat::PrintLogLine(const AndroidLogEntry &entry, FILE *out) {
-    return 0;
-/*
-    if (!out) return 0;
-    constexpr static size_t kMaxTimeBuff = 64;
-    struct tm tm{};
-    std::array<char, kMaxTimeBuff> time_buff{};
-
-    auto now = entry.tv_sec;
-    auto nsec = entry.tv_nsec;
-    auto message_len = entry.messageLen;
-    const auto *message = entry.message;
-    if (now < 0) {
-        nsec = NS_PER_SEC - nsec;
+char *Logcat::Reserve(size_t size) {
+    if (pending_refresh_ != 0) [[unlikely]] {
+        // keeps the order, entries after the request go to the new file
+        if (ring_.Reserve(0) == nullptr) {
+            ++dropped_;
+            return nullptr;
+        }
+        ring_.Commit(0, pending_refresh_);
+        pending_refresh_ = 0;
     }
-    if (message_len >= 1 && message[message_len - 1] == '\n') {
+    if (dropped_ > 0) [[unlikely]] {
+        std::array<char, 32> msg{};
+        auto len = snprintf(msg.data(), msg.size(), "%zu lines dropped", dropped_);
+        auto *out = ring_.Reserve(sizeof(EntryHeader) + len);
+        if (out == nullptr) {
+            ++dropped_;
+            return nullptr;
+        }
+        timespec ts{};
+        clock_gettime(CLOCK_REALTIME, &ts);
+        EntryHeader header{static_cast<uint16_t>(sizeof(EntryHeader) + len), kEntry,
+                           ANDROID_LOG_WARN, logcat_tag_, static_cast<uint32_t>(ts.tv_sec),
+                           static_cast<uint32_t>(ts.tv_nsec), my_pid_, gettid(),
+                           static_cast<int32_t>(getuid())};
+        memcpy(out, &header, sizeof(header));
+        memcpy(out + sizeof(header), msg.data(), len);
+        ring_.Commit(header.size, verbose_ ? kModules | kVerbose : kModules);
+        dropped_ = 0;
+    }
+    auto *out = ring_.Reserve(size);
+    if (out == nullptr) [[unlikely]] ++dropped_;
+    return out;
+}
+
+std::optional<uint16_t> Logcat::GetTagId(std::string_view tag) {
+    if (auto it = tag_ids_.find(tag); it != tag_ids_.end()) return it->second;
+    if (tags_.size() >= kUnknownTag) [[unlikely]] return kUnknownTag;
+    // the writer learns the name before the first entry using it
+    auto *out = Reserve(sizeof(uint16_t) + tag.size());
+    if (!out) return std::nullopt;
+    auto id = static_cast<uint16_t>(tags_.size());
+    memcpy(out, &id, sizeof(id));
+    memcpy(out + sizeof(id), tag.data(), tag.size());
+    ring_.Commit(sizeof(id) + tag.size(), kTagName);
+    tag_ids_.emplace(tags_.emplace_back(tag), id);
+    return id;
+}
+
+void Logcat::PrintEntry(const EntryHeader &header, std::string_view msg, uint32_t targets) {
+    auto *out = Reserve(header.size);
+    if (!out) return;
+    memcpy(out, &header, sizeof(header));
+    memcpy(out + sizeof(header), msg.data(), msg.size());
+    ring_.Commit(header.size, targets);
+}
+
+void Logcat::PrintLogLine(const AndroidLogEntry &entry, uint32_t targets) {
+    auto tag = GetTagId({entry.tag, entry.tagLen});
+    if (!tag) return;
+    auto message_len = std::min<size_t>(entry.messageLen, LOGGER_ENTRY_MAX_LEN);
+    if (message_len >= 1 && entry.message[message_len - 1] == '\n') {
         --message_len;
     }
-    localtime_r(&now, &tm);
-    strftime(time_buff.data(), time_buff.size(), "%Y-%m-%dT%H:%M:%S", &tm);
-    int len = fprintf(out, "[ %s.%03ld %8d:%6d:%6d %c/%-15.*s ] %.*s\n",
-                      time_buff.data(),
-                      nsec / MS_PER_NSEC,
-                      entry.uid, entry.pid, entry.tid,
-                      kLogChar[entry.priority], static_cast<int>(entry.tagLen),
-                      entry.tag, static_cast<int>(message_len), message);
-    fflush(out);
-    // trigger overflow when failed to generate a new fd
-    if (len <= 0) len = kMaxLogSize;
-    return static_cast<size_t>(len);
-*/
+    EntryHeader header{static_cast<uint16_t>(sizeof(EntryHeader) + message_len), kEntry,
+                       static_cast<uint8_t>(entry.priority), *tag,
+                       static_cast<uint32_t>(entry.tv_sec), static_cast<uint32_t>(entry.tv_nsec),
+                       entry.pid, entry.tid, entry.uid};
+    PrintEntry(header, {entry.message, message_len}, targets);
 }
 
-void Logcat::RefreshFd(bool is_verbose) {
-    constexpr auto start = "----part %zu start----\n";
-    constexpr auto end = "-----part %zu end----\n";
-    if (is_verbose) {
-        verbose_print_count_ = 0;
-        fprintf(verbose_file_.get(), end, verbose_file_part_);
-        fflush(verbose_file_.get());
-        verbose_file_ = UniqueFile(env_->CallIntMethod(thiz_, refresh_fd_method_, JNI_TRUE), "a");
-        verbose_file_part_++;
-        fprintf(verbose_file_.get(), start, verbose_file_part_);
-        fflush(verbose_file_.get());
-    } else {
-        modules_print_count_ = 0;
-        fprintf(modules_file_.get(), end, modules_file_part_);
-        fflush(modules_file_.get());
-        modules_file_ = UniqueFile(env_->CallIntMethod(thiz_, refresh_fd_method_, JNI_FALSE), "a");
-        modules_file_part_++;
-        fprintf(modules_file_.get(), start, modules_file_part_);
-        fflush(modules_file_.get());
+void Logcat::RefreshFd(JNIEnv *env, bool is_verbose) {
+    auto &file = is_verbose ? verbose_file_ : modules_file_;
+    if (file.fd >= 0) {
+        file.Write(PartRecord{sizeof(PartRecord), kPartEnd, static_cast<uint32_t>(file.part)});
+    }
+    auto is_verbose_arg = is_verbose ? JNI_TRUE : JNI_FALSE;
+    auto fd = env->CallIntMethod(thiz_, refresh_fd_method_, is_verbose_arg);
+    if (env->ExceptionCheck()) {
+        env->ExceptionClear();
+        fd = -1;
     }
+    auto index_fd = env->CallIntMethod(thiz_, get_index_fd_method_, is_verbose_arg);
+    if (env->ExceptionCheck()) {
+        env->ExceptionClear();
+        index_fd = -1;
+    }
+    if (file.fd >= 0) close(file.fd);
+    if (file.index_fd >= 0) close(file.index_fd);
+    file.fd = fd;
+    file.index_fd = index_fd;
+    file.size = 0;
+    file.entries = 0;
+    file.tags.clear();
+    file.index.clear();
+    file.part++;
+    file.Write(FileHeader{});
+    file.Write(PartRecord{sizeof(PartRecord), kPartStart, static_cast<uint32_t>(file.part)});
+    Append(file.index, FileHeader{});
+    file.FlushIndex();
 }
 
-inline void Logcat::Log(std::string_view str) {
-    if (verbose_) {
-        fprintf(verbose_file_.get(), "%.*s", static_cast<int>(str.size()), str.data());
-        fflush(verbose_file_.get());
+void Logcat::QueueEntry(LogFile &file, std::vector<iovec> &iov, const Ring::Record *record) {
+    EntryHeader header;
+    memcpy(&header, Ring::Data(record), sizeof(header));
+    if (file.entries++ % kIndexInterval == 0) {
+        Append(file.index, IndexPage{kIndexPage, file.size});
+    }
+    if (header.tag < tag_names_.size()) {
+        if (header.tag >= file.tags.size()) file.tags.resize(header.tag + 1);
+        if (!file.tags[header.tag]) {
+            file.tags[header.tag] = true;
+            const auto &name = tag_names_[header.tag];
+            Append(file.index, IndexTag{kIndexTag, header.tag, static_cast<uint16_t>(name.size())});
+            file.index.append(name);
+        }
+    }
+    iov.push_back({const_cast<char *>(Ring::Data(record)), record->size});
+    file.size += record->size;
+}
+
+void Logcat::WriteLoop() {
+    JNIEnv *env = nullptr;
+    vm_->AttachCurrentThread(&env, nullptr);
+    RefreshFd(env, true);
+    RefreshFd(env, false);
+
+    std::vector<iovec> modules, verbose;
+    modules.reserve(kMaxIov);
+    verbose.reserve(kMaxIov);
+    size_t tail = 0;
+    while (true) {
+        auto head = ring_.Wait(tail);
+        uint32_t refresh = 0;
+        // one batch ends at a refresh request so entries before it go to the old file
+        while (tail != head && modules.size() < kMaxIov && verbose.size() < kMaxIov) {
+            const auto *record = ring_.At(tail);
+            tail = Ring::Next(tail, record);
+            if (record->targets & (kRefreshModules | kRefreshVerbose)) {
+                refresh = record->targets;
+                break;
+            }
+            if (record->targets & kTagName) {
+                const auto *data = Ring::Data(record);
+                uint16_t id;
+                memcpy(&id, data, sizeof(id));
+                if (id >= tag_names_.size()) tag_names_.resize(id + 1);
+                tag_names_[id].assign(data + sizeof(id), record->size - sizeof(id));
+                continue;
+            }
+            if (record->targets & kModules) QueueEntry(modules_file_, modules, record);
+            if (record->targets & kVerbose) QueueEntry(verbose_file_, verbose, record);
+        }
+        // entries first, so an index never points past the end of its log
+        if (!modules.empty()) modules_file_.Write(modules.data(), modules.size());
+        if (!verbose.empty()) verbose_file_.Write(verbose.data(), verbose.size());
+        modules_file_.FlushIndex();
+        verbose_file_.FlushIndex();
+        modules.clear();
+        verbose.clear();
+        ring_.Release(tail);
+
+        if ((refresh & kRefreshVerbose) || verbose_file_.size >= kMaxLogSize) [[unlikely]]
+            RefreshFd(env, true);
+        if ((refresh & kRefreshModules) || modules_file_.size >= kMaxLogSize) [[unlikely]]
+            RefreshFd(env, false);
     }
-    fprintf(modules_file_.get(), "%.*s", static_cast<int>(str.size()), str.data());
-    fflush(modules_file_.get());
+}
+
+inline void Logcat::Log(std::string_view str) {
+    timespec ts{};
+    clock_gettime(CLOCK_REALTIME, &ts);
+    EntryHeader header{static_cast<uint16_t>(sizeof(EntryHeader) + str.size()), kEntry,
+                       ANDROID_LOG_WARN, logcat_tag_, static_cast<uint32_t>(ts.tv_sec),
+                       static_cast<uint32_t>(ts.tv_nsec), my_pid_, gettid(),
+                       static_cast<int32_t>(getuid())};
+    PrintEntry(header, str, verbose_ ? kModules | kVerbose : kModules);
 }
 
 void Logcat::OnCrash(int err) {
@@ -202,7 +485,7 @@ void Logcat::OnCrash(int err) {
     static size_t kLogdCrashCount = 0;
     static size_t kLogdRestartWait = 1 << 3;
     if (++kLogdCrashCount >= kLogdRestartWait) {
-        Log("\nLogd crashed too many times, trying manually start...\n");
+        Log("Logd crashed too many times, trying manually start...");
         __system_property_set("ctl.restart", "logd");
         if (kLogdRestartWait < max_restart_logd_wait) {
             kLogdRestartWait <<= 1;
@@ -210,12 +493,21 @@ void Logcat::OnCrash(int err) {
             kLogdCrashCount = 0;
         }
     } else {
-        Log("\nLogd maybe crashed (err="s + strerror(err) + "), retrying in 1s...\n");
+        Log("Logd maybe crashed (err="s + strerror(err) + "), retrying in 1s...");
     }
 
     std::this_thread::sleep_for(1s);
 }
 
+void Logcat::RequestRefresh(uint32_t refresh) {
+    // a full ring must not lose the request, it is retried before the next record
+    pending_refresh_ |= refresh;
+    if (ring_.Reserve(0) != nullptr) {
+        ring_.Commit(0, pending_refresh_);
+        pending_refresh_ = 0;
+    }
+}
+
 void Logcat::ProcessBuffer(struct log_msg *buf) {
     AndroidLogEntry entry;
     if (android_log_processLogBuffer(&buf->entry, &entry) < 0) return;
@@ -223,28 +515,25 @@ void Logcat::ProcessBuffer(struct log_msg *buf) {
     entry.tagLen--;
 
     std::string_view tag(entry.tag, entry.tagLen);
-    bool shortcut = false;
-    if (tag == "LSPosed-Bridge"sv || tag == "XSharedPreferences"sv || tag == "LSPosedContext") [[unlikely]] {
-        modules_print_count_ += PrintLogLine(entry, modules_file_.get());
-        shortcut = true;
+    std::string_view msg{};
+    bool control = entry.pid == my_pid_ && tag == "LSPosedLogcat"sv;
+    if (control) [[unlikely]] {
+        msg = {entry.message, entry.messageLen};
+        if (msg == "!!start_verbose!!"sv) verbose_ = true;
     }
-    if (verbose_ && (shortcut || buf->id() == log_id::LOG_ID_CRASH ||
-                     entry.pid == my_pid_ || tag == "Magisk"sv || tag == "Dobby"sv ||
-                     tag.starts_with("Riru"sv) || tag.starts_with("zygisk"sv) ||
-                     tag == "LSPlant"sv || tag.starts_with("LSPosed"sv))) [[unlikely]] {
-        verbose_print_count_ += PrintLogLine(entry, verbose_file_.get());
-    }
-    if (entry.pid == my_pid_ && tag == "LSPosedLogcat"sv) [[unlikely]] {
-        std::string_view msg(entry.message, entry.messageLen);
-        if (msg == "!!start_verbose!!"sv) {
-            verbose_ = true;
-            verbose_print_count_ += PrintLogLine(entry, verbose_file_.get());
-        } else if (msg == "!!stop_verbose!!"sv) {
+
+    auto targets = MatchTag(tag);
+    if (buf->id() == log_id::LOG_ID_CRASH || entry.pid == my_pid_) targets |= kVerbose;
+    if (!verbose_) targets &= ~kVerbose;
+    if (targets) [[unlikely]] PrintLogLine(entry, targets);
+
+    if (control) [[unlikely]] {
+        if (msg == "!!stop_verbose!!"sv) {
             verbose_ = false;
         } else if (msg == "!!refresh_modules!!"sv) {
-            RefreshFd(false);
+            RequestRefresh(kRefreshModules);
         } else if (msg == "!!refresh_verbose!!"sv) {
-            RefreshFd(true);
+            RequestRefresh(kRefreshVerbose);
         }
     }
 }
@@ -281,7 +570,8 @@ void Logcat::EnsureLogWatchDog() {
                 }, &serial);
             }
             if (!__system_property_wait(pi, serial, &serial, nullptr)) break;
-            if (pi != nullptr) Log("\nResetting log settings\n");
+            // logged by the reader, the ring only takes records from one thread
+            if (pi != nullptr) log_settings_reset_ = true;
             else std::this_thread::sleep_for(1s);
             // log tag prop was not found; to avoid frequently trigger wait, sleep for a while
         }
@@ -291,11 +581,14 @@ void Logcat::EnsureLogWatchDog() {
 }
 
 void Logcat::Run() {
-/*
     constexpr size_t tail_after_crash = 10U;
     size_t tail = 0;
-    RefreshFd(true);
-    RefreshFd(false);
+
+    logcat_tag_ = GetTagId("LSPosedLogcat"sv).value_or(kUnknownTag);
+
+    std::thread writer([this] { WriteLoop(); });
+    pthread_setname_np(writer.native_handle(), "writer");
+    writer.detach();
 
     EnsureLogWatchDog();
 
@@ -318,15 +611,14 @@ void Logcat::Run() {
         while (true) {
             if (android_logger_list_read(logger_list.get(), &msg) <= 0) [[unlikely]] break;
 
-            ProcessBuffer(&msg);
+            if (log_settings_reset_.exchange(false, std::memory_order_relaxed)) [[unlikely]]
+                Log("Resetting log settings");
 
-            if (verbose_print_count_ >= kMaxLogSize) [[unlikely]] RefreshFd(true);
-            if (modules_print_count_ >= kMaxLogSize) [[unlikely]] RefreshFd(false);
+            ProcessBuffer(&msg);
         }
 
         OnCrash(errno);
     }
-*/
 }
 
 extern "C"
@@ -334,7 +626,8 @@ JNIEXPORT void JNICALL
 // NOLINTNEXTLINE
 Java_org_lsposed_lspd_service_LogcatService_runLogcat(JNIEnv *env, jobject thiz) {
     jclass clazz = env->GetObjectClass(thiz);
-    jmethodID method = env->GetMethodID(clazz, "refreshFd", "(Z)I");
-    Logcat logcat(env, thiz, method);
-//    logcat.Run();
+    jmethodID refresh_fd = env->GetMethodID(clazz, "refreshFd", "(Z)I");
+    jmethodID get_index_fd = env->GetMethodID(clazz, "getIndexFd", "(Z)I");
+    Logcat logcat(env, thiz, refresh_fd, get_index_fd);
+    logcat.Run();
 }
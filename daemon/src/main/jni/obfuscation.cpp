@@ -24,13 +24,17 @@
 #include <jni.h>
 #include <unistd.h>
 #include <algorithm>
+#include <array>
 #include <random>
+#include <vector>
 #include <unordered_map>
 #include <sys/mman.h>
 #include <android/sharedmem.h>
 #include <android/sharedmem_jni.h>
 #include <slicer/dex_utf8.h>
 #include <fcntl.h>
+#include "slicer/dex_format.h"
+#include "slicer/dex_leb128.h"
 #include "slicer/reader.h"
 #include "slicer/writer.h"
 #include "obfuscation.h"
@@ -56,6 +60,71 @@ jclass class_shared_memory;
 jmethodID method_shared_memory_ctor;
 
 bool inited = false;
+
+// Aho-Corasick automaton over the original signatures, so every string is scanned once no
+// matter how many signatures there are. Built once in maybeInit and read-only afterwards.
+struct SignatureMatcher {
+    // fully resolved transitions, the failure links are folded in
+    std::vector<std::array<int, 256>> next{{}};
+    // signature ending at the state (or at one of its suffix states), -1 if none
+    std::vector<int> match{-1};
+    std::vector<std::pair<std::string_view, std::string_view>> replacements;
+
+    void Build() {
+        for (const auto &[from, to]: signatures) {
+            int state = 0;
+            for (auto c: from) {
+                auto &slot = next[state][static_cast<uint8_t>(c)];
+                if (!slot) {
+                    slot = static_cast<int>(next.size());
+                    next.emplace_back();
+                    match.emplace_back(-1);
+                }
+                state = slot;
+            }
+            match[state] = static_cast<int>(replacements.size());
+            replacements.emplace_back(from, to);
+        }
+        std::vector<int> fail(next.size(), 0);
+        std::vector<int> queue;
+        for (auto child: next[0]) {
+            if (child) queue.emplace_back(child);
+        }
+        for (size_t i = 0; i < queue.size(); ++i) {
+            auto state = queue[i];
+            if (match[state] == -1) match[state] = match[fail[state]];
+            for (size_t c = 0; c < 256; ++c) {
+                auto &child = next[state][c];
+                if (child) {
+                    fail[child] = next[fail[state]][c];
+                    queue.emplace_back(child);
+                } else {
+                    child = next[fail[state]][c];
+                }
+            }
+        }
+    }
+
+    // Replaces every signature in the NUL-terminated string, returns whether it changed
+    bool Patch(char *s) const {
+        bool changed = false;
+        int state = 0;
+        for (char *p = s; *p; ++p) {
+            state = next[state][static_cast<uint8_t>(*p)];
+            if (auto m = match[state]; m != -1) {
+                const auto &[from, to] = replacements[m];
+                // replacements have the same length as the signatures
+                memcpy(p + 1 - from.size(), to.data(), to.size());
+                changed = true;
+                state = 0;
+            }
+        }
+        return changed;
+    }
+} matcher;
+
+// persisted by the daemon so obfuscated dexes can be cached across restarts; 0 means random
+uint64_t seed = 0;
 }
 
 static std::string to_java(const std::string &signature) {
@@ -80,13 +149,13 @@ void maybeInit(JNIEnv *env) {
 
     method_shared_memory_ctor = JNI_GetMethodID(env, class_shared_memory, "<init>", "(Ljava/io/FileDescriptor;)V");
 
-    auto regen = [](std::string_view original_signature) {
+    std::mt19937_64 rg{seed ? seed : std::random_device{}()};
+    auto regen = [&rg](std::string_view original_signature) {
         static auto& chrs = "abcdefghijklmnopqrstuvwxyz"
                             "ABCDEFGHIJKLMNOPQRSTUVWXYZ";
 
-        thread_local static std::mt19937 rg{std::random_device{}()};
-        thread_local static std::uniform_int_distribution<std::string::size_type> pick(0, sizeof(chrs) - 2);
-        thread_local static std::uniform_int_distribution<std::string::size_type> choose_slash(0, 10);
+        std::uniform_int_distribution<std::string::size_type> pick(0, sizeof(chrs) - 2);
+        std::uniform_int_distribution<std::string::size_type> choose_slash(0, 10);
 
         std::string out;
         size_t length = original_signature.size();
@@ -112,6 +181,7 @@ void maybeInit(JNIEnv *env) {
         i.second = regen(i.first);
         LOGD("%s => %s", i.first.c_str(), i.second.c_str());
     }
+    matcher.Build();
 
     LOGD("ObfuscationManager init successfully");
     inited = true;
@@ -145,6 +215,17 @@ jobject stringMapToJavaHashMap(JNIEnv *env, const decltype(signatures)& map) {
     return hashMapGobal;
 }
 
+extern "C"
+JNIEXPORT void JNICALL
+Java_org_lsposed_lspd_service_ObfuscationManager_setSeed([[maybe_unused]] JNIEnv *env, [[maybe_unused]] jclass obfuscation_manager, jlong new_seed) {
+    std::lock_guard l(init_lock);
+    if (inited) {
+        LOGW("ObfuscationManager already initialized, ignoring seed");
+        return;
+    }
+    seed = static_cast<uint64_t>(new_seed);
+}
+
 extern "C"
 JNIEXPORT jobject JNICALL
 Java_org_lsposed_lspd_service_ObfuscationManager_getSignatures(JNIEnv *env, [[maybe_unused]] jclass obfuscation_manager) {
@@ -159,23 +240,60 @@ Java_org_lsposed_lspd_service_ObfuscationManager_getSignatures(JNIEnv *env, [[ma
     return signatures_jni;
 }
 
+enum class PatchResult {
+    kUnchanged,
+    kPatched,
+    // the patched strings are no longer sorted, the dex has to be rebuilt
+    kUnsorted,
+    kInvalid,
+};
+
+// Patches the string data in place, touching nothing but the string_ids and string_data
+// sections. As replacements keep the length, only the order of string_ids can break.
+static PatchResult patchStrings(void *dex, size_t size) {
+    if (size < sizeof(dex::Header)) return PatchResult::kInvalid;
+    auto *base = reinterpret_cast<dex::u1 *>(dex);
+    auto *header = reinterpret_cast<dex::Header *>(dex);
+    if (header->file_size > size ||
+        header->string_ids_off > size ||
+        header->string_ids_size > (size - header->string_ids_off) / sizeof(dex::StringId)) {
+        return PatchResult::kInvalid;
+    }
+    auto *string_ids = reinterpret_cast<const dex::StringId *>(base + header->string_ids_off);
+    auto string_at = [&](dex::u4 index) -> char * {
+        auto offset = string_ids[index].string_data_off;
+        if (offset >= size) return nullptr;
+        const dex::u1 *p = base + offset;
+        dex::ReadULeb128(&p);
+        if (p >= base + size || !memchr(p, 0, base + size - p)) return nullptr;
+        return reinterpret_cast<char *>(const_cast<dex::u1 *>(p));
+    };
+
+    std::vector<dex::u4> patched;
+    for (dex::u4 i = 0; i < header->string_ids_size; ++i) {
+        auto *s = string_at(i);
+        if (!s) return PatchResult::kInvalid;
+        if (matcher.Patch(s)) patched.emplace_back(i);
+    }
+    if (patched.empty()) return PatchResult::kUnchanged;
+
+    for (auto i: patched) {
+        auto *s = string_at(i);
+        if (i > 0 && dex::Utf8Cmp(string_at(i - 1), s) >= 0) return PatchResult::kUnsorted;
+        if (i + 1 < header->string_ids_size && dex::Utf8Cmp(s, string_at(i + 1)) >= 0) {
+            return PatchResult::kUnsorted;
+        }
+    }
+    header->checksum = dex::ComputeChecksum(header);
+    return PatchResult::kPatched;
+}
+
 static int obfuscateDex(const void *dex, size_t size) {
-    // const char* new_sig = obfuscated_signature.c_str();
+    // strings are already patched, writing the IR back sorts them again
     dex::Reader reader{reinterpret_cast<const dex::u1*>(dex), size};
 
     reader.CreateFullIr();
     auto ir = reader.GetIr();
-    for (auto &i: ir->strings) {
-        const char *s = i->c_str();
-        for (const auto &signature: signatures) {
-            char* p = const_cast<char *>(strstr(s, signature.first.c_str()));
-            if (p) {
-                auto new_sig = signature.second.c_str();
-                // NOLINTNEXTLINE bugprone-not-null-terminated-result
-                memcpy(p, new_sig, strlen(new_sig));
-            }
-        }
-    }
     dex::Writer writer(ir);
 
     size_t new_size;
@@ -193,13 +311,28 @@ Java_org_lsposed_lspd_service_ObfuscationManager_obfuscateDex(JNIEnv *env, [[may
     auto size = ASharedMemory_getSize(fd);
     LOGD("fd=%d, size=%zu", fd, size);
 
-    const void* mem = mmap(nullptr, size, PROT_READ | PROT_WRITE, MAP_SHARED, fd, 0);
+    void* mem = mmap(nullptr, size, PROT_READ | PROT_WRITE, MAP_SHARED, fd, 0);
     if (mem == MAP_FAILED) {
         LOGE("old dex map failed?");
+        close(fd);
         return nullptr;
     }
 
+    auto result = patchStrings(mem, size);
+    if (result != PatchResult::kUnsorted) {
+        munmap(mem, size);
+        close(fd);
+        if (result == PatchResult::kInvalid) {
+            LOGE("invalid dex");
+            return nullptr;
+        }
+        // patched in place (or nothing to patch), the caller keeps its memory
+        return memory;
+    }
+
     auto new_fd = obfuscateDex(mem, size);
+    munmap(mem, size);
+    close(fd);
 
     // construct new shared mem with fd
     auto java_fd = JNI_NewObject(env, class_file_descriptor, method_file_descriptor_ctor, new_fd);
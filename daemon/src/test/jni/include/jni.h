@@ -0,0 +1,61 @@
+/*
+ * This file is part of LSPosed.
+ *
+ * LSPosed is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LSPosed is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LSPosed.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * Copyright (C) 2022 LSPosed Contributors
+ */
+// Host replacement of the NDK header, only what logcat.cpp uses. The functions are implemented
+// by logcat_test.cpp instead of going through a function table.
+
+#pragma once
+
+#include <stdint.h>
+
+#define JNIEXPORT __attribute__((visibility("default")))
+#define JNICALL
+
+#define JNI_FALSE 0
+#define JNI_TRUE 1
+
+typedef uint8_t jboolean;
+typedef int32_t jint;
+
+typedef struct _jobject *jobject;
+typedef jobject jclass;
+typedef struct _jmethodID *jmethodID;
+
+struct _JavaVM;
+typedef _JavaVM JavaVM;
+
+struct _JNIEnv {
+    jint GetJavaVM(JavaVM **vm);
+
+    jobject NewGlobalRef(jobject obj);
+
+    jclass GetObjectClass(jobject obj);
+
+    jmethodID GetMethodID(jclass clazz, const char *name, const char *sig);
+
+    jint CallIntMethod(jobject obj, jmethodID method, ...);
+
+    jboolean ExceptionCheck();
+
+    void ExceptionClear();
+};
+typedef _JNIEnv JNIEnv;
+
+struct _JavaVM {
+    jint AttachCurrentThread(JNIEnv **env, void *args);
+};
@@ -0,0 +1,47 @@
+/*
+ * This file is part of LSPosed.
+ *
+ * LSPosed is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LSPosed is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LSPosed.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * Copyright (C) 2022 LSPosed Contributors
+ */
+
+// Host replacement of the bionic header, implemented by logcat_test.cpp
+
+#pragma once
+
+#include <stdint.h>
+#include <time.h>
+
+#define PROP_VALUE_MAX 92
+
+#ifdef __cplusplus
+extern "C" {
+#endif
+
+typedef struct prop_info prop_info;
+
+int __system_property_get(const char *name, char *value);
+int __system_property_set(const char *key, const char *value);
+const prop_info *__system_property_find(const char *name);
+void __system_property_read_callback(const prop_info *pi,
+                                     void (*callback)(void *cookie, const char *name,
+                                                      const char *value, uint32_t serial),
+                                     void *cookie);
+bool __system_property_wait(const prop_info *pi, uint32_t old_serial, uint32_t *new_serial_ptr,
+                            const struct timespec *relative_timeout);
+
+#ifdef __cplusplus
+}
+#endif
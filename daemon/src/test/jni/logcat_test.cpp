@@ -0,0 +1,516 @@
+/*
+ * This file is part of LSPosed.
+ *
+ * LSPosed is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LSPosed is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LSPosed.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * Copyright (C) 2022 LSPosed Contributors
+ */
+// Pushes records of every size through a small LogRing, then runs the logcat reader and writer
+// against synthetic logd records and checks the written logs and indexes: every line either
+// reaches its files in order or is counted as dropped, the tags resolve through the index and
+// the index pages point at entries, across ring wraparounds and rotations by size and request.
+
+#include <fcntl.h>
+#include <unistd.h>
+#include <sys/stat.h>
+
+#include <cinttypes>
+#include <cstdarg>
+#include <cstdio>
+#include <cstdlib>
+#include <cstring>
+#include <map>
+#include <mutex>
+#include <random>
+#include <set>
+#include <string>
+#include <string_view>
+#include <thread>
+#include <vector>
+
+#include <jni.h>
+#include <sys/system_properties.h>
+
+#include "logcat.h"
+#include "log_ring.h"
+
+extern "C" JNIEXPORT void JNICALL
+Java_org_lsposed_lspd_service_LogcatService_runLogcat(JNIEnv *env, jobject thiz);
+
+using namespace std::string_view_literals;
+using namespace std::chrono_literals;
+
+namespace {
+    // keep in sync with logcat.cpp
+    constexpr uint32_t kLogMagic = 0x4c50534c;
+    constexpr uint32_t kLogVersion = 1;
+    constexpr size_t kIndexInterval = 256;
+    constexpr uint8_t kEntry = 1, kPartStart = 2, kPartEnd = 3;
+    constexpr uint8_t kIndexPage = 1, kIndexTag = 2;
+
+    struct [[gnu::packed]] FileHeader {
+        uint32_t magic;
+        uint32_t version;
+    };
+
+    struct [[gnu::packed]] EntryHeader {
+        uint16_t size;
+        uint8_t type;
+        uint8_t priority;
+        uint16_t tag;
+        uint32_t sec;
+        uint32_t nsec;
+        int32_t pid;
+        int32_t tid;
+        int32_t uid;
+    };
+
+    struct [[gnu::packed]] PartRecord {
+        uint16_t size;
+        uint8_t type;
+        uint32_t part;
+    };
+
+    constexpr size_t kLines = 40000;
+    constexpr size_t kMaxMessage = 1500;
+    constexpr size_t kRefreshInterval = 7919;
+    constexpr int32_t kPid = 1234;
+
+    struct Tag {
+        std::string_view name;
+        bool modules;
+        bool verbose;
+    };
+
+    constexpr Tag kTags[] = {
+            {"LSPosed-Bridge"sv,  true,  true},
+            {"LSPosedContext"sv,  true,  true},
+            {"LSPlant"sv,         false, true},
+            {"LSPosed-Service"sv, false, true},
+            {"zygisk64"sv,        false, true},
+            {"ActivityManager"sv, false, false},
+            {"Looper"sv,          false, false},
+    };
+
+    std::string dir;
+
+    // synthetic logd, fed from the reader thread
+
+    std::mt19937 rng(42);
+    size_t next_line = 0;
+    size_t produced_modules = 0;
+    size_t produced_verbose = 0;
+
+    std::string Message(size_t seq, std::string_view tag, size_t length) {
+        auto msg = "seq=" + std::to_string(seq) + " tag=" + std::string(tag) + " ";
+        msg.append(length, static_cast<char>('a' + seq % 26));
+        return msg;
+    }
+
+    void Fill(log_msg *msg, int32_t pid, std::string_view tag, std::string_view text) {
+        memset(msg, 0, sizeof(logger_entry));
+        auto *payload = msg->buf + sizeof(logger_entry);
+        payload[0] = ANDROID_LOG_INFO;
+        memcpy(payload + 1, tag.data(), tag.size());
+        payload[1 + tag.size()] = '\0';
+        memcpy(payload + 2 + tag.size(), text.data(), text.size());
+        payload[2 + tag.size() + text.size()] = '\0';
+        msg->entry.len = static_cast<uint16_t>(3 + tag.size() + text.size());
+        msg->entry.hdr_size = sizeof(logger_entry);
+        msg->entry.pid = pid;
+        msg->entry.tid = static_cast<uint32_t>(pid);
+        msg->entry.sec = 1600000000;
+        msg->entry.lid = LOG_ID_MAIN;
+        msg->entry.uid = 10000;
+    }
+
+    // log files, opened by the writer thread through refreshFd
+
+    std::mutex files_mutex;
+    std::vector<std::string> modules_files, verbose_files;
+    int index_fds[2] = {-1, -1};
+
+    int OpenNew(bool verbose) {
+        // a slow rotation stalls the writer, so the reader has to drop lines
+        std::this_thread::sleep_for(20ms);
+        std::lock_guard lock(files_mutex);
+        auto &files = verbose ? verbose_files : modules_files;
+        auto path = dir + (verbose ? "/verbose_" : "/modules_") + std::to_string(files.size());
+        files.push_back(path);
+        index_fds[verbose] = open((path + ".idx").c_str(), O_WRONLY | O_CREAT | O_TRUNC, 0644);
+        return open(path.c_str(), O_WRONLY | O_CREAT | O_TRUNC, 0644);
+    }
+
+    std::string ReadFile(const std::string &path) {
+        std::string data;
+        auto *file = fopen(path.c_str(), "rb");
+        if (!file) return data;
+        char buf[65536];
+        size_t len;
+        while ((len = fread(buf, 1, sizeof(buf), file)) > 0) data.append(buf, len);
+        fclose(file);
+        return data;
+    }
+
+    // verification
+
+    int failures = 0;
+
+#define CHECK(cond, ...) do { if (!(cond)) { fprintf(stderr, __VA_ARGS__); fputc('\n', stderr); ++failures; return; } } while (0)
+
+    struct Result {
+        std::vector<size_t> seqs;
+        size_t dropped = 0;
+        size_t others = 0;
+    };
+
+    void VerifyFile(const std::string &path, bool verbose, bool last, Result &result) {
+        auto log = ReadFile(path);
+        auto index = ReadFile(path + ".idx");
+        CHECK(log.size() >= sizeof(FileHeader) && index.size() >= sizeof(FileHeader),
+              "%s: missing header", path.c_str());
+        FileHeader header;
+        memcpy(&header, log.data(), sizeof(header));
+        CHECK(header.magic == kLogMagic && header.version == kLogVersion, "%s: bad header", path.c_str());
+        memcpy(&header, index.data(), sizeof(header));
+        CHECK(header.magic == kLogMagic && header.version == kLogVersion, "%s.idx: bad header", path.c_str());
+
+        std::map<uint16_t, std::string> tags;
+        std::vector<uint64_t> pages;
+        for (size_t pos = sizeof(FileHeader); pos < index.size();) {
+            auto type = static_cast<uint8_t>(index[pos]);
+            if (type == kIndexPage) {
+                CHECK(pos + 9 <= index.size(), "%s.idx: truncated page", path.c_str());
+                uint64_t offset;
+                memcpy(&offset, index.data() + pos + 1, sizeof(offset));
+                pages.push_back(offset);
+                pos += 9;
+            } else if (type == kIndexTag) {
+                CHECK(pos + 5 <= index.size(), "%s.idx: truncated tag", path.c_str());
+                uint16_t id, length;
+                memcpy(&id, index.data() + pos + 1, sizeof(id));
+                memcpy(&length, index.data() + pos + 3, sizeof(length));
+                CHECK(pos + 5 + length <= index.size(), "%s.idx: truncated tag name", path.c_str());
+                CHECK(!tags.count(id), "%s.idx: tag %u listed twice", path.c_str(), id);
+                tags[id] = index.substr(pos + 5, length);
+                pos += 5 + length;
+            } else {
+                CHECK(false, "%s.idx: unknown record %u at %zu", path.c_str(), type, pos);
+            }
+        }
+
+        std::vector<uint64_t> entries;
+        bool started = false, ended = false;
+        for (size_t pos = sizeof(FileHeader); pos < log.size();) {
+            CHECK(!ended, "%s: data after the part end", path.c_str());
+            CHECK(pos + 3 <= log.size(), "%s: truncated record", path.c_str());
+            uint16_t size;
+            memcpy(&size, log.data() + pos, sizeof(size));
+            auto type = static_cast<uint8_t>(log[pos + 2]);
+            CHECK(pos + size <= log.size(), "%s: truncated record at %zu", path.c_str(), pos);
+            if (type == kPartStart || type == kPartEnd) {
+                CHECK(size == sizeof(PartRecord), "%s: bad part record", path.c_str());
+                CHECK(type == kPartEnd || pos == sizeof(FileHeader), "%s: misplaced part start", path.c_str());
+                started = true;
+                ended = type == kPartEnd;
+                pos += size;
+                continue;
+            }
+            CHECK(started, "%s: entry before the part start", path.c_str());
+            CHECK(type == kEntry && size >= sizeof(EntryHeader), "%s: bad record %u at %zu", path.c_str(), type, pos);
+            EntryHeader entry;
+            memcpy(&entry, log.data() + pos, sizeof(entry));
+            std::string_view msg(log.data() + pos + sizeof(entry), size - sizeof(entry));
+            CHECK(tags.count(entry.tag), "%s: tag %u not in the index", path.c_str(), entry.tag);
+            const auto &tag = tags[entry.tag];
+            entries.push_back(pos);
+            pos += size;
+
+            if (tag == "LSPosedLogcat") {
+                size_t dropped;
+                if (sscanf(std::string(msg).c_str(), "%zu lines dropped", &dropped) == 1) {
+                    result.dropped += dropped;
+                } else {
+                    ++result.others;
+                }
+                continue;
+            }
+            size_t seq;
+            char name[64];
+            if (sscanf(std::string(msg).c_str(), "seq=%zu tag=%63s ", &seq, name) != 2) {
+                ++result.others;
+                continue;
+            }
+            CHECK(tag == name, "%s: entry %zu has tag %s instead of %s", path.c_str(), seq, tag.c_str(), name);
+            const Tag *expected = nullptr;
+            for (const auto &t: kTags) if (t.name == tag) expected = &t;
+            CHECK(expected && (verbose ? expected->verbose : expected->modules),
+                  "%s: entry %zu with tag %s does not belong here", path.c_str(), seq, tag.c_str());
+            auto prefix = msg.find(' ', msg.find(' ') + 1) + 1;
+            CHECK(msg.substr(prefix).find_first_not_of(static_cast<char>('a' + seq % 26)) == std::string_view::npos,
+                  "%s: entry %zu is corrupted", path.c_str(), seq);
+            CHECK(result.seqs.empty() || result.seqs.back() < seq,
+                  "%s: entry %zu after %zu", path.c_str(), seq, result.seqs.back());
+            result.seqs.push_back(seq);
+        }
+        CHECK(started, "%s: no part start", path.c_str());
+        CHECK(last || ended, "%s: rotated without a part end", path.c_str());
+
+        CHECK(pages.size() == (entries.size() + kIndexInterval - 1) / kIndexInterval,
+              "%s: %zu index pages for %zu entries", path.c_str(), pages.size(), entries.size());
+        for (size_t i = 0; i < pages.size(); i++) {
+            CHECK(pages[i] == entries[i * kIndexInterval], "%s.idx: page %zu points at %" PRIu64
+                  " instead of %" PRIu64, path.c_str(), i, pages[i], entries[i * kIndexInterval]);
+        }
+    }
+
+    // a ring small enough to wrap thousands of times, with the head stopping at every offset
+    void RingStress() {
+        constexpr size_t kRecords = 1000000;
+        constexpr size_t kMaxRecord = 203;
+        constexpr uint32_t kData = 1, kLast = 2;
+        using SmallRing = LogRing<4096>;
+        SmallRing ring;
+
+        std::thread producer([&ring] {
+            for (size_t seq = 0; seq <= kRecords; seq++) {
+                auto size = seq % kMaxRecord;
+                char *out;
+                while ((out = ring.Reserve(size)) == nullptr) std::this_thread::yield();
+                for (size_t i = 0; i < size; i++) out[i] = static_cast<char>(seq + i);
+                ring.Commit(size, seq == kRecords ? kLast : kData);
+            }
+        });
+
+        size_t tail = 0, seq = 0;
+        bool last = false;
+        while (!last) {
+            auto head = ring.Wait(tail);
+            while (tail != head) {
+                const auto *record = ring.At(tail);
+                tail = SmallRing::Next(tail, record);
+                if (record->targets == SmallRing::kPadding) continue;
+                if (record->targets != kData && record->targets != kLast) {
+                    fprintf(stderr, "ring: record %zu has targets %u\n", seq, record->targets);
+                    _exit(1);
+                }
+                const auto *data = SmallRing::Data(record);
+                bool valid = record->size == seq % kMaxRecord;
+                for (size_t i = 0; valid && i < record->size; i++) {
+                    valid = data[i] == static_cast<char>(seq + i);
+                }
+                if (!valid) {
+                    fprintf(stderr, "ring: record %zu is corrupted\n", seq);
+                    _exit(1);
+                }
+                last = record->targets == kLast;
+                ++seq;
+            }
+            ring.Release(tail);
+        }
+        producer.join();
+        printf("ring: %zu records\n", seq);
+    }
+
+    bool Done() {
+        std::lock_guard lock(files_mutex);
+        if (verbose_files.empty()) return false;
+        return ReadFile(verbose_files.back()).find("seq=done") != std::string::npos;
+    }
+}
+
+// liblog
+
+extern "C" {
+struct logger {};
+struct logger_list {};
+
+long android_logger_get_log_size(logger *) { return 1 << 20; }
+
+int android_logger_set_log_size(logger *, unsigned long) { return 0; }
+
+logger_list *android_logger_list_alloc(int, unsigned int, pid_t) { return new logger_list; }
+
+void android_logger_list_free(logger_list *list) { delete list; }
+
+logger *android_logger_open(logger_list *, log_id_t) {
+    static logger logger;
+    return &logger;
+}
+
+int android_logger_list_read(logger_list *, log_msg *msg) {
+    if (next_line == kLines) {
+        // let the writer catch up so the final drop count is reported
+        std::this_thread::sleep_for(200ms);
+        Fill(msg, kPid, "LSPosed-Bridge"sv, "seq=done"sv);
+        ++produced_modules;
+        ++produced_verbose;
+        ++next_line;
+        return 1;
+    }
+    if (next_line > kLines) {
+        while (true) pause();
+    }
+    auto seq = next_line++;
+    if (seq % kRefreshInterval == kRefreshInterval - 1) {
+        Fill(msg, getpid(), "LSPosedLogcat"sv, "!!refresh_modules!!"sv);
+        ++produced_verbose;
+        return 1;
+    }
+    // give the writer some time now and then, but not enough to never drop
+    if (seq % 512 == 0) std::this_thread::sleep_for(1ms);
+    const auto &tag = kTags[rng() % std::size(kTags)];
+    auto text = Message(seq, tag.name, rng() % kMaxMessage);
+    Fill(msg, kPid, tag.name, text);
+    produced_modules += tag.modules;
+    produced_verbose += tag.verbose;
+    return 1;
+}
+
+int android_log_processLogBuffer(logger_entry *buf, AndroidLogEntry *entry) {
+    auto *payload = reinterpret_cast<const char *>(buf) + buf->hdr_size;
+    entry->tv_sec = buf->sec;
+    entry->tv_nsec = buf->nsec;
+    entry->priority = static_cast<android_LogPriority>(payload[0]);
+    entry->uid = static_cast<int32_t>(buf->uid);
+    entry->pid = buf->pid;
+    entry->tid = static_cast<int32_t>(buf->tid);
+    entry->tag = payload + 1;
+    entry->tagLen = strlen(entry->tag) + 1;
+    entry->message = entry->tag + entry->tagLen;
+    entry->messageLen = strlen(entry->message);
+    return 0;
+}
+
+// bionic
+
+int __system_property_get(const char *, char *value) {
+    value[0] = '\0';
+    return 0;
+}
+
+int __system_property_set(const char *, const char *) { return 0; }
+
+const prop_info *__system_property_find(const char *) { return nullptr; }
+
+void __system_property_read_callback(const prop_info *,
+                                     void (*)(void *, const char *, const char *, uint32_t),
+                                     void *) {}
+
+bool __system_property_wait(const prop_info *, uint32_t, uint32_t *, const timespec *) {
+    // stops the watchdog
+    return false;
+}
+}
+
+// JNI, the only object is the LogcatService
+
+jint _JNIEnv::GetJavaVM(JavaVM **vm) {
+    static JavaVM java_vm;
+    *vm = &java_vm;
+    return 0;
+}
+
+jobject _JNIEnv::NewGlobalRef(jobject obj) { return obj; }
+
+jclass _JNIEnv::GetObjectClass(jobject obj) { return obj; }
+
+jmethodID _JNIEnv::GetMethodID(jclass, const char *name, const char *) {
+    static char refresh_fd, get_index_fd;
+    if (name == "refreshFd"sv) return reinterpret_cast<jmethodID>(&refresh_fd);
+    if (name == "getIndexFd"sv) return reinterpret_cast<jmethodID>(&get_index_fd);
+    return nullptr;
+}
+
+jint _JNIEnv::CallIntMethod(jobject, jmethodID method, ...) {
+    va_list args;
+    va_start(args, method);
+    bool verbose = va_arg(args, int);
+    va_end(args);
+    if (method == GetMethodID(nullptr, "refreshFd", "(Z)I")) return OpenNew(verbose);
+    std::lock_guard lock(files_mutex);
+    return index_fds[verbose];
+}
+
+jboolean _JNIEnv::ExceptionCheck() { return JNI_FALSE; }
+
+void _JNIEnv::ExceptionClear() {}
+
+jint _JavaVM::AttachCurrentThread(JNIEnv **env, void *) {
+    static JNIEnv java_env;
+    *env = &java_env;
+    return 0;
+}
+
+int main() {
+    char tmp[] = "/tmp/logcat_test.XXXXXX";
+    if (!mkdtemp(tmp)) {
+        perror("mkdtemp");
+        return 1;
+    }
+    dir = tmp;
+
+    RingStress();
+
+    std::thread reader([] {
+        JNIEnv env;
+        static char service;
+        Java_org_lsposed_lspd_service_LogcatService_runLogcat(&env, reinterpret_cast<jobject>(&service));
+    });
+    reader.detach();
+
+    for (int i = 0; i < 600 && !Done(); i++) std::this_thread::sleep_for(100ms);
+    if (!Done()) {
+        fprintf(stderr, "timed out waiting for the writer\n");
+        _exit(1);
+    }
+    // the index is flushed right after the entries
+    std::this_thread::sleep_for(100ms);
+
+    std::lock_guard lock(files_mutex);
+    Result modules, verbose;
+    for (size_t i = 0; i < modules_files.size(); i++) {
+        VerifyFile(modules_files[i], false, i + 1 == modules_files.size(), modules);
+    }
+    for (size_t i = 0; i < verbose_files.size(); i++) {
+        VerifyFile(verbose_files[i], true, i + 1 == verbose_files.size(), verbose);
+    }
+
+    // the refresh requests and the done marker are verbose entries without a sequence number
+    auto written = verbose.seqs.size() + verbose.others;
+    if (written + verbose.dropped != produced_verbose) {
+        fprintf(stderr, "verbose: %zu written and %zu dropped of %zu lines\n", written,
+                verbose.dropped, produced_verbose);
+        ++failures;
+    }
+    // every refresh request rotates the modules log, even if the ring was full
+    if (modules_files.size() < 1 + kLines / kRefreshInterval) {
+        fprintf(stderr, "modules: %zu files for %zu refresh requests\n", modules_files.size(),
+                kLines / kRefreshInterval);
+        ++failures;
+    }
+    if (modules.seqs.size() > produced_modules || modules.seqs.empty()) {
+        fprintf(stderr, "modules: %zu written of %zu lines\n", modules.seqs.size(), produced_modules);
+        ++failures;
+    }
+
+    printf("%zu lines, %zu modules and %zu verbose files, %zu dropped, %d failures\n",
+           kLines, modules_files.size(), verbose_files.size(), verbose.dropped, failures);
+    if (failures == 0) {
+        std::string rm = "rm -rf " + dir;
+        system(rm.c_str());
+    }
+    fflush(stdout);
+    _exit(failures == 0 ? 0 : 1);
+}
@@ -0,0 +1,239 @@
+/*
+ * This file is part of LSPosed.
+ *
+ * LSPosed is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LSPosed is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LSPosed.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * Copyright (C) 2022 LSPosed Contributors
+ */
+
+package org.lsposed.lspd.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compact typed encoding of preference values, shared by the daemon, which stores it in the
+ * database and in per group files, and injected processes, which map those files read-only.
+ * <p>
+ * A value is a tag byte followed by its payload; strings are a length and UTF-8 bytes. Types
+ * other than the ones {@link android.content.SharedPreferences} supports fall back to Java
+ * serialization. A map is {@link #MAGIC}, {@link #VERSION}, the entry count and the entries as
+ * key string followed by value.
+ */
+public final class PreferencesCodec {
+    public static final int MAGIC = 0x4c535050; // LSPP
+    public static final int VERSION = 1;
+
+    private static final byte TAG_BOOLEAN = 1;
+    private static final byte TAG_INT = 2;
+    private static final byte TAG_LONG = 3;
+    private static final byte TAG_FLOAT = 4;
+    private static final byte TAG_STRING = 5;
+    private static final byte TAG_STRING_SET = 6;
+    private static final byte TAG_SERIALIZED = 7;
+
+    private PreferencesCodec() {
+    }
+
+    /**
+     * Size of the encoded value in bytes.
+     */
+    public static int sizeOf(Object value) {
+        if (value instanceof Boolean) return 2;
+        if (value instanceof Integer || value instanceof Float) return 5;
+        if (value instanceof Long) return 9;
+        if (value instanceof String) return 1 + sizeOf((String) value);
+        if (isStringSet(value)) {
+            int size = 5;
+            for (var s : (Set<?>) value) size += sizeOf((String) s);
+            return size;
+        }
+        return 5 + serialize(value).length;
+    }
+
+    private static int sizeOf(String s) {
+        return 4 + utf8Length(s);
+    }
+
+    private static int utf8Length(String s) {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) length += 1;
+            else if (c < 0x800) length += 2;
+            else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) length += 1; // encoded as '?'
+            else length += 3;
+        }
+        return length;
+    }
+
+    public static byte[] encode(Object value) {
+        var buffer = ByteBuffer.allocate(sizeOf(value));
+        put(buffer, value);
+        return buffer.array();
+    }
+
+    public static Object decode(byte[] data) throws IOException {
+        try {
+            return get(ByteBuffer.wrap(data));
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated value", e);
+        }
+    }
+
+    public static byte[] encodeMap(Map<String, ?> map) {
+        int size = 12;
+        for (var entry : map.entrySet()) {
+            size += sizeOf(entry.getKey()) + sizeOf(entry.getValue());
+        }
+        var buffer = ByteBuffer.allocate(size);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(map.size());
+        for (var entry : map.entrySet()) {
+            putString(buffer, entry.getKey());
+            put(buffer, entry.getValue());
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Decodes a map written by {@link #encodeMap}, e.g. straight from a mapped file.
+     */
+    public static Map<String, Object> decodeMap(ByteBuffer buffer) throws IOException {
+        try {
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                throw new IOException("Unknown preferences format");
+            }
+            int count = buffer.getInt();
+            if (count < 0) throw new IOException("Invalid entry count " + count);
+            var map = new HashMap<String, Object>(count * 4 / 3 + 1);
+            for (int i = 0; i < count; i++) {
+                var key = getString(buffer);
+                map.put(key, get(buffer));
+            }
+            return map;
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Truncated preferences", e);
+        }
+    }
+
+    private static boolean isStringSet(Object value) {
+        if (!(value instanceof Set)) return false;
+        for (var s : (Set<?>) value) {
+            if (!(s instanceof String)) return false;
+        }
+        return true;
+    }
+
+    private static void put(ByteBuffer buffer, Object value) {
+        if (value instanceof Boolean) {
+            buffer.put(TAG_BOOLEAN).put((byte) ((Boolean) value ? 1 : 0));
+        } else if (value instanceof Integer) {
+            buffer.put(TAG_INT).putInt((Integer) value);
+        } else if (value instanceof Long) {
+            buffer.put(TAG_LONG).putLong((Long) value);
+        } else if (value instanceof Float) {
+            buffer.put(TAG_FLOAT).putFloat((Float) value);
+        } else if (value instanceof String) {
+            buffer.put(TAG_STRING);
+            putString(buffer, (String) value);
+        } else if (isStringSet(value)) {
+            var set = (Set<?>) value;
+            buffer.put(TAG_STRING_SET).putInt(set.size());
+            for (var s : set) putString(buffer, (String) s);
+        } else {
+            var data = serialize(value);
+            buffer.put(TAG_SERIALIZED).putInt(data.length).put(data);
+        }
+    }
+
+    private static Object get(ByteBuffer buffer) throws IOException {
+        var tag = buffer.get();
+        switch (tag) {
+            case TAG_BOOLEAN:
+                return buffer.get() != 0;
+            case TAG_INT:
+                return buffer.getInt();
+            case TAG_LONG:
+                return buffer.getLong();
+            case TAG_FLOAT:
+                return buffer.getFloat();
+            case TAG_STRING:
+                return getString(buffer);
+            case TAG_STRING_SET: {
+                int count = buffer.getInt();
+                if (count < 0) throw new IOException("Invalid set size " + count);
+                var set = new HashSet<String>(count * 4 / 3 + 1);
+                for (int i = 0; i < count; i++) set.add(getString(buffer));
+                return set;
+            }
+            case TAG_SERIALIZED: {
+                int length = buffer.getInt();
+                if (length < 0 || length > buffer.remaining()) throw new IOException("Invalid size " + length);
+                var data = new byte[length];
+                buffer.get(data);
+                try (var in = new ObjectInputStream(new ByteArrayInputStream(data))) {
+                    return in.readObject();
+                } catch (ClassNotFoundException e) {
+                    throw new IOException(e);
+                }
+            }
+            default:
+                throw new IOException("Unknown tag " + tag);
+        }
+    }
+
+    private static void putString(ByteBuffer buffer, String s) {
+        var bytes = s.getBytes(StandardCharsets.UTF_8);
+        buffer.putInt(bytes.length).put(bytes);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) throw new BufferUnderflowException();
+        String s;
+        if (buffer.hasArray()) {
+            s = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + length);
+        } else {
+            var bytes = new byte[length];
+            buffer.get(bytes);
+            s = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return s;
+    }
+
+    private static byte[] serialize(Object value) {
+        var out = new ByteArrayOutputStream();
+        try (var os = new ObjectOutputStream(out)) {
+            os.writeObject((Serializable) value);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,323 @@
+/*
+ * This file is part of LSPosed.
+ *
+ * LSPosed is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LSPosed is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LSPosed.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * Copyright (C) 2023 LSPosed Contributors
+ */
+
+package org.lsposed.lspd.util;
+
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Reader for the binary logs written by the daemon's logcat.
+ * <p>
+ * The log is mapped and decoded a page of {@link #PAGE_SIZE} entries at a time, using the page
+ * offsets from its index; filters only look at the fixed size entry headers, messages are
+ * decoded when first accessed. Both files start with {@link #MAGIC} and {@link #VERSION}. Log
+ * records start with their size and type, an entry then has priority, tag id, seconds,
+ * nanoseconds, pid, tid, uid and the UTF-8 message. Index records are either a page offset or
+ * the name of a tag id.
+ */
+public final class LogReader {
+    public static final int MAGIC = 0x4c50534c; // LSPL
+    public static final int VERSION = 1;
+    public static final int PAGE_SIZE = 256;
+
+    private static final int FILE_HEADER_SIZE = 8;
+    private static final int ENTRY_HEADER_SIZE = 26;
+    private static final int TYPE_ENTRY = 1;
+    private static final int INDEX_PAGE = 1;
+    private static final int INDEX_TAG = 2;
+
+    private static final String PRIORITY_CHARS = "??VDIWEFS";
+    private static final DateTimeFormatter TIME_FORMATTER =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss").withZone(ZoneId.systemDefault());
+
+    private final ByteBuffer log;
+    private final long[] pages;
+    private final List<String> tags = new ArrayList<>();
+    private final int entryCount;
+
+    public static final class Filter {
+        /**
+         * Only entries with one of these tags, or all if {@code null}.
+         */
+        public Set<String> tags = null;
+        /**
+         * Only entries of this process, or all if {@code 0}.
+         */
+        public int pid = 0;
+        /**
+         * Only entries with at least this priority.
+         */
+        public int minPriority = 0;
+    }
+
+    public final class Entry {
+        public final int priority;
+        public final int tagId;
+        public final long sec;
+        public final int nsec;
+        public final int pid;
+        public final int tid;
+        public final int uid;
+        private final int messageOffset;
+        private final int messageLength;
+        private String message = null;
+
+        private Entry(int offset, int size) {
+            priority = log.get(offset + 3) & 0xff;
+            tagId = log.getShort(offset + 4) & 0xffff;
+            sec = log.getInt(offset + 6) & 0xffffffffL;
+            nsec = log.getInt(offset + 10);
+            pid = log.getInt(offset + 14);
+            tid = log.getInt(offset + 18);
+            uid = log.getInt(offset + 22);
+            messageOffset = offset + ENTRY_HEADER_SIZE;
+            messageLength = size - ENTRY_HEADER_SIZE;
+        }
+
+        public String getTag() {
+            return getTagName(tagId);
+        }
+
+        public String getMessage() {
+            if (message == null) {
+                var bytes = new byte[messageLength];
+                var buffer = log.duplicate();
+                buffer.position(messageOffset);
+                buffer.get(bytes);
+                message = new String(bytes, StandardCharsets.UTF_8);
+            }
+            return message;
+        }
+
+        /**
+         * Formats the entry the way the daemon used to write plain text logs.
+         */
+        @Override
+        public String toString() {
+            var tag = getTag();
+            var sb = new StringBuilder(64 + tag.length() + messageLength);
+            sb.append("[ ").append(TIME_FORMATTER.format(Instant.ofEpochSecond(sec))).append('.');
+            pad(sb, String.valueOf(nsec / 1000000), 3, '0');
+            sb.append(' ');
+            pad(sb, String.valueOf(uid), 8, ' ');
+            sb.append(':');
+            pad(sb, String.valueOf(pid), 6, ' ');
+            sb.append(':');
+            pad(sb, String.valueOf(tid), 6, ' ');
+            sb.append(' ').append(priority < PRIORITY_CHARS.length() ? PRIORITY_CHARS.charAt(priority) : '?');
+            sb.append('/').append(tag);
+            for (int i = tag.length(); i < 15; i++) sb.append(' ');
+            sb.append(" ] ").append(getMessage());
+            return sb.toString();
+        }
+    }
+
+    private static void pad(StringBuilder sb, String value, int width, char c) {
+        for (int i = value.length(); i < width; i++) sb.append(c);
+        sb.append(value);
+    }
+
+    /**
+     * @param log   the log, mapped up to its current size
+     * @param index its index; if missing, pages are found by scanning the log and tags are shown
+     *              by id
+     */
+    public LogReader(FileDescriptor log, FileDescriptor index) throws IOException {
+        this.log = map(log);
+        if (!hasHeader(this.log)) throw new IOException("Not a binary log");
+        List<Long> offsets = null;
+        if (index != null) {
+            var buffer = map(index);
+            if (hasHeader(buffer)) offsets = readIndex(buffer);
+        }
+        if (offsets == null) offsets = scanPages();
+        pages = offsets.stream().mapToLong(Long::longValue).toArray();
+        entryCount = pages.length == 0 ? 0 : (pages.length - 1) * PAGE_SIZE + countEntries(pages.length - 1);
+    }
+
+    public static boolean isBinaryLog(FileDescriptor fd) {
+        try {
+            var header = ByteBuffer.allocate(FILE_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            return channel(fd).read(header, 0) == FILE_HEADER_SIZE && hasHeader(header);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // the descriptors belong to the caller, so neither the stream nor the channel is closed
+    private static FileChannel channel(FileDescriptor fd) {
+        return new FileInputStream(fd).getChannel();
+    }
+
+    private static ByteBuffer map(FileDescriptor fd) throws IOException {
+        var channel = channel(fd);
+        return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+                .order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static boolean hasHeader(ByteBuffer buffer) {
+        return buffer.limit() >= FILE_HEADER_SIZE &&
+                buffer.getInt(0) == MAGIC && buffer.getInt(4) == VERSION;
+    }
+
+    private List<Long> readIndex(ByteBuffer index) {
+        var offsets = new ArrayList<Long>();
+        int pos = FILE_HEADER_SIZE;
+        int limit = index.limit();
+        while (pos < limit) {
+            int type = index.get(pos);
+            if (type == INDEX_PAGE && pos + 9 <= limit) {
+                long offset = index.getLong(pos + 1);
+                // the index may be ahead of what was mapped
+                if (offset < log.limit()) offsets.add(offset);
+                pos += 9;
+            } else if (type == INDEX_TAG && pos + 5 <= limit) {
+                int id = index.getShort(pos + 1) & 0xffff;
+                int length = index.getShort(pos + 3) & 0xffff;
+                if (pos + 5 + length > limit) break;
+                var bytes = new byte[length];
+                var buffer = index.duplicate();
+                buffer.position(pos + 5);
+                buffer.get(bytes);
+                while (tags.size() <= id) tags.add(null);
+                tags.set(id, new String(bytes, StandardCharsets.UTF_8));
+                pos += 5 + length;
+            } else {
+                break;
+            }
+        }
+        return offsets;
+    }
+
+    private List<Long> scanPages() {
+        var offsets = new ArrayList<Long>();
+        int entries = 0;
+        for (int pos = FILE_HEADER_SIZE; ; ) {
+            int size = recordSize(pos);
+            if (size == 0) break;
+            if (log.get(pos + 2) == TYPE_ENTRY && entries++ % PAGE_SIZE == 0) offsets.add((long) pos);
+            pos += size;
+        }
+        return offsets;
+    }
+
+    // size of a complete record at pos, or 0 at the end of the log
+    private int recordSize(int pos) {
+        if (pos + 3 > log.limit()) return 0;
+        int size = log.getShort(pos) & 0xffff;
+        if (size < 3 || pos + size > log.limit()) return 0;
+        return size;
+    }
+
+    private int countEntries(int page) {
+        int count = 0;
+        for (int pos = (int) pages[page]; count < PAGE_SIZE; ) {
+            int size = recordSize(pos);
+            if (size == 0) break;
+            if (log.get(pos + 2) == TYPE_ENTRY) count++;
+            pos += size;
+        }
+        return count;
+    }
+
+    private String getTagName(int id) {
+        var name = id < tags.size() ? tags.get(id) : null;
+        return name != null ? name : "#" + id;
+    }
+
+    /**
+     * Number of entries in the log.
+     */
+    public int size() {
+        return entryCount;
+    }
+
+    public int getPageCount() {
+        return pages.length;
+    }
+
+    /**
+     * Reads the entries of a page, i.e. entries {@code page * PAGE_SIZE} until the next page.
+     */
+    public List<Entry> readPage(int page) {
+        return readPage(page, null);
+    }
+
+    /**
+     * Reads the entries of a page that pass the filter. Messages of the returned entries are
+     * decoded lazily.
+     */
+    public List<Entry> readPage(int page, Filter filter) {
+        var out = new ArrayList<Entry>(PAGE_SIZE);
+        var allowedTags = filter != null && filter.tags != null ? resolveTags(filter.tags) : null;
+        int count = 0;
+        for (int pos = (int) pages[page]; count < PAGE_SIZE; ) {
+            int size = recordSize(pos);
+            if (size == 0) break;
+            if (log.get(pos + 2) == TYPE_ENTRY && size >= ENTRY_HEADER_SIZE) {
+                count++;
+                if (filter == null || matches(pos, filter, allowedTags)) {
+                    out.add(new Entry(pos, size));
+                }
+            }
+            pos += size;
+        }
+        return out;
+    }
+
+    private BitSet resolveTags(Set<String> names) {
+        var ids = new BitSet(tags.size());
+        for (int i = 0; i < tags.size(); i++) {
+            if (names.contains(tags.get(i))) ids.set(i);
+        }
+        return ids;
+    }
+
+    private boolean matches(int pos, Filter filter, BitSet allowedTags) {
+        if ((log.get(pos + 3) & 0xff) < filter.minPriority) return false;
+        if (filter.pid != 0 && log.getInt(pos + 14) != filter.pid) return false;
+        return allowedTags == null || allowedTags.get(log.getShort(pos + 4) & 0xffff);
+    }
+
+    /**
+     * Writes every entry as a line of text, for sharing the log.
+     */
+    public void writeText(Writer writer) throws IOException {
+        for (int page = 0; page < pages.length; page++) {
+            for (var entry : readPage(page)) {
+                writer.write(entry.toString());
+                writer.write('\n');
+            }
+        }
+    }
+}